@@ -0,0 +1,90 @@
+package de.gfolder.safeCommLib.benchmarks;
+
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.message.SafeMessageFactory;
+import de.gfolder.safeCommLib.messageHandler.BinaryMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.JSONMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.MessageHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * safeCommLib
+ *
+ * Encoding and decoding of single messages by the JSON and binary message handlers.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"JSON", "BINARY"})
+    public String encoding;
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private MessageHandler<Object> handler;
+    private String data;
+    private Object encoded;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        MessageHandler<?> messageHandler = "BINARY".equals(encoding) ? new BinaryMessageHandler() : new JSONMessageHandler();
+        handler = (MessageHandler<Object>) messageHandler;
+        data = Payloads.text(payloadSize);
+        encoded = handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(42, data));
+    }
+
+    @TearDown
+    public void tearDown() {
+        ReferenceCountUtil.release(encoded);
+    }
+
+    @Benchmark
+    public Object encode() {
+        SafeMessage message = SafeMessageFactory.createSafeMessage(42, data);
+        Object encodedMessage = handler.encodeTransportMessage(message);
+        message.recycle();
+        ReferenceCountUtil.release(encodedMessage);
+        return encodedMessage;
+    }
+
+    @Benchmark
+    public SafeMessage decode() {
+        //Decoding moves the reader index of a buffer, so read a view of it
+        Object transportMessage = encoded instanceof ByteBuf ? ((ByteBuf) encoded).duplicate() : encoded;
+        return handler.decodeTransportMessage(transportMessage);
+    }
+
+    @Benchmark
+    public boolean decodeAndCheck() {
+        Object transportMessage = encoded instanceof ByteBuf ? ((ByteBuf) encoded).duplicate() : encoded;
+        SafeMessage message = handler.decodeTransportMessage(transportMessage);
+        boolean intact = handler.checkMessage(message);
+        message.recycle();
+        return intact;
+    }
+}
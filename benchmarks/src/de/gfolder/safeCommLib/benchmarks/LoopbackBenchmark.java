@@ -0,0 +1,154 @@
+package de.gfolder.safeCommLib.benchmarks;
+
+import de.gfolder.safeCommLib.TransportConfig;
+import de.gfolder.safeCommLib.client.SafeMessageClient;
+import de.gfolder.safeCommLib.connector.BreakupHandler;
+import de.gfolder.safeCommLib.connector.MessageReceiver;
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.messageHandler.BinaryMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.JSONMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.MessageHandler;
+import de.gfolder.safeCommLib.server.SafeMessageServer;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * safeCommLib
+ *
+ * End to end benchmark of a server and several clients connected via loopback.
+ * The throughput benchmark spreads messages over all connections and waits until all of them were acknowledged,
+ * the latency benchmark measures the time from sending a single message until its acknowledgement arrives
+ * (including the delayed acknowledgement of the receiver).
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    private static final int BATCH = 1024;
+
+    @Param({"JSON", "BINARY"})
+    public String encoding;
+
+    @Param({"1", "16"})
+    public int connections;
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private SafeMessageServer server;
+    private EventLoopGroup clientGroup;
+    private SafeMessageClient[] clients;
+    private String data;
+    private final LongAdder received = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        server = new SafeMessageServer(port, "/websocket", false, new MessageReceiver() {
+            @Override
+            public void receive(String msg, String channelIdentifier) {
+                received.increment();
+            }
+        }, new BreakupHandler() {
+            @Override
+            public void handleBreakup(String channelIdentifier) {
+            }
+        });
+        server.setBinary("BINARY".equals(encoding));
+        server.init();
+
+        //All clients share one event loop group like the connections of the server do
+        TransportConfig transportConfig = TransportConfig.defaults();
+        clientGroup = transportConfig.newEventLoopGroup(0);
+        transportConfig = TransportConfig.builder().eventLoopGroup(clientGroup).build();
+        clients = new SafeMessageClient[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new SafeMessageClient("ws://127.0.0.1:" + port + "/websocket", newHandler());
+            clients[i].setTransportConfig(transportConfig);
+            clients[i].init();
+        }
+        data = Payloads.text(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws Exception {
+        for (SafeMessageClient client : clients) {
+            client.requestClosing();
+            client.close();
+        }
+        clientGroup.shutdownGracefully().sync();
+        server.requestClose();
+        server.close();
+    }
+
+    /**
+     * Create a client side handler ignoring received messages
+     *
+     * @return new handler
+     */
+    private MessageHandler<?> newHandler() {
+        if ("BINARY".equals(encoding)) {
+            return new BinaryMessageHandler() {
+                @Override
+                public void handleReceived(SafeMessage message, Channel channel) {
+                }
+            };
+        }
+        return new JSONMessageHandler() {
+            @Override
+            public void handleReceived(SafeMessage message, Channel channel) {
+            }
+        };
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() throws Exception {
+        CompletableFuture<?>[] last = new CompletableFuture<?>[connections];
+        //Acknowledgements are cumulative, so only the last message of each connection needs a future
+        for (int i = 0; i < BATCH - connections; i++)
+            clients[i % connections].sendMessage(data, null);
+        for (int i = BATCH - connections; i < BATCH; i++)
+            last[i % connections] = clients[i % connections].sendMessage(data);
+        CompletableFuture.allOf(last).get(30, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Long acknowledgementLatency() throws Exception {
+        return clients[0].sendMessage(data).get(30, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,47 @@
+package de.gfolder.safeCommLib.benchmarks;
+
+import java.util.Random;
+
+/**
+ * safeCommLib
+ *
+ * Reproducible payloads for the benchmarks.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+final class Payloads {
+
+    private Payloads() {
+    }
+
+    /**
+     * Create a JSON like text payload (redundant like typical application messages)
+     *
+     * @param size length in characters
+     * @return the payload
+     */
+    static String text(int size) {
+        Random random = new Random(size);
+        StringBuilder builder = new StringBuilder(size + 32);
+        while (builder.length() < size) {
+            builder.append("{\"id\":").append(random.nextInt(100000))
+                    .append(",\"name\":\"item\",\"value\":").append(random.nextDouble()).append('}');
+        }
+        builder.setLength(size);
+        return builder.toString();
+    }
+
+    /**
+     * Create a random binary payload
+     *
+     * @param size length in bytes
+     * @return the payload
+     */
+    static byte[] binary(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,129 @@
+package de.gfolder.safeCommLib.benchmarks;
+
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.message.SafeMessageFactory;
+import de.gfolder.safeCommLib.messageHandler.JSONMessageHandler;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * safeCommLib
+ *
+ * Receiving path of a message handler (receiving window, in order delivery and acknowledgements)
+ * for messages arriving out of order.
+ * Reordered messages arrive up to 8 positions late, lost ones arrive again 64 positions late (as if resent).
+ * Every invocation feeds one window full of messages into a fresh handler, acknowledgements are discarded.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReceiveBenchmark {
+
+    private static final int MESSAGES = 4096;
+
+    @Param({"0", "0.01", "0.1"})
+    public double reorderRate;
+
+    @Param({"0", "0.01"})
+    public double lossRate;
+
+    @Param({"64"})
+    public int payloadSize;
+
+    private SafeMessage[] arrivals;
+    private Receiver receiver;
+    private EmbeddedChannel channel;
+
+    /**
+     * Handler counting the delivered messages instead of printing them
+     */
+    private static class Receiver extends JSONMessageHandler {
+        private int delivered;
+
+        void feed(SafeMessage message) {
+            receive(message);
+        }
+
+        @Override
+        public void handleReceived(SafeMessage message, Channel channel) {
+            delivered++;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void createArrivals() {
+        //Decode the messages once, so they carry the checksum of their received bytes
+        JSONMessageHandler codec = new JSONMessageHandler();
+        String data = Payloads.text(payloadSize);
+        final double[] arrivalTime = new double[MESSAGES];
+        Integer[] order = new Integer[MESSAGES];
+        Random random = new Random(7);
+        for (int i = 0; i < MESSAGES; i++) {
+            order[i] = i;
+            arrivalTime[i] = i;
+            if (random.nextDouble() < lossRate)
+                arrivalTime[i] += 64.5;
+            else if (random.nextDouble() < reorderRate)
+                arrivalTime[i] += 1.5 + random.nextInt(8);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(arrivalTime[a], arrivalTime[b]);
+            }
+        });
+
+        arrivals = new SafeMessage[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            SafeMessage message = SafeMessageFactory.createSafeMessage(order[i], data);
+            arrivals[i] = codec.decodeTransportMessage(codec.encodeTransportMessage(message));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createReceiver() {
+        channel = new EmbeddedChannel();
+        receiver = new Receiver();
+        receiver.setChannel(channel);
+    }
+
+    @TearDown(Level.Invocation)
+    public void discardAcknowledgements() {
+        if (receiver.delivered != MESSAGES)
+            throw new IllegalStateException("Only " + receiver.delivered + " messages were delivered");
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void receive() {
+        for (SafeMessage message : arrivals)
+            receiver.feed(message);
+    }
+}
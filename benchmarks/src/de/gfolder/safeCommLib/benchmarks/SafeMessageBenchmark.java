@@ -0,0 +1,77 @@
+package de.gfolder.safeCommLib.benchmarks;
+
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.message.SafeMessageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * safeCommLib
+ *
+ * Construction of messages, done once per sent message and once per acknowledgement.
+ * The message handler takes them from a pool and recycles them once they are encoded (see createAndRecycle).
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SafeMessageBenchmark {
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private String data;
+    private byte[] binaryData;
+    private long sequenceNumber;
+
+    @Setup
+    public void setup() {
+        data = Payloads.text(payloadSize);
+        binaryData = Payloads.binary(payloadSize);
+    }
+
+    @Benchmark
+    public SafeMessage createText() {
+        return SafeMessageFactory.createSafeMessage(sequenceNumber++, data);
+    }
+
+    @Benchmark
+    public SafeMessage createBinary() {
+        return SafeMessageFactory.createSafeMessage(sequenceNumber++, binaryData);
+    }
+
+    @Benchmark
+    public SafeMessage createFeedback() {
+        return SafeMessageFactory.createFeedbackMessageOK(sequenceNumber++);
+    }
+
+    @Benchmark
+    public int createAndHash() {
+        return SafeMessageFactory.createSafeMessage(sequenceNumber++, data).getStoredHash();
+    }
+
+    @Benchmark
+    public long createAndRecycle() {
+        SafeMessage message = SafeMessageFactory.createSafeMessage(sequenceNumber++, data);
+        long timeStamp = message.getTimeStamp();
+        message.recycle();
+        return timeStamp;
+    }
+}
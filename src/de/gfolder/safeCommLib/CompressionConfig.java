@@ -0,0 +1,227 @@
+package de.gfolder.safeCommLib;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketClientExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateClientExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+/**
+ * safeCommLib
+ *
+ * Settings of the permessage-deflate WebSocket extension (RFC 7692) for servers and clients.
+ * Compression is only used if both sides enable it; frames smaller than the threshold are sent uncompressed.
+ * Instances are immutable and created by the builder:
+ *
+ * <pre>
+ * CompressionConfig config = CompressionConfig.builder().level(6).threshold(256).build();
+ * </pre>
+ *
+ * Every compressed connection keeps its own deflater and inflater. With context takeover, their history
+ * window (2^windowBits bytes) is kept between messages, which compresses similar messages much better
+ * at the cost of memory per connection.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class CompressionConfig {
+
+    private final int level;
+    private final int windowBits;
+    private final boolean contextTakeover;
+    private final int threshold;
+
+    private CompressionConfig(Builder builder) {
+        this.level = builder.level;
+        this.windowBits = builder.windowBits;
+        this.contextTakeover = builder.contextTakeover;
+        this.threshold = builder.threshold;
+    }
+
+    /**
+     * Create a builder with default settings
+     *
+     * @return new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get the default settings (level 6, full window, context takeover, threshold of 1024 bytes)
+     *
+     * @return config with default settings
+     */
+    public static CompressionConfig defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * Getter for property 'level'.
+     *
+     * @return Value for property 'level'.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Getter for property 'windowBits'.
+     *
+     * @return Value for property 'windowBits'.
+     */
+    public int getWindowBits() {
+        return windowBits;
+    }
+
+    /**
+     * Getter for property 'contextTakeover'.
+     *
+     * @return Value for property 'contextTakeover'.
+     */
+    public boolean isContextTakeover() {
+        return contextTakeover;
+    }
+
+    /**
+     * Getter for property 'threshold'.
+     *
+     * @return minimum payload size in bytes of a frame to be compressed
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Create the handshaker negotiating the extension on the server side
+     * The server accepts the window size and context takeover requested by the client
+     * and asks the client to use its own settings in return
+     *
+     * @return new handshaker
+     */
+    public WebSocketServerExtensionHandshaker newServerHandshaker() {
+        return new PerMessageDeflateServerExtensionHandshaker(level, true, windowBits,
+                true, !contextTakeover, filterProvider());
+    }
+
+    /**
+     * Create the handshaker negotiating the extension on the client side
+     * The client asks the server to use its settings and accepts the ones requested by the server
+     *
+     * @return new handshaker
+     */
+    public WebSocketClientExtensionHandshaker newClientHandshaker() {
+        return new PerMessageDeflateClientExtensionHandshaker(level, true, windowBits,
+                true, !contextTakeover, filterProvider());
+    }
+
+    /**
+     * Create the filters skipping the compression of small frames
+     * Received frames are always decompressed if the sender compressed them
+     *
+     * @return provider of the filters
+     */
+    private WebSocketExtensionFilterProvider filterProvider() {
+        if (threshold <= 0)
+            return WebSocketExtensionFilterProvider.DEFAULT;
+
+        final WebSocketExtensionFilter encoderFilter = new WebSocketExtensionFilter() {
+            @Override
+            public boolean mustSkip(WebSocketFrame frame) {
+                return frame.content().readableBytes() < threshold;
+            }
+        };
+        return new WebSocketExtensionFilterProvider() {
+            @Override
+            public WebSocketExtensionFilter encoderFilter() {
+                return encoderFilter;
+            }
+
+            @Override
+            public WebSocketExtensionFilter decoderFilter() {
+                return WebSocketExtensionFilter.NEVER_SKIP;
+            }
+        };
+    }
+
+    /**
+     * Builder for CompressionConfig
+     */
+    public static class Builder {
+        private int level = 6;
+        private int windowBits = 15;
+        private boolean contextTakeover = true;
+        private int threshold = 1024;
+
+        private Builder() {
+        }
+
+        /**
+         * Compression level of the deflater
+         *
+         * @param level level from 0 (no compression) to 9 (best compression)
+         * @return this builder
+         */
+        public Builder level(int level) {
+            if (level < 0 || level > 9) {
+                throw new IllegalArgumentException("Compression level has to be between 0 and 9");
+            }
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Size of the history window of the deflater as power of two
+         * Smaller windows need less memory per connection but compress worse
+         *
+         * @param windowBits window size from 8 to 15
+         * @return this builder
+         */
+        public Builder windowBits(int windowBits) {
+            if (windowBits < 8 || windowBits > 15) {
+                throw new IllegalArgumentException("Window bits have to be between 8 and 15");
+            }
+            this.windowBits = windowBits;
+            return this;
+        }
+
+        /**
+         * Keep the history window between messages
+         * Without it, every message is compressed on its own and the window is released in between
+         *
+         * @param contextTakeover true to keep the window
+         * @return this builder
+         */
+        public Builder contextTakeover(boolean contextTakeover) {
+            this.contextTakeover = contextTakeover;
+            return this;
+        }
+
+        /**
+         * Minimum payload size of a frame to be compressed
+         * Smaller frames are sent uncompressed, since the deflate overhead would outweigh the savings
+         *
+         * @param threshold size in bytes (0 to compress all frames)
+         * @return this builder
+         */
+        public Builder threshold(int threshold) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("Threshold must not be negative");
+            }
+            this.threshold = threshold;
+            return this;
+        }
+
+        /**
+         * Create the config
+         *
+         * @return config with the settings of this builder
+         */
+        public CompressionConfig build() {
+            return new CompressionConfig(this);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package de.gfolder.safeCommLib;
 
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.util.SelfSignedCertificate;
 
 import javax.net.ssl.SSLException;
 import java.security.cert.CertificateException;
@@ -11,11 +10,19 @@ import java.security.cert.CertificateException;
  *
  * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
  * @version 0.1
+ * @deprecated use SslConfig, which also creates contexts for the client side
  */
 
+@Deprecated
 public class SSLInitializer {
+    /**
+     * Get the server context of the default config (self-signed certificate, created once per JVM)
+     *
+     * @return shared server context
+     * @throws CertificateException
+     * @throws SSLException
+     */
     public static SslContext getContext() throws CertificateException, SSLException {
-        SelfSignedCertificate ssc = new SelfSignedCertificate();
-        return SslContext.newServerContext(ssc.certificate(), ssc.privateKey());
+        return SslConfig.defaults().serverContext();
     }
 }
@@ -0,0 +1,28 @@
+package de.gfolder.safeCommLib;
+
+/**
+ * safeCommLib
+ *
+ * HTTP headers used to negotiate session resumption during the WebSocket handshake.
+ * The client sends the id of its last session (if any), the server answers with the id of the session
+ * the connection belongs to and whether the old session was resumed.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public final class SessionHeaders {
+
+    /**
+     * Id of the session (sent by the client to resume, answered by the server)
+     */
+    public static final String SESSION = "X-SafeComm-Session";
+
+    /**
+     * "true" if the server resumed the session requested by the client
+     */
+    public static final String RESUMED = "X-SafeComm-Resumed";
+
+    private SessionHeaders() {
+    }
+}
@@ -0,0 +1,516 @@
+package de.gfolder.safeCommLib;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Arrays;
+
+/**
+ * safeCommLib
+ *
+ * TLS settings of servers and clients. The SslContext of each side is created once per config and shared by all
+ * servers and clients using the config, so certificates and keys are only loaded once and TLS sessions can be resumed
+ * across connections (abbreviated handshakes instead of full ones when clients reconnect).
+ * Instances are immutable and created by the builder:
+ *
+ * <pre>
+ * SslConfig config = SslConfig.builder().keyCertChain(new File("cert.pem"), new File("key.pem"), null).build();
+ * </pre>
+ *
+ * The OpenSSL provider is used if netty-tcnative is on the class path, otherwise the provider of the JDK.
+ * Session tickets are enabled by both providers; with OpenSSL, ticket keys can be shared by several servers so clients
+ * can resume sessions on any of them (configuring them without OpenSSL is rejected when the config is built).
+ * Without key material, servers use a self-signed certificate created once per JVM.
+ * Clients trust the default certificate authorities of the JVM unless configured otherwise
+ * and check that the certificate of the server matches its host name (unless all certificates are trusted).
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class SslConfig {
+
+    private static volatile SslConfig defaults;
+    private static SelfSignedCertificate selfSignedCertificate;
+
+    private final File certChainFile;
+    private final File keyFile;
+    private final String keyPassword;
+    private final File keyStoreFile;
+    private final String keyStoreType;
+    private final char[] keyStorePassword;
+    private final File trustCertFile;
+    private final File trustStoreFile;
+    private final String trustStoreType;
+    private final char[] trustStorePassword;
+    private final boolean trustInsecure;
+    private final boolean openSsl;
+    private final long sessionCacheSize;
+    private final long sessionTimeout;
+    private final byte[] ticketKeys;
+    private final String[] protocols;
+
+    private volatile SslContext serverContext;
+    private volatile SslContext clientContext;
+
+    private SslConfig(Builder builder) {
+        this.certChainFile = builder.certChainFile;
+        this.keyFile = builder.keyFile;
+        this.keyPassword = builder.keyPassword;
+        this.keyStoreFile = builder.keyStoreFile;
+        this.keyStoreType = builder.keyStoreType;
+        this.keyStorePassword = builder.keyStorePassword;
+        this.trustCertFile = builder.trustCertFile;
+        this.trustStoreFile = builder.trustStoreFile;
+        this.trustStoreType = builder.trustStoreType;
+        this.trustStorePassword = builder.trustStorePassword;
+        this.trustInsecure = builder.trustInsecure;
+        this.openSsl = builder.openSsl;
+        this.sessionCacheSize = builder.sessionCacheSize;
+        this.sessionTimeout = builder.sessionTimeout;
+        this.ticketKeys = builder.ticketKeys;
+        this.protocols = builder.protocols;
+    }
+
+    /**
+     * Create a builder with default settings
+     *
+     * @return new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get the config used by servers and clients without a config of their own
+     * (self-signed certificate for servers, default trust of the JVM for clients).
+     * It is shared, so its contexts are only created once per JVM
+     *
+     * @return shared default config
+     */
+    public static SslConfig defaults() {
+        SslConfig config = defaults;
+        if (config == null) {
+            synchronized (SslConfig.class) {
+                if (defaults == null)
+                    defaults = new Builder().build();
+                config = defaults;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Check if the OpenSSL provider is used
+     *
+     * @return true if OpenSSL is preferred and netty-tcnative is available
+     */
+    public boolean isOpenSsl() {
+        return openSsl && OpenSsl.isAvailable();
+    }
+
+    /**
+     * Get the context for the server side, it is created on the first call
+     *
+     * @return shared server context
+     * @throws CertificateException if the self-signed certificate could not be created
+     * @throws SSLException if the key material could not be loaded or the context could not be created
+     */
+    public SslContext serverContext() throws CertificateException, SSLException {
+        SslContext context = serverContext;
+        if (context == null) {
+            synchronized (this) {
+                if (serverContext == null)
+                    serverContext = createServerContext();
+                context = serverContext;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Get the context for the client side, it is created on the first call
+     * Clients have to pass host and port to SslContext.newHandler, so sessions can be resumed
+     *
+     * @return shared client context
+     * @throws SSLException if the key material could not be loaded or the context could not be created
+     */
+    public SslContext clientContext() throws SSLException {
+        SslContext context = clientContext;
+        if (context == null) {
+            synchronized (this) {
+                if (clientContext == null)
+                    clientContext = createClientContext();
+                context = clientContext;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Create the TLS handler of a client connection from the shared client context
+     * The host name of the server is verified against its certificate unless all certificates are trusted
+     *
+     * @param alloc allocator of the channel
+     * @param host host name of the server
+     * @param port port of the server
+     * @return new handler
+     * @throws SSLException if the key material could not be loaded or the context could not be created
+     */
+    public SslHandler newClientHandler(ByteBufAllocator alloc, String host, int port) throws SSLException {
+        SslHandler handler = clientContext().newHandler(alloc, host, port);
+        if (!trustInsecure) {
+            SSLEngine engine = handler.engine();
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return handler;
+    }
+
+    /**
+     * Create the context for the server side
+     *
+     * @return new server context
+     */
+    private SslContext createServerContext() throws CertificateException, SSLException {
+        SslContextBuilder builder;
+        if (keyStoreFile != null) {
+            builder = SslContextBuilder.forServer(keyManagerFactory());
+        } else if (certChainFile != null) {
+            builder = SslContextBuilder.forServer(certChainFile, keyFile, keyPassword);
+        } else {
+            SelfSignedCertificate certificate = selfSignedCertificate();
+            builder = SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey());
+        }
+        return configure(builder);
+    }
+
+    /**
+     * Create the context for the client side
+     *
+     * @return new client context
+     */
+    private SslContext createClientContext() throws SSLException {
+        SslContextBuilder builder = SslContextBuilder.forClient();
+        if (keyStoreFile != null)
+            builder.keyManager(keyManagerFactory());
+        else if (certChainFile != null)
+            builder.keyManager(certChainFile, keyFile, keyPassword);
+        if (trustInsecure)
+            builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+        else
+            builder.trustManager(trustManagerFactory());
+        return configure(builder);
+    }
+
+    /**
+     * Apply the settings shared by both sides and create the context
+     *
+     * @param builder builder with the key material of the side
+     * @return new context
+     */
+    private SslContext configure(SslContextBuilder builder) throws SSLException {
+        boolean useOpenSsl = isOpenSsl();
+        builder.sslProvider(useOpenSsl ? SslProvider.OPENSSL : SslProvider.JDK)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeout);
+        if (protocols != null)
+            builder.protocols(protocols);
+        SslContext context = builder.build();
+
+        if (useOpenSsl) {
+            OpenSslSessionContext sessionContext = (OpenSslSessionContext) context.sessionContext();
+            sessionContext.setSessionCacheEnabled(true);
+            if (ticketKeys != null && context.isServer())
+                sessionContext.setTicketKeys(ticketKeys());
+        }
+        return context;
+    }
+
+    /**
+     * Split the configured ticket keys into the keys of OpenSSL
+     *
+     * @return ticket keys (name, HMAC secret and AES key of 16 bytes each)
+     */
+    private OpenSslSessionTicketKey[] ticketKeys() {
+        OpenSslSessionTicketKey[] keys = new OpenSslSessionTicketKey[ticketKeys.length / 48];
+        for (int i = 0; i < keys.length; i++) {
+            int offset = i * 48;
+            keys[i] = new OpenSslSessionTicketKey(Arrays.copyOfRange(ticketKeys, offset, offset + 16),
+                    Arrays.copyOfRange(ticketKeys, offset + 16, offset + 32),
+                    Arrays.copyOfRange(ticketKeys, offset + 32, offset + 48));
+        }
+        return keys;
+    }
+
+    /**
+     * Load the key manager from the key store
+     *
+     * @return key manager factory
+     */
+    private KeyManagerFactory keyManagerFactory() throws SSLException {
+        try {
+            KeyStore keyStore = loadKeyStore(keyStoreFile, keyStoreType, keyStorePassword);
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(keyStore, keyStorePassword);
+            return factory;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new SSLException("Could not load key store " + keyStoreFile, e);
+        }
+    }
+
+    /**
+     * Load the trust manager from the trusted certificates or the trust store
+     *
+     * @return trust manager factory (null for the default trust of the JVM)
+     */
+    private TrustManagerFactory trustManagerFactory() throws SSLException {
+        if (trustStoreFile == null && trustCertFile == null)
+            return null;
+        try {
+            KeyStore trustStore;
+            if (trustStoreFile != null) {
+                trustStore = loadKeyStore(trustStoreFile, trustStoreType, trustStorePassword);
+            } else {
+                trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+                trustStore.load(null, null);
+                try (InputStream in = new FileInputStream(trustCertFile)) {
+                    int i = 0;
+                    for (Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(in))
+                        trustStore.setCertificateEntry("trusted-" + i++, certificate);
+                }
+            }
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(trustStore);
+            return factory;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new SSLException("Could not load trusted certificates", e);
+        }
+    }
+
+    /**
+     * Load a key store from a file
+     *
+     * @param file key store file
+     * @param type type of the key store
+     * @param password password of the key store (may be null)
+     * @return loaded key store
+     */
+    private static KeyStore loadKeyStore(File file, String type, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream in = new FileInputStream(file)) {
+            keyStore.load(in, password);
+        }
+        return keyStore;
+    }
+
+    /**
+     * Get the self-signed certificate of this JVM, it is created on the first call
+     *
+     * @return self-signed certificate
+     */
+    private static synchronized SelfSignedCertificate selfSignedCertificate() throws CertificateException {
+        if (selfSignedCertificate == null)
+            selfSignedCertificate = new SelfSignedCertificate();
+        return selfSignedCertificate;
+    }
+
+    /**
+     * Builder for SslConfig
+     */
+    public static class Builder {
+        private File certChainFile;
+        private File keyFile;
+        private String keyPassword;
+        private File keyStoreFile;
+        private String keyStoreType;
+        private char[] keyStorePassword;
+        private File trustCertFile;
+        private File trustStoreFile;
+        private String trustStoreType;
+        private char[] trustStorePassword;
+        private boolean trustInsecure;
+        private boolean openSsl = true;
+        private long sessionCacheSize = 0;
+        private long sessionTimeout = 0;
+        private byte[] ticketKeys;
+        private String[] protocols;
+
+        private Builder() {
+        }
+
+        /**
+         * Use a certificate chain and key from PEM files
+         *
+         * @param certChainFile X.509 certificate chain in PEM format
+         * @param keyFile PKCS#8 private key in PEM format
+         * @param keyPassword password of the key (null if it is not encrypted)
+         * @return this builder
+         */
+        public Builder keyCertChain(File certChainFile, File keyFile, String keyPassword) {
+            this.certChainFile = certChainFile;
+            this.keyFile = keyFile;
+            this.keyPassword = keyPassword;
+            this.keyStoreFile = null;
+            return this;
+        }
+
+        /**
+         * Use the key and certificate chain from a key store
+         *
+         * @param keyStoreFile key store file
+         * @param type type of the key store (e.g. PKCS12 or JKS)
+         * @param password password of the key store and its key
+         * @return this builder
+         */
+        public Builder keyStore(File keyStoreFile, String type, char[] password) {
+            this.keyStoreFile = keyStoreFile;
+            this.keyStoreType = type;
+            this.keyStorePassword = password == null ? null : password.clone();
+            this.certChainFile = null;
+            return this;
+        }
+
+        /**
+         * Trust the certificates in a PEM file instead of the default certificate authorities
+         *
+         * @param trustCertFile X.509 certificates in PEM format
+         * @return this builder
+         */
+        public Builder trustCertificates(File trustCertFile) {
+            this.trustCertFile = trustCertFile;
+            this.trustStoreFile = null;
+            return this;
+        }
+
+        /**
+         * Trust the certificates in a key store instead of the default certificate authorities
+         *
+         * @param trustStoreFile trust store file
+         * @param type type of the trust store (e.g. PKCS12 or JKS)
+         * @param password password of the trust store (may be null)
+         * @return this builder
+         */
+        public Builder trustStore(File trustStoreFile, String type, char[] password) {
+            this.trustStoreFile = trustStoreFile;
+            this.trustStoreType = type;
+            this.trustStorePassword = password == null ? null : password.clone();
+            this.trustCertFile = null;
+            return this;
+        }
+
+        /**
+         * Let clients accept any server certificate
+         * Only meant for tests with self-signed certificates, it gives no protection against attackers in between
+         *
+         * @param trustInsecure true to accept any certificate
+         * @return this builder
+         */
+        public Builder trustInsecure(boolean trustInsecure) {
+            this.trustInsecure = trustInsecure;
+            return this;
+        }
+
+        /**
+         * Use the OpenSSL provider if netty-tcnative is available (enabled by default)
+         * It handshakes considerably faster than the provider of the JDK
+         *
+         * @param openSsl true to prefer OpenSSL
+         * @return this builder
+         */
+        public Builder openSsl(boolean openSsl) {
+            this.openSsl = openSsl;
+            return this;
+        }
+
+        /**
+         * Number of TLS sessions cached for resumption
+         *
+         * @param sessionCacheSize number of sessions (0 for the default of the provider)
+         * @return this builder
+         */
+        public Builder sessionCacheSize(long sessionCacheSize) {
+            if (sessionCacheSize < 0) {
+                throw new IllegalArgumentException("Session cache size must not be negative");
+            }
+            this.sessionCacheSize = sessionCacheSize;
+            return this;
+        }
+
+        /**
+         * Time cached TLS sessions can be resumed
+         *
+         * @param sessionTimeout timeout in seconds (0 for the default of the provider)
+         * @return this builder
+         */
+        public Builder sessionTimeout(long sessionTimeout) {
+            if (sessionTimeout < 0) {
+                throw new IllegalArgumentException("Session timeout must not be negative");
+            }
+            this.sessionTimeout = sessionTimeout;
+            return this;
+        }
+
+        /**
+         * Keys the server encrypts session tickets with (OpenSSL only, build fails without it)
+         * Servers sharing the keys can resume the sessions of each other; otherwise random keys are used per context
+         *
+         * @param ticketKeys multiple of 48 bytes (name, HMAC secret and AES key of 16 bytes each per key)
+         * @return this builder
+         */
+        public Builder ticketKeys(byte[] ticketKeys) {
+            if (ticketKeys != null && (ticketKeys.length == 0 || ticketKeys.length % 48 != 0)) {
+                throw new IllegalArgumentException("Ticket keys have to be a multiple of 48 bytes");
+            }
+            this.ticketKeys = ticketKeys == null ? null : ticketKeys.clone();
+            return this;
+        }
+
+        /**
+         * Restrict the enabled protocols
+         *
+         * @param protocols protocol names, e.g. TLSv1.3 and TLSv1.2 (null for the defaults of the provider)
+         * @return this builder
+         */
+        public Builder protocols(String... protocols) {
+            this.protocols = protocols == null ? null : protocols.clone();
+            return this;
+        }
+
+        /**
+         * Create the config
+         *
+         * @return config with the settings of this builder
+         * @throws IllegalStateException if ticket keys are set but the OpenSSL provider is disabled or not available
+         */
+        public SslConfig build() {
+            if (ticketKeys != null && !(openSsl && OpenSsl.isAvailable())) {
+                throw new IllegalStateException("Ticket keys are only supported by the OpenSSL provider");
+            }
+            return new SslConfig(this);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package de.gfolder.safeCommLib;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.logging.LogLevel;
+
+/**
+ * safeCommLib
+ *
+ * Transport settings (event loops, channel types and socket options) for servers and clients.
+ * Instances are immutable and created by the builder:
+ *
+ * <pre>
+ * TransportConfig config = TransportConfig.builder().workerThreads(4).tcpNoDelay(true).build();
+ * </pre>
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class TransportConfig {
+
+    private final boolean nativeTransport;
+    private final int acceptorThreads;
+    private final int workerThreads;
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int writeBufferLowWaterMark;
+    private final int writeBufferHighWaterMark;
+    private final ByteBufAllocator allocator;
+    private final EventLoopGroup eventLoopGroup;
+    private final LogLevel acceptorLogLevel;
+
+    private TransportConfig(Builder builder) {
+        this.nativeTransport = builder.nativeTransport;
+        this.acceptorThreads = builder.acceptorThreads;
+        this.workerThreads = builder.workerThreads;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.writeBufferLowWaterMark = builder.writeBufferLowWaterMark;
+        this.writeBufferHighWaterMark = builder.writeBufferHighWaterMark;
+        this.allocator = builder.allocator;
+        this.eventLoopGroup = builder.eventLoopGroup;
+        this.acceptorLogLevel = builder.acceptorLogLevel;
+    }
+
+    /**
+     * Create a builder with default settings
+     *
+     * @return new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get the default settings (native transport if available, default thread counts and socket options)
+     *
+     * @return config with default settings
+     */
+    public static TransportConfig defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * Check whether the native epoll transport can be used on this system
+     *
+     * @return true if epoll is available
+     */
+    public static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (Throwable e) {
+            //Native transport classes are not on the classpath
+            return false;
+        }
+    }
+
+    /**
+     * Check whether the native transport is used
+     *
+     * @return true if the native transport was requested and is available
+     */
+    public boolean useEpoll() {
+        return nativeTransport && isEpollAvailable();
+    }
+
+    /**
+     * Getter for property 'acceptorThreads'.
+     *
+     * @return Value for property 'acceptorThreads'.
+     */
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    /**
+     * Getter for property 'workerThreads'.
+     *
+     * @return Value for property 'workerThreads' (0 for the Netty default).
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Getter for property 'eventLoopGroup'.
+     *
+     * @return shared event loop group to use instead of creating one (null if there is none)
+     */
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * Getter for property 'acceptorLogLevel'.
+     *
+     * @return level to log acceptor events with (null to log nothing)
+     */
+    public LogLevel getAcceptorLogLevel() {
+        return acceptorLogLevel;
+    }
+
+    /**
+     * Get the number of server sockets to bind (several ones share the port with SO_REUSEPORT)
+     *
+     * @return number of server sockets
+     */
+    public int getAcceptorCount() {
+        return useEpoll() ? acceptorThreads : 1;
+    }
+
+    /**
+     * Create a new event loop group matching the transport
+     *
+     * @param threads number of threads (0 for the Netty default)
+     * @return the new event loop group
+     */
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        if (useEpoll())
+            return new EpollEventLoopGroup(threads);
+        return new NioEventLoopGroup(threads);
+    }
+
+    /**
+     * Get the server channel type matching the transport
+     *
+     * @return server channel class
+     */
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return useEpoll() ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * Get the client channel type matching the transport
+     *
+     * @return client channel class
+     */
+    public Class<? extends SocketChannel> socketChannelClass() {
+        return useEpoll() ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * Apply the socket options to a server bootstrap
+     *
+     * @param bootstrap bootstrap to configure
+     */
+    public void apply(ServerBootstrap bootstrap) {
+        if (getAcceptorCount() > 1)
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        if (allocator != null) {
+            bootstrap.option(ChannelOption.ALLOCATOR, allocator);
+            bootstrap.childOption(ChannelOption.ALLOCATOR, allocator);
+        }
+        bootstrap.childOption(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0)
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+        if (receiveBufferSize > 0)
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        if (writeBufferHighWaterMark > 0)
+            bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                    new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark));
+    }
+
+    /**
+     * Apply the socket options to a client bootstrap
+     *
+     * @param bootstrap bootstrap to configure
+     */
+    public void apply(Bootstrap bootstrap) {
+        if (allocator != null)
+            bootstrap.option(ChannelOption.ALLOCATOR, allocator);
+        bootstrap.option(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0)
+            bootstrap.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+        if (receiveBufferSize > 0)
+            bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        if (writeBufferHighWaterMark > 0)
+            bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                    new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark));
+    }
+
+    /**
+     * Builder for TransportConfig
+     */
+    public static class Builder {
+        private boolean nativeTransport = true;
+        private int acceptorThreads = 1;
+        private int workerThreads = 0;
+        private boolean tcpNoDelay = true;
+        private int sendBufferSize = 0;
+        private int receiveBufferSize = 0;
+        private int writeBufferLowWaterMark = 0;
+        private int writeBufferHighWaterMark = 0;
+        private ByteBufAllocator allocator = null;
+        private EventLoopGroup eventLoopGroup = null;
+        private LogLevel acceptorLogLevel = null;
+
+        private Builder() {
+        }
+
+        /**
+         * Use the native epoll transport if available (falls back to NIO otherwise)
+         *
+         * @param nativeTransport true to prefer the native transport
+         * @return this builder
+         */
+        public Builder nativeTransport(boolean nativeTransport) {
+            this.nativeTransport = nativeTransport;
+            return this;
+        }
+
+        /**
+         * Number of acceptor threads of a server
+         * With the native transport, one server socket per thread is bound to the port using SO_REUSEPORT
+         *
+         * @param acceptorThreads number of acceptor threads
+         * @return this builder
+         */
+        public Builder acceptorThreads(int acceptorThreads) {
+            if (acceptorThreads < 1) {
+                throw new IllegalArgumentException("At least one acceptor thread is needed");
+            }
+            this.acceptorThreads = acceptorThreads;
+            return this;
+        }
+
+        /**
+         * Number of worker threads handling the connections
+         *
+         * @param workerThreads number of threads (0 for the Netty default of twice the number of cores)
+         * @return this builder
+         */
+        public Builder workerThreads(int workerThreads) {
+            if (workerThreads < 0) {
+                throw new IllegalArgumentException("Number of worker threads must not be negative");
+            }
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * Enable or disable Nagle's algorithm (TCP_NODELAY)
+         *
+         * @param tcpNoDelay true to send small frames immediately
+         * @return this builder
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * Sizes of the socket buffers (SO_SNDBUF / SO_RCVBUF)
+         *
+         * @param sendBufferSize size of the send buffer in bytes (0 for the system default)
+         * @param receiveBufferSize size of the receive buffer in bytes (0 for the system default)
+         * @return this builder
+         */
+        public Builder socketBuffers(int sendBufferSize, int receiveBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * Water marks of the outbound buffer of each channel
+         * Sending messages pauses above the high water mark until the buffer drained below the low one
+         *
+         * @param low low water mark in bytes
+         * @param high high water mark in bytes
+         * @return this builder
+         */
+        public Builder writeBufferWaterMark(int low, int high) {
+            if (low < 0 || high < low) {
+                throw new IllegalArgumentException("Invalid water marks");
+            }
+            this.writeBufferLowWaterMark = low;
+            this.writeBufferHighWaterMark = high;
+            return this;
+        }
+
+        /**
+         * Allocator for the buffers of all channels
+         *
+         * @param allocator allocator to use (null for the Netty default)
+         * @return this builder
+         */
+        public Builder allocator(ByteBufAllocator allocator) {
+            this.allocator = allocator;
+            return this;
+        }
+
+        /**
+         * Event loop group shared with other servers or clients
+         * The group is used for the connections instead of creating a new one and is not shut down on close
+         *
+         * @param eventLoopGroup shared group (has to match the transport, see TransportConfig.newEventLoopGroup)
+         * @return this builder
+         */
+        public Builder eventLoopGroup(EventLoopGroup eventLoopGroup) {
+            this.eventLoopGroup = eventLoopGroup;
+            return this;
+        }
+
+        /**
+         * Log events of the acceptor channel
+         *
+         * @param acceptorLogLevel level to log with (null to log nothing)
+         * @return this builder
+         */
+        public Builder acceptorLogLevel(LogLevel acceptorLogLevel) {
+            this.acceptorLogLevel = acceptorLogLevel;
+            return this;
+        }
+
+        /**
+         * Create the config
+         *
+         * @return config with the settings of this builder
+         */
+        public TransportConfig build() {
+            return new TransportConfig(this);
+        }
+    }
+}
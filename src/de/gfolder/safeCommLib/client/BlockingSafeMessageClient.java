@@ -0,0 +1,293 @@
+package de.gfolder.safeCommLib.client;
+
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.messageHandler.BinaryMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.Dispatchers;
+import de.gfolder.safeCommLib.messageHandler.JSONMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.MessageHandler;
+import io.netty.channel.Channel;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedChannelException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * safeCommLib
+ *
+ * Blocking facade of a SafeMessageClient for sequential code, e.g. one virtual thread per worker:
+ *
+ * <pre>
+ * BlockingSafeMessageClient client = new BlockingSafeMessageClient("ws://127.0.0.1:8080/websocket", false);
+ * client.connect();
+ * client.sendAndAwaitAck("request", 5, TimeUnit.SECONDS);
+ * SafeMessage answer = client.take();
+ * client.close();
+ * </pre>
+ *
+ * Messages are sent and acknowledged exactly like with the underlying client. Received messages are queued
+ * in order until they are taken. While the queue is full, reading from the connection pauses, so the server
+ * is slowed down instead of messages piling up.
+ * Waiting only uses java.util.concurrent locks and futures, so virtual threads are parked instead of pinning
+ * their carrier thread.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class BlockingSafeMessageClient {
+
+    /**
+     * Default number of received messages queued until they are taken
+     */
+    public static int RECEIVE_QUEUE_CAPACITY = 1024;
+
+    //Queued once the client is closed, so waiting threads wake up
+    private static final SafeMessage CLOSED = new SafeMessage(-1, 0, 0, "", SafeMessage.Type.MESSAGE);
+
+    private final SafeMessageClient client;
+    private final BlockingQueue<SafeMessage> received;
+    //Free places in the queue, it holds one more for the marker of a closed client
+    private final Semaphore space;
+    private final int receiveQueueCapacity;
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     * Received messages are queued by a virtual thread (or a pooled thread on JVMs without virtual threads)
+     *
+     * @param url URL the server is bound to (must be of scheme ws:// or wss://)
+     * @param binary true to use the binary encoding, false for JSON (has to match the server)
+     * @throws URISyntaxException
+     */
+    public BlockingSafeMessageClient(String url, boolean binary) throws URISyntaxException {
+        this(url, binary, RECEIVE_QUEUE_CAPACITY, Dispatchers.virtualThreadPerConnection());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param url URL the server is bound to (must be of scheme ws:// or wss://)
+     * @param binary true to use the binary encoding, false for JSON (has to match the server)
+     * @param receiveQueueCapacity number of received messages queued until they are taken
+     * @param dispatchExecutor executor queuing the received messages (waits while the queue is full)
+     * @throws URISyntaxException
+     */
+    public BlockingSafeMessageClient(String url, boolean binary, int receiveQueueCapacity, Executor dispatchExecutor)
+            throws URISyntaxException {
+        if (receiveQueueCapacity < 1) {
+            throw new IllegalArgumentException("Receive queue must hold at least one message");
+        }
+        this.receiveQueueCapacity = receiveQueueCapacity;
+        received = new LinkedBlockingQueue<>(receiveQueueCapacity + 1);
+        space = new Semaphore(receiveQueueCapacity);
+        MessageHandler<?> messageHandler = binary ? new BinaryMessageHandler() {
+            @Override
+            public void handleReceived(SafeMessage message, Channel channel) {
+                queue(message);
+            }
+        } : new JSONMessageHandler() {
+            @Override
+            public void handleReceived(SafeMessage message, Channel channel) {
+                queue(message);
+            }
+        };
+        messageHandler.setDispatchExecutor(dispatchExecutor);
+        client = new SafeMessageClient(url, messageHandler);
+    }
+
+    /**
+     * Getter for property 'client'.
+     * Use it to configure the connection (transport, compression, auto reconnect) before connecting
+     *
+     * @return the underlying client
+     */
+    public SafeMessageClient getClient() {
+        return client;
+    }
+
+    /**
+     * Connect to the server, waiting until the handshake is complete
+     *
+     * @throws InterruptedException
+     * @throws CertificateException
+     * @throws SSLException
+     */
+    public void connect() throws InterruptedException, CertificateException, SSLException {
+        client.init();
+    }
+
+    /**
+     * Send a message without waiting
+     *
+     * @param msg message to send
+     * @return future completed with the sequence number once the server acknowledged the message
+     */
+    public CompletableFuture<Long> send(String msg) {
+        return client.sendMessage(msg);
+    }
+
+    /**
+     * Send a binary message without waiting
+     *
+     * @param msg binary message to send
+     * @return future completed with the sequence number once the server acknowledged the message
+     */
+    public CompletableFuture<Long> send(byte[] msg) {
+        return client.sendMessage(msg);
+    }
+
+    /**
+     * Send a message and wait until the server acknowledged it
+     * If the wait times out, the message is still sent and may arrive later
+     *
+     * @param msg message to send
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return sequence number of the message
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws TimeoutException if the message was not acknowledged in time
+     * @throws IOException if the message was rejected or the connection was closed before the acknowledgement
+     */
+    public long sendAndAwaitAck(String msg, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException, IOException {
+        return await(client.sendMessage(msg), timeout, unit);
+    }
+
+    /**
+     * Send a binary message and wait until the server acknowledged it
+     * If the wait times out, the message is still sent and may arrive later
+     *
+     * @param msg binary message to send
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return sequence number of the message
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws TimeoutException if the message was not acknowledged in time
+     * @throws IOException if the message was rejected or the connection was closed before the acknowledgement
+     */
+    public long sendAndAwaitAck(byte[] msg, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException, IOException {
+        return await(client.sendMessage(msg), timeout, unit);
+    }
+
+    /**
+     * Wait for the acknowledgement of a sent message
+     *
+     * @param future future of the message
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return sequence number of the message
+     */
+    private long await(CompletableFuture<Long> future, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException, IOException {
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException)
+                throw (TimeoutException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Take the next received message, waiting until one arrives
+     *
+     * @return received message
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws ClosedChannelException if the client was closed
+     */
+    public SafeMessage take() throws InterruptedException, ClosedChannelException {
+        return checkClosed(received.take());
+    }
+
+    /**
+     * Take the next received message, waiting up to the given time for one to arrive
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return received message (null if none arrived in time)
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws ClosedChannelException if the client was closed
+     */
+    public SafeMessage poll(long timeout, TimeUnit unit) throws InterruptedException, ClosedChannelException {
+        SafeMessage message = received.poll(timeout, unit);
+        return message == null ? null : checkClosed(message);
+    }
+
+    /**
+     * Take the next received message if there is one
+     *
+     * @return received message (null if none is waiting)
+     * @throws ClosedChannelException if the client was closed
+     */
+    public SafeMessage poll() throws ClosedChannelException {
+        SafeMessage message = received.poll();
+        return message == null ? null : checkClosed(message);
+    }
+
+    /**
+     * Throw if the marker of a closed client was taken, it is put back for the other waiting threads
+     *
+     * @param message taken message
+     * @return the message
+     * @throws ClosedChannelException if the marker was taken
+     */
+    private SafeMessage checkClosed(SafeMessage message) throws ClosedChannelException {
+        if (message == CLOSED) {
+            received.offer(CLOSED);
+            throw new ClosedChannelException();
+        }
+        space.release();
+        return message;
+    }
+
+    /**
+     * Queue a received message, waiting while the queue is full
+     * Runs on the dispatch executor
+     *
+     * @param message received message
+     */
+    private void queue(SafeMessage message) {
+        try {
+            space.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!closed)
+            received.add(message);
+    }
+
+    /**
+     * Close the connection, waiting for the closing handshake
+     * Messages received so far can still be taken, afterwards take and poll throw a ClosedChannelException
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            client.requestClosing();
+        } finally {
+            client.close();
+            received.add(CLOSED);
+            //Wake up a dispatch thread waiting for space, it drops its message
+            space.release(receiveQueueCapacity);
+        }
+    }
+}
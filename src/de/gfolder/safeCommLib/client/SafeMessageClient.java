@@ -1,27 +1,38 @@
 package de.gfolder.safeCommLib.client;
 
-import de.gfolder.safeCommLib.SSLInitializer;
+import de.gfolder.safeCommLib.CompressionConfig;
+import de.gfolder.safeCommLib.SessionHeaders;
+import de.gfolder.safeCommLib.SslConfig;
+import de.gfolder.safeCommLib.TransportConfig;
+import de.gfolder.safeCommLib.messageHandler.DeliveryListener;
 import de.gfolder.safeCommLib.messageHandler.MessageHandler;
+import de.gfolder.safeCommLib.metrics.MessageMetrics;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
-import io.netty.handler.ssl.SslContext;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketClientExtensionHandler;
 
 import javax.net.ssl.SSLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * safeCommLib
@@ -32,30 +43,131 @@ import java.security.cert.CertificateException;
 public class SafeMessageClient {
 
     private URI uri;
-    private SslContext sslCtx;
+    private SslConfig clientSslConfig;
     private String host;
     private int port;
     private boolean ssl;
-    private Channel ch;
+    private SslConfig sslConfig;
+    private volatile Channel ch;
+    private TransportConfig transportConfig;
+    private CompressionConfig compressionConfig;
+    private int maxFrameSize = MessageHandler.MAX_FRAME_SIZE;
     private EventLoopGroup group;
-    private MessageHandler<String> messageHandler;
+    private Bootstrap bootstrap;
+    private MessageHandler<?> messageHandler;
+    private volatile String sessionId;
+    private volatile boolean closing;
+    private boolean connected;
+    private volatile boolean autoReconnect;
+    private long reconnectDelayInitial = RECONNECT_DELAY_INITIAL;
+    private long reconnectDelayMax = RECONNECT_DELAY_MAX;
+    private int reconnectAttempts;
+    private volatile ScheduledFuture<?> reconnectTimer;
+
+    /**
+     * Default upper limit in milliseconds of the delay before the first reconnect attempt
+     */
+    public static long RECONNECT_DELAY_INITIAL = 100;
+
+    /**
+     * Default upper limit in milliseconds of the delay between two reconnect attempts
+     */
+    public static long RECONNECT_DELAY_MAX = 30000;
 
     /**
      * Getter for property 'messageHandler'.
      *
      * @return Value for property 'messageHandler'.
      */
-    public MessageHandler<String> getMessageHandler() {
+    public MessageHandler<?> getMessageHandler() {
         return messageHandler;
     }
 
+    /**
+     * Getter for property 'sessionId'.
+     *
+     * @return id of the current session (null if the server does not support sessions or no connection was made yet)
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Setter for property 'autoReconnect'.
+     * If set, the client reconnects on its own after the connection broke up and resumes the session.
+     * Messages sent while offline are queued (up to the pending limit of the message handler)
+     * and sent in order once the connection is back.
+     *
+     * @param autoReconnect Value to set for property 'autoReconnect'.
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * Set the delays between reconnect attempts
+     * The limit doubles with every failed attempt, the actual delay is chosen at random below the limit
+     *
+     * @param initialDelay limit of the delay before the first attempt in milliseconds
+     * @param maxDelay maximum limit of the delay in milliseconds
+     */
+    public void setReconnectDelay(long initialDelay, long maxDelay) {
+        if (initialDelay < 1 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid reconnect delay");
+        }
+        this.reconnectDelayInitial = initialDelay;
+        this.reconnectDelayMax = maxDelay;
+    }
+
+    /**
+     * Setter for property 'transportConfig'.
+     * Has to be set before calling init. Clients sharing one event loop group should get
+     * a config with that group (see TransportConfig.Builder.eventLoopGroup)
+     *
+     * @param transportConfig Value to set for property 'transportConfig'.
+     */
+    public void setTransportConfig(TransportConfig transportConfig) {
+        this.transportConfig = transportConfig;
+    }
+
+    /**
+     * Setter for property 'compressionConfig'.
+     * Compression is offered to the server with the next connection and only used if the server accepts it
+     *
+     * @param compressionConfig Value to set for property 'compressionConfig' (null to disable compression).
+     */
+    public void setCompressionConfig(CompressionConfig compressionConfig) {
+        this.compressionConfig = compressionConfig;
+    }
+
+    /**
+     * Setter for property 'sslConfig'.
+     * Has to be set before calling init, only used for wss:// URLs.
+     * Clients sharing a config share its SslContext, so reconnecting clients can resume their TLS sessions.
+     *
+     * @param sslConfig TLS settings (null for the shared default config trusting the default certificate authorities)
+     */
+    public void setSslConfig(SslConfig sslConfig) {
+        this.sslConfig = sslConfig;
+    }
+
+    /**
+     * Setter for property 'maxFrameSize'.
+     * Larger frames close the connection, so it has to be large enough for the batches and fragments the server sends
+     *
+     * @param maxFrameSize maximum payload length in bytes of a received frame
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
     /**
      * Constructor
      *
      * @param url URL the server is bound to (must be of scheme ws:// or wss://
      * @throws URISyntaxException
      */
-    public SafeMessageClient(String url, MessageHandler<String> messageHandler) throws URISyntaxException {
+    public SafeMessageClient(String url, MessageHandler<?> messageHandler) throws URISyntaxException {
         this.messageHandler = messageHandler;
 
         uri = new URI(url);
@@ -68,26 +180,64 @@ public class SafeMessageClient {
         }
 
         ssl = "wss".equalsIgnoreCase(scheme);
+        transportConfig = TransportConfig.defaults();
     }
 
     /**
      * Initialize connection
+     * Calling it again after the connection broke up reconnects with a new session,
+     * messages that were not acknowledged before have been failed already.
+     * With auto reconnect, the session is resumed instead and a failed first attempt is retried in the background as well.
      *
      * @throws InterruptedException
      * @throws CertificateException
      * @throws SSLException
      */
     public void init() throws InterruptedException, CertificateException, SSLException {
-        /**
-         * Init SSL Context if secure scheme was chosen
-         */
-        if (ssl) {
-            sslCtx = SSLInitializer.getContext();
-        } else {
-            sslCtx = null;
+        closing = false;
+        if (bootstrap == null) {
+            /**
+             * Init SSL Context if secure scheme was chosen
+             */
+            if (ssl) {
+                clientSslConfig = sslConfig != null ? sslConfig : SslConfig.defaults();
+                //Create the context right away, so broken key material fails here instead of on connect
+                clientSslConfig.clientContext();
+            } else {
+                clientSslConfig = null;
+            }
+
+            group = transportConfig.getEventLoopGroup() != null ?
+                    transportConfig.getEventLoopGroup() : transportConfig.newEventLoopGroup(0);
+
+            bootstrap = new Bootstrap();
+            bootstrap.group(group)
+                    .channel(transportConfig.socketChannelClass());
+            transportConfig.apply(bootstrap);
         }
 
-        group = new NioEventLoopGroup();
+        ChannelFuture connectFuture = connect().await();
+        if (!connectFuture.isSuccess() && autoReconnect) {
+            //Queue messages until one of the following attempts succeeds
+            messageHandler.detach();
+            scheduleReconnect();
+            return;
+        }
+        ch = connectFuture.sync().channel();
+        ch.pipeline().get(SafeMessageClientHandler.class).handshakeFuture().sync();
+    }
+
+    /**
+     * Open a new connection, the handshake asks to resume the current session (if any)
+     *
+     * @return future of the connection attempt
+     */
+    private ChannelFuture connect()
+    {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        if (sessionId != null)
+            headers.set(SessionHeaders.SESSION, sessionId);
+        final CompressionConfig compression = compressionConfig;
 
         // Connect with V13 (RFC 6455 aka HyBi-17). You can change it to V08 or V00.
         // If you change it to V00, ping is not supported and remember to change
@@ -95,28 +245,106 @@ public class SafeMessageClient {
         final SafeMessageClientHandler handler =
                 new SafeMessageClientHandler(
                         WebSocketClientHandshakerFactory.newHandshaker(
-                                uri, WebSocketVersion.V13, null, false, new DefaultHttpHeaders()), this);
+                                uri, WebSocketVersion.V13, null, compression != null, headers, maxFrameSize), this);
 
-        Bootstrap b = new Bootstrap();
-        b.group(group)
-                .channel(NioSocketChannel.class)
+        return bootstrap.clone()
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
-                    protected void initChannel(SocketChannel ch) {
+                    protected void initChannel(SocketChannel ch) throws SSLException {
                         ChannelPipeline p = ch.pipeline();
-                        if (sslCtx != null) {
-                            p.addLast(sslCtx.newHandler(ch.alloc(), host, port));
+                        if (clientSslConfig != null) {
+                            p.addLast(clientSslConfig.newClientHandler(ch.alloc(), host, port));
                         }
                         p.addLast(
                                 new HttpClientCodec(),
-                                new HttpObjectAggregator(8192),
-                                handler);
+                                new HttpObjectAggregator(8192));
+                        if (compression != null) {
+                            p.addLast(new WebSocketClientExtensionHandler(compression.newClientHandshaker()));
+                        }
+                        p.addLast(handler);
+                    }
+                })
+                .connect(uri.getHost(), port);
+    }
+
+    /**
+     * Schedule the next reconnect attempt on the event loop
+     * The delay is drawn at random up to an exponentially growing limit (full jitter),
+     * so clients that lost their connections at the same moment do not reconnect at the same moment
+     */
+    private void scheduleReconnect()
+    {
+        if (!autoReconnect || closing)
+            return;
+
+        long limit = Math.min(reconnectDelayMax, reconnectDelayInitial << Math.min(reconnectAttempts++, 30));
+        long delay = ThreadLocalRandom.current().nextLong(limit + 1);
+        reconnectTimer = group.next().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (closing)
+                    return;
+                connect().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        if (future.isSuccess())
+                            ch = future.channel();
+                        else
+                            scheduleReconnect();
                     }
                 });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Attach the message handler to the connection once the handshake is complete
+     * The session is resumed if the server still knew it, otherwise a new one is started
+     * Messages queued while offline are sent in order afterwards
+     * Runs on the event loop of the channel
+     *
+     * @param channel connected channel
+     * @param response handshake response of the server
+     */
+    void handshakeCompleted(Channel channel, FullHttpResponse response)
+    {
+        String newSessionId = response.headers().get(SessionHeaders.SESSION);
+        boolean resumed = newSessionId != null && newSessionId.equals(sessionId)
+                && Boolean.parseBoolean(response.headers().get(SessionHeaders.RESUMED));
+        if (!resumed && connected)
+            messageHandler.resetSession();
+        sessionId = newSessionId;
+        connected = true;
+        reconnectAttempts = 0;
 
-        ch = b.connect(uri.getHost(), port).sync().channel();
-        messageHandler.setChannel(ch);
-        handler.handshakeFuture().sync();
+        messageHandler.setChannel(channel);
+        if (resumed)
+            messageHandler.resume();
+        else
+            messageHandler.attach();
+    }
+
+    /**
+     * Detach the message handler from a broken connection
+     * Buffered messages are only kept if the client reconnects on its own,
+     * otherwise they are failed and the session is dropped, so a later init() starts a new one
+     * Runs on the event loop of the channel
+     */
+    void connectionLost()
+    {
+        if (closing) {
+            messageHandler.clearBuffers();
+            return;
+        }
+        messageHandler.getMetrics().breakup();
+        if (autoReconnect) {
+            messageHandler.detach();
+            scheduleReconnect();
+        } else {
+            //Cleared messages would leave a gap the server waits for, so the session can not be resumed
+            sessionId = null;
+            messageHandler.clearBuffers();
+        }
     }
 
     /**
@@ -125,10 +353,25 @@ public class SafeMessageClient {
      */
     public void requestClosing() throws InterruptedException
     {
+        closing = true;
+        Channel ch = this.ch;
+        if (ch == null)
+            return;
         ch.writeAndFlush(new CloseWebSocketFrame());
         ch.closeFuture().sync();
     }
 
+    /**
+     * Get the metrics of the connection
+     * They are kept across reconnects of the client
+     *
+     * @return metrics of the message handler
+     */
+    public MessageMetrics getMetrics()
+    {
+        return messageHandler.getMetrics();
+    }
+
     /**
      * Send ping request
      */
@@ -141,17 +384,67 @@ public class SafeMessageClient {
      * Send the given message over the channel
      *
      * @param msg message to send
+     * @return future completed with the sequence number once the receiver acknowledged the message
      */
-    public void sendMessage(String msg)
+    public CompletableFuture<Long> sendMessage(String msg)
     {
-        messageHandler.sendMessage(msg);
+        return messageHandler.sendMessage(msg);
+    }
+
+    /**
+     * Send the given binary message over the channel
+     *
+     * @param msg binary message to send
+     * @return future completed with the sequence number once the receiver acknowledged the message
+     */
+    public CompletableFuture<Long> sendMessage(byte[] msg)
+    {
+        return messageHandler.sendMessage(msg);
+    }
+
+    /**
+     * Send the given message over the channel without creating a future for it
+     *
+     * @param msg message to send
+     * @param listener listener to report the outcome to (null if it is not needed)
+     * @return sequence number of the message, -1 if it was rejected
+     */
+    public long sendMessage(String msg, DeliveryListener listener)
+    {
+        return messageHandler.sendMessage(msg, listener);
+    }
+
+    /**
+     * Send the given binary message over the channel without creating a future for it
+     *
+     * @param msg binary message to send
+     * @param listener listener to report the outcome to (null if it is not needed)
+     * @return sequence number of the message, -1 if it was rejected
+     */
+    public long sendMessage(byte[] msg, DeliveryListener listener)
+    {
+        return messageHandler.sendMessage(msg, listener);
     }
 
     /**
      * Close connection of this client
+     * A shared event loop group is kept running for the other clients
      */
     public void close()
     {
-        group.shutdownGracefully();
+        closing = true;
+        ScheduledFuture<?> reconnectTimer = this.reconnectTimer;
+        if (reconnectTimer != null)
+            reconnectTimer.cancel(false);
+        Channel ch = this.ch;
+        if (ch == null || !ch.isActive())
+            messageHandler.clearBuffers();
+
+        if (group == transportConfig.getEventLoopGroup()) {
+            if (ch != null)
+                ch.close();
+        } else {
+            group.shutdownGracefully();
+        }
     }
 }
@@ -41,6 +41,14 @@ public class SafeMessageClientHandler extends SimpleChannelInboundHandler<Object
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         System.out.println("WebSocket Client disconnected!");
+        //Keep outstanding messages for resuming the session (or fail them) and wake up blocked senders
+        safeMessageClient.connectionLost();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        safeMessageClient.getMessageHandler().channelWritabilityChanged();
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
@@ -48,6 +56,7 @@ public class SafeMessageClientHandler extends SimpleChannelInboundHandler<Object
         Channel ch = ctx.channel();
         if (!handshaker.isHandshakeComplete()) {
             handshaker.finishHandshake(ch, (FullHttpResponse) msg);
+            safeMessageClient.handshakeCompleted(ch, (FullHttpResponse) msg);
             System.out.println("WebSocket Client connected!");
             handshakeFuture.setSuccess();
             return;
@@ -66,13 +75,12 @@ public class SafeMessageClientHandler extends SimpleChannelInboundHandler<Object
         if (frame instanceof PingWebSocketFrame) {
             ctx.channel().writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
         }
-        else if (frame instanceof TextWebSocketFrame) {
-            TextWebSocketFrame textFrame = (TextWebSocketFrame) frame;
-            safeMessageClient.getMessageHandler().receive(textFrame.text());
+        else if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
+            safeMessageClient.getMessageHandler().receiveFrame(frame);
         }
         //Normally ping-pong is done by server, but for special purposes incoming pongs are handled, too
         else if (frame instanceof PongWebSocketFrame) {
-            safeMessageClient.getMessageHandler().receivedPong();
+            safeMessageClient.getMessageHandler().receivedPong(frame.content());
         }
         else if (frame instanceof CloseWebSocketFrame) {
             ch.close();
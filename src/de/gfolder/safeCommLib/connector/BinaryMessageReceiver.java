@@ -0,0 +1,12 @@
+package de.gfolder.safeCommLib.connector;
+
+/**
+ * safeCommLib
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public interface BinaryMessageReceiver extends MessageReceiver {
+    public void receive(byte[] msg, String channelIdentifier);
+}
@@ -0,0 +1,18 @@
+package de.gfolder.safeCommLib.connector;
+
+/**
+ * safeCommLib
+ *
+ * Receiver consuming large payloads piece by piece instead of reassembling them first.
+ * Payloads split into fragments by the sender arrive in order through receiveFragment,
+ * payloads small enough to be sent in one piece still arrive through receive.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public interface StreamingMessageReceiver extends MessageReceiver {
+    public void receiveFragment(String fragment, boolean last, String channelIdentifier);
+
+    public void receiveFragment(byte[] fragment, boolean last, String channelIdentifier);
+}
@@ -1,7 +1,10 @@
 package de.gfolder.safeCommLib.demo;
 
+import de.gfolder.safeCommLib.SslConfig;
 import de.gfolder.safeCommLib.client.SafeMessageClient;
+import de.gfolder.safeCommLib.messageHandler.BinaryMessageHandler;
 import de.gfolder.safeCommLib.messageHandler.JSONMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.MessageHandler;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -17,7 +20,11 @@ public class Client {
 
     public static void main(String[] args) throws Exception {
         System.out.println("Creating client");
-        SafeMessageClient safeMessageClient = new SafeMessageClient(System.getProperty("url", "ws://127.0.0.1:8080/websocket"), new JSONMessageHandler());
+        MessageHandler<?> messageHandler = System.getProperty("binary") != null ? new BinaryMessageHandler() : new JSONMessageHandler();
+        SafeMessageClient safeMessageClient = new SafeMessageClient(System.getProperty("url", "ws://127.0.0.1:8080/websocket"), messageHandler);
+        //The demo server uses a self-signed certificate
+        if (System.getProperty("insecure") != null)
+            safeMessageClient.setSslConfig(SslConfig.builder().trustInsecure(true).build());
         System.out.println("Starting");
 
         try {
@@ -0,0 +1,562 @@
+package de.gfolder.safeCommLib.demo;
+
+import de.gfolder.safeCommLib.TransportConfig;
+import de.gfolder.safeCommLib.client.SafeMessageClient;
+import de.gfolder.safeCommLib.connector.BinaryMessageReceiver;
+import de.gfolder.safeCommLib.connector.BreakupHandler;
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.messageHandler.BinaryMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.DeliveryListener;
+import de.gfolder.safeCommLib.messageHandler.JSONMessageHandler;
+import de.gfolder.safeCommLib.messageHandler.MessageHandler;
+import de.gfolder.safeCommLib.metrics.MessageMetrics;
+import de.gfolder.safeCommLib.metrics.MessageMetricsMXBean;
+import de.gfolder.safeCommLib.server.SafeMessageServer;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * safeCommLib
+ *
+ * Headless load generator opening many connections on loopback and reporting throughput,
+ * latency percentiles, retransmissions and breakups. Configured with system properties:
+ *
+ * <pre>
+ * mode      send: every client sends to the server, latency is measured until the message is acknowledged
+ *           fanout: the server broadcasts to all clients, latency is measured until the message is delivered
+ * clients   number of connections (1000)
+ * rate      messages per second per client (send) or broadcasts per second (fanout) (10)
+ * size      payload size in bytes (64, at least 8)
+ * duration  seconds to measure (30), preceded by warmup seconds (5) that are not counted
+ * port      port of the server (8080)
+ * url       server to connect to instead of starting one (send mode only)
+ * binary    send binary messages instead of JSON
+ * threads   event loop threads of all clients together (0 for the Netty default)
+ * </pre>
+ *
+ * Example: java -Dclients=5000 -Drate=20 -Dsize=256 de.gfolder.safeCommLib.demo.LoadGenerator
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class LoadGenerator {
+
+    private final boolean fanout;
+    private final int clientCount;
+    private final int rate;
+    private final int size;
+    private final int duration;
+    private final int warmup;
+    private final int port;
+    private final String url;
+    private final boolean binary;
+    private final int threads;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final MessageMetrics clientMetrics = new MessageMetrics();
+    private volatile boolean measuring;
+    private volatile long measuringSince = Long.MAX_VALUE;
+    private volatile boolean closing;
+
+    private SafeMessageServer server;
+    private EventLoopGroup clientGroup;
+    private final List<SafeMessageClient> clients = new ArrayList<>();
+    private final List<ScheduledFuture<?>> senders = new ArrayList<>();
+    private ScheduledExecutorService broadcaster;
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    /**
+     * Constructor reading the settings from the system properties
+     */
+    public LoadGenerator() {
+        fanout = "fanout".equalsIgnoreCase(System.getProperty("mode", "send"));
+        clientCount = Integer.getInteger("clients", 1000);
+        rate = Integer.getInteger("rate", 10);
+        size = Math.max(8, Integer.getInteger("size", 64));
+        duration = Integer.getInteger("duration", 30);
+        warmup = Integer.getInteger("warmup", 5);
+        port = Integer.getInteger("port", 8080);
+        url = System.getProperty("url");
+        binary = System.getProperty("binary") != null;
+        threads = Integer.getInteger("threads", 0);
+        if (fanout && url != null)
+            throw new IllegalArgumentException("Fan-out needs the server of the load generator, do not set url");
+    }
+
+    /**
+     * Run the load test and print the report
+     *
+     * @throws Exception if the server or the clients could not be started
+     */
+    public void run() throws Exception {
+        System.out.println("Mode " + (fanout ? "fanout" : "send") + ", " + clientCount + " clients, " + rate
+                + " msg/s " + (fanout ? "broadcast" : "per client") + ", " + size + " bytes, "
+                + (binary ? "binary" : "JSON"));
+        try {
+            if (url == null)
+                startServer();
+            connectClients();
+
+            if (fanout)
+                startBroadcasting();
+            else
+                startSending();
+
+            Thread.sleep(warmup * 1000L);
+            reset();
+            long start = System.nanoTime();
+            measuringSince = start;
+            measuring = true;
+            for (int second = 1; second <= duration; second++) {
+                Thread.sleep(1000);
+                printProgress(second);
+            }
+            measuring = false;
+            long elapsed = System.nanoTime() - start;
+
+            stopSending();
+            printReport(elapsed);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Start a server on loopback counting received messages
+     */
+    private void startServer() throws Exception {
+        server = new SafeMessageServer(port, "/websocket", false, new BinaryMessageReceiver() {
+            @Override
+            public void receive(String msg, String channelIdentifier) {
+                if (measuring)
+                    received.increment();
+            }
+
+            @Override
+            public void receive(byte[] msg, String channelIdentifier) {
+                if (measuring)
+                    received.increment();
+            }
+        }, new BreakupHandler() {
+            @Override
+            public void handleBreakup(String channelIdentifier) {
+                if (!closing)
+                    System.err.println("Connection of " + channelIdentifier + " closed");
+            }
+        });
+        server.setBinary(binary);
+        server.setMetricsRegistry(null);
+        server.init();
+    }
+
+    /**
+     * Open all connections, sharing one event loop group
+     */
+    private void connectClients() throws Exception {
+        TransportConfig config = TransportConfig.defaults();
+        clientGroup = config.newEventLoopGroup(threads);
+        config = TransportConfig.builder().eventLoopGroup(clientGroup).build();
+        String target = url != null ? url : "ws://127.0.0.1:" + port + "/websocket";
+
+        long start = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            SafeMessageClient client = new SafeMessageClient(target, createMessageHandler());
+            client.setTransportConfig(config);
+            client.init();
+            clients.add(client);
+            if ((i + 1) % 1000 == 0)
+                System.out.println("Connected " + (i + 1) + " clients");
+        }
+        System.out.println("Connected " + clientCount + " clients in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    /**
+     * Create the message handler of a client
+     * In fan-out mode, the latency until delivery is read from the timestamp at the start of the payload
+     *
+     * @return message handler counting into the metrics of all clients
+     */
+    private MessageHandler<?> createMessageHandler() {
+        MessageHandler<?> handler = binary ? new BinaryMessageHandler() {
+            @Override
+            public void handleReceived(SafeMessage message, Channel channel) {
+                delivered(ByteBuffer.wrap(message.getBinaryData()).getLong());
+            }
+        } : new JSONMessageHandler() {
+            @Override
+            public void handleReceived(SafeMessage message, Channel channel) {
+                String data = message.getData();
+                delivered(Long.parseLong(data.substring(0, data.indexOf(' '))));
+            }
+        };
+        handler.setMetrics(new MessageMetrics(clientMetrics));
+        handler.setRecycleReceived(true);
+        return handler;
+    }
+
+    /**
+     * Count a message delivered to a client
+     * Messages sent during the warmup are not counted, even if they arrive later
+     *
+     * @param sentAt System.nanoTime() when the message was sent
+     */
+    private void delivered(long sentAt) {
+        if (measuring && sentAt - measuringSince >= 0) {
+            received.increment();
+            latency.record(System.nanoTime() - sentAt);
+        }
+    }
+
+    /**
+     * Let every client send at the configured rate
+     * The clients start at random offsets, so the messages are spread over each period.
+     * Each client sends on the event loop of its own channel, so a full sending window queues the message
+     * instead of blocking a loop other channels depend on.
+     */
+    private void startSending() {
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        for (SafeMessageClient client : clients) {
+            EventLoop eventLoop = client.getMessageHandler().getChannel().eventLoop();
+            senders.add(eventLoop.scheduleAtFixedRate(new Sender(client), ThreadLocalRandom.current().nextLong(period),
+                    period, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * Sends the messages of one client and measures the time until each of them is acknowledged
+     * The client reports its messages in the order they were sent, so the send times are kept in a queue
+     * instead of a future per message
+     */
+    private class Sender implements Runnable, DeliveryListener {
+
+        //Send time of messages sent during the warmup
+        private static final long NOT_COUNTED = Long.MIN_VALUE;
+
+        private final SafeMessageClient client;
+        private long[] sendTimes = new long[16];
+        private int head;
+        private int size;
+
+        Sender(SafeMessageClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            boolean counted = measuring;
+            push(counted ? start : NOT_COUNTED);
+            long sequenceNumber = binary ? client.sendMessage(binaryPayload(start), this) : client.sendMessage(textPayload(start), this);
+            if (counted)
+                sent.increment();
+            if (sequenceNumber < 0) {
+                removeLast();
+                if (counted)
+                    rejected.increment();
+            }
+        }
+
+        @Override
+        public void delivered(long sequenceNumber) {
+            long start = poll();
+            if (start != NOT_COUNTED) {
+                acknowledged.increment();
+                latency.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void failed(long sequenceNumber, Throwable cause) {
+            //Rejected messages are counted by the sender, they got no sequence number
+            if (sequenceNumber >= 0 && poll() != NOT_COUNTED)
+                rejected.increment();
+        }
+
+        private synchronized void push(long sendTime) {
+            if (size == sendTimes.length) {
+                long[] grown = new long[sendTimes.length * 2];
+                for (int i = 0; i < size; i++)
+                    grown[i] = sendTimes[(head + i) & (sendTimes.length - 1)];
+                sendTimes = grown;
+                head = 0;
+            }
+            sendTimes[(head + size) & (sendTimes.length - 1)] = sendTime;
+            size++;
+        }
+
+        private synchronized void removeLast() {
+            size--;
+        }
+
+        private synchronized long poll() {
+            long sendTime = sendTimes[head];
+            head = (head + 1) & (sendTimes.length - 1);
+            size--;
+            return sendTime;
+        }
+    }
+
+    /**
+     * Let the server broadcast to all clients at the configured rate
+     * Broadcasts are started from a thread of their own, the server hands them to the event loops of its channels
+     */
+    private void startBroadcasting() {
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        broadcaster = Executors.newSingleThreadScheduledExecutor();
+        senders.add(broadcaster.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                if (binary)
+                    server.broadcast(binaryPayload(now));
+                else
+                    server.broadcast(textPayload(now));
+                if (measuring)
+                    sent.add(clients.size());
+            }
+        }, 0, period, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Stop sending and wait up to ten seconds for the last messages to arrive
+     */
+    private void stopSending() throws InterruptedException {
+        for (ScheduledFuture<?> sender : senders)
+            sender.cancel(false);
+        for (int i = 0; i < 100 && outstanding() > 0; i++)
+            Thread.sleep(100);
+    }
+
+    /**
+     * Get the number of messages sent but not yet acknowledged by their receivers
+     *
+     * @return number of outstanding messages
+     */
+    private long outstanding() {
+        long outstanding = 0;
+        for (SafeMessageClient client : clients)
+            outstanding += client.getMessageHandler().getUnacknowledgedMessages() + client.getMessageHandler().getPendingMessages();
+        if (server != null)
+            outstanding += server.getMetrics().getUnacknowledgedMessages() + server.getMetrics().getPendingMessages();
+        return outstanding;
+    }
+
+    /**
+     * Create a text payload of the configured size starting with the send time
+     *
+     * @param nanoTime System.nanoTime() when the message is sent
+     * @return payload
+     */
+    private String textPayload(long nanoTime) {
+        StringBuilder builder = new StringBuilder(size);
+        builder.append(nanoTime).append(' ');
+        while (builder.length() < size)
+            builder.append('x');
+        return builder.toString();
+    }
+
+    /**
+     * Create a binary payload of the configured size starting with the send time
+     *
+     * @param nanoTime System.nanoTime() when the message is sent
+     * @return payload
+     */
+    private byte[] binaryPayload(long nanoTime) {
+        byte[] payload = new byte[size];
+        ByteBuffer.wrap(payload).putLong(nanoTime);
+        return payload;
+    }
+
+    /**
+     * Reset the counters after the warmup
+     */
+    private void reset() {
+        sent.reset();
+        acknowledged.reset();
+        rejected.reset();
+        received.reset();
+        latency.reset();
+    }
+
+    /**
+     * Print the counters summed up since the start of the measurement (the percentile covers all of it as well)
+     *
+     * @param second seconds since the start of the measurement
+     */
+    private void printProgress(int second) {
+        System.out.println(String.format("%4ds sent %d, %s %d, received %d, p99 %.2fms", second, sent.sum(),
+                fanout ? "delivered" : "acknowledged", fanout ? received.sum() : acknowledged.sum(),
+                received.sum(), latency.percentile(99) / 1e6));
+    }
+
+    /**
+     * Print the summary of the measurement
+     *
+     * @param elapsed duration of the measurement in nanoseconds
+     */
+    private void printReport(long elapsed) {
+        double seconds = elapsed / 1e9;
+        long completed = fanout ? received.sum() : acknowledged.sum();
+        System.out.println();
+        System.out.println("Messages sent:         " + sent.sum());
+        System.out.println("Messages " + (fanout ? "delivered:    " : "acknowledged: ") + completed);
+        System.out.println("Messages rejected:     " + rejected.sum());
+        System.out.println("Messages received:     " + received.sum());
+        System.out.println(String.format("Throughput:            %.0f msg/s, %.2f MB/s", completed / seconds,
+                completed * (double) size / seconds / (1024 * 1024)));
+        System.out.println(String.format("%-23sp50 %.3fms, p90 %.3fms, p99 %.3fms, p99.9 %.3fms, max %.3fms",
+                fanout ? "Delivery latency:" : "ACK latency:", latency.percentile(50) / 1e6, latency.percentile(90) / 1e6,
+                latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6, latency.max() / 1e6));
+        printMetrics("Clients", clientMetrics);
+        if (server != null)
+            printMetrics("Server", server.getMetrics());
+    }
+
+    /**
+     * Print retransmissions and breakups (counted since the start, including the warmup)
+     *
+     * @param name name of the side
+     * @param metrics metrics of the side
+     */
+    private void printMetrics(String name, MessageMetricsMXBean metrics) {
+        System.out.println(String.format("%-23sretransmitted %d, duplicates received %d, corrupted %d, gaps %d, breakups %d",
+                name + ":", metrics.getMessagesRetransmitted(), metrics.getDuplicatesReceived(),
+                metrics.getCorruptedReceived(), metrics.getGapsDetected(), metrics.getBreakups()));
+    }
+
+    /**
+     * Close all clients and the server
+     */
+    private void close() throws InterruptedException {
+        closing = true;
+        if (broadcaster != null)
+            broadcaster.shutdownNow();
+        for (SafeMessageClient client : clients)
+            client.close();
+        if (clientGroup != null)
+            clientGroup.shutdownGracefully().sync();
+        if (server != null) {
+            server.requestClose();
+            server.close();
+        }
+    }
+
+    /**
+     * Histogram of latencies with a relative error of about 3 percent
+     * Every power of two is split into 32 buckets, values are counted without locking
+     */
+    static class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Count a value
+         *
+         * @param value latency in nanoseconds
+         */
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            counts.incrementAndGet(index(value));
+            total.increment();
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+                //Retry until no larger value was recorded in between
+            }
+        }
+
+        /**
+         * Get the bucket of a value
+         *
+         * @param value value to find the bucket of
+         * @return index of the bucket
+         */
+        private static int index(long value) {
+            int exponent = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+            if (exponent <= 0)
+                return (int) value;
+            return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+        }
+
+        /**
+         * Get the largest value counted into a bucket
+         *
+         * @param index index of the bucket
+         * @return upper bound of the bucket
+         */
+        private static long upperBound(int index) {
+            if (index < 2 * SUB_BUCKETS)
+                return index;
+            int exponent = index / SUB_BUCKETS - 1;
+            long subBucket = index - exponent * SUB_BUCKETS;
+            return ((subBucket + 1) << exponent) - 1;
+        }
+
+        /**
+         * Get a percentile of the counted values
+         *
+         * @param percentile percentile between 0 and 100
+         * @return upper bound of the bucket containing the percentile (0 if nothing was counted)
+         */
+        long percentile(double percentile) {
+            long count = total.sum();
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        /**
+         * Getter for property 'max'.
+         *
+         * @return largest counted value
+         */
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * Forget all counted values
+         */
+        void reset() {
+            for (int i = 0; i < counts.length(); i++)
+                counts.set(i, 0);
+            total.reset();
+            max.set(0);
+        }
+    }
+}
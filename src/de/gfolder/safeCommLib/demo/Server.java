@@ -1,8 +1,10 @@
 package de.gfolder.safeCommLib.demo;
 
+import de.gfolder.safeCommLib.TransportConfig;
 import de.gfolder.safeCommLib.connector.BreakupHandler;
 import de.gfolder.safeCommLib.connector.MessageReceiver;
 import de.gfolder.safeCommLib.server.SafeMessageServer;
+import io.netty.handler.logging.LogLevel;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -33,6 +35,8 @@ public class Server {
                 System.err.println("Connection of "+channelIdentifier+" closed");
             }
         });
+        safeMessageServer.setBinary(System.getProperty("binary") != null);
+        safeMessageServer.setTransportConfig(TransportConfig.builder().acceptorLogLevel(LogLevel.INFO).build());
         try {
             safeMessageServer.init();
 
@@ -0,0 +1,257 @@
+package de.gfolder.safeCommLib.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Checksum;
+
+/**
+ * safeCommLib
+ *
+ * Strategy used to detect corrupted messages.
+ * The checksum is computed over the encoded payload bytes and sent in the storedHash field of a message.
+ * The id of the strategy is sent along, so the receiver always checks a message the way it was sent.
+ * The checksum implementations are reused per thread, so computing a checksum allocates nothing.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public enum IntegrityCheck {
+    /** Java hashCode of the decoded payload (understood by older versions) */
+    HASH_CODE(0),
+    /** CRC32C of the payload bytes (hardware accelerated on current CPUs) */
+    CRC32C(1),
+    /** CRC32 of the payload bytes */
+    CRC32(2),
+    /** No check at all, for transports guaranteeing integrity themselves (e.g. TLS) */
+    NONE(3);
+
+    /**
+     * Regions of direct buffers up to this length are copied to a per-thread array before computing their checksum,
+     * which is cheaper than creating NIO views of the buffer
+     */
+    private static final int SCRATCH_SIZE = 1024;
+
+    private static final FastThreadLocal<Checksums> CHECKSUMS = new FastThreadLocal<Checksums>() {
+        @Override
+        protected Checksums initialValue() {
+            return new Checksums();
+        }
+    };
+
+    /**
+     * Checksum implementations and scratch array of one thread
+     */
+    private static final class Checksums {
+        private final java.util.zip.CRC32C crc32c = new java.util.zip.CRC32C();
+        private final java.util.zip.CRC32 crc32 = new java.util.zip.CRC32();
+        private final byte[] scratch = new byte[SCRATCH_SIZE];
+        //Text is encoded in chunks of up to three bytes per character into the scratch array
+        private final CharBuffer chars = CharBuffer.allocate(SCRATCH_SIZE / 3);
+        private final ByteBuffer bytes = ByteBuffer.wrap(scratch);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private final int id;
+
+    IntegrityCheck(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Getter for property 'id'.
+     *
+     * @return id of the strategy sent along with a message
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the strategy belonging to an id sent along with a message
+     *
+     * @param id id of the strategy
+     * @return the matching strategy
+     */
+    public static IntegrityCheck fromId(int id) {
+        switch (id) {
+            case 1:
+                return CRC32C;
+            case 2:
+                return CRC32;
+            case 3:
+                return NONE;
+            default:
+                return HASH_CODE;
+        }
+    }
+
+    /**
+     * Check whether the checksum is computed over the payload bytes (instead of the decoded payload)
+     *
+     * @return true for checksums over bytes
+     */
+    public boolean isByteChecksum() {
+        return this == CRC32C || this == CRC32;
+    }
+
+    /**
+     * Compute the checksum of a byte array
+     *
+     * @param data bytes to check
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @return checksum (0 if this strategy does not check bytes)
+     */
+    public int checksum(byte[] data, int offset, int length) {
+        Checksum checksum = checksum();
+        if (checksum == null)
+            return 0;
+        checksum.update(data, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Compute the checksum of the UTF-8 encoding of a text
+     * The text is encoded chunk by chunk into the per-thread scratch array, so no copy of it is allocated.
+     * Unpaired surrogates are encoded as '?' like String.getBytes does.
+     *
+     * @param data text to check
+     * @return checksum (0 if this strategy does not check bytes)
+     */
+    public int checksum(String data) {
+        Checksum checksum = checksum();
+        if (checksum == null)
+            return 0;
+        Checksums checksums = CHECKSUMS.get();
+        CharBuffer chars = checksums.chars;
+        ByteBuffer bytes = checksums.bytes;
+        CharsetEncoder encoder = checksums.encoder.reset();
+        chars.clear();
+        int length = data.length();
+        int offset = 0;
+        while (offset < length) {
+            int count = Math.min(chars.remaining(), length - offset);
+            data.getChars(offset, offset + count, chars.array(), chars.position());
+            chars.position(chars.position() + count);
+            offset += count;
+            chars.flip();
+            bytes.clear();
+            //A chunk always fits into the scratch array, a high surrogate at its end is kept for the next one
+            encoder.encode(chars, bytes, offset == length);
+            checksum.update(checksums.scratch, 0, bytes.position());
+            chars.compact();
+        }
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Compute the checksum of a region of a buffer
+     * Larger regions of direct buffers are read without copying them
+     *
+     * @param buffer buffer holding the bytes
+     * @param index index of the first byte
+     * @param length number of bytes
+     * @return checksum (0 if this strategy does not check bytes)
+     */
+    public int checksum(ByteBuf buffer, int index, int length) {
+        Checksum checksum = checksum();
+        if (checksum == null)
+            return 0;
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + index, length);
+        } else if (length <= SCRATCH_SIZE) {
+            byte[] scratch = CHECKSUMS.get().scratch;
+            buffer.getBytes(index, scratch, 0, length);
+            checksum.update(scratch, 0, length);
+        } else if (buffer.nioBufferCount() == 1) {
+            update(checksum, buffer.internalNioBuffer(index, length));
+        } else {
+            for (ByteBuffer component : buffer.nioBuffers(index, length))
+                update(checksum, component);
+        }
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Compute the checksum of a feedback sent as control frame
+     * Covers the status, sequence number and selective acknowledgements in their binary form,
+     * so it is the same for all encodings
+     *
+     * @param status ordinal of the status
+     * @param sequenceNumber sequence number the feedback refers to
+     * @param selectiveAcknowledgements ranges received behind a gap (may be null)
+     * @return checksum (0 if this strategy does not check bytes)
+     */
+    public int checksum(int status, long sequenceNumber, long[] selectiveAcknowledgements) {
+        Checksum checksum = checksum();
+        if (checksum == null)
+            return 0;
+        int ranges = selectiveAcknowledgements != null ? selectiveAcknowledgements.length : 0;
+        byte[] scratch = CHECKSUMS.get().scratch;
+        if (9 + 8 * ranges > scratch.length)
+            scratch = new byte[9 + 8 * ranges];
+        scratch[0] = (byte) status;
+        putLong(scratch, 1, sequenceNumber);
+        for (int i = 0; i < ranges; i++)
+            putLong(scratch, 9 + 8 * i, selectiveAcknowledgements[i]);
+        checksum.update(scratch, 0, 9 + 8 * ranges);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Write a long in big-endian byte order
+     *
+     * @param array array to write to
+     * @param index index of the first byte
+     * @param value value to write
+     */
+    private static void putLong(byte[] array, int index, long value) {
+        for (int i = 7; i >= 0; i--) {
+            array[index + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Get the checksum implementation of this strategy for the current thread
+     *
+     * @return reset checksum (null if this strategy does not check bytes)
+     */
+    private Checksum checksum() {
+        Checksum checksum;
+        switch (this) {
+            case CRC32C:
+                checksum = CHECKSUMS.get().crc32c;
+                break;
+            case CRC32:
+                checksum = CHECKSUMS.get().crc32;
+                break;
+            default:
+                return null;
+        }
+        checksum.reset();
+        return checksum;
+    }
+
+    /**
+     * Feed a NIO buffer into a checksum (direct buffers are read without copying)
+     *
+     * @param checksum checksum to update
+     * @param buffer bytes to add
+     */
+    private static void update(Checksum checksum, ByteBuffer buffer) {
+        if (checksum instanceof java.util.zip.CRC32C)
+            ((java.util.zip.CRC32C) checksum).update(buffer);
+        else
+            ((java.util.zip.CRC32) checksum).update(buffer);
+    }
+}
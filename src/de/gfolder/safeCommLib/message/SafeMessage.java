@@ -1,22 +1,79 @@
 package de.gfolder.safeCommLib.message;
 
-import java.util.Date;
+import io.netty.util.Recycler;
+
+import java.util.Arrays;
 
 /**
  * safeCommLib
  *
+ * Messages created with newInstance are taken from a per-thread pool and have to be handed back with recycle
+ * once they are not needed anymore. Messages created with the constructors are never pooled.
+ *
  * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
  * @version 0.1
  */
 
 public class SafeMessage {
-    public enum Type {MESSAGE, FEEDBACK}
+    public enum Type {
+        MESSAGE, FEEDBACK;
+
+        private static final Type[] VALUES = values();
+
+        /**
+         * Get the type sent as its ordinal (without copying the array of all types)
+         *
+         * @param ordinal ordinal of the type
+         * @return the matching type
+         */
+        public static Type fromOrdinal(int ordinal) {
+            return VALUES[ordinal];
+        }
+    }
+
+    /**
+     * Status reported by a feedback message, sent as its ordinal
+     */
+    public enum Status {
+        /** Everything up to the sequence number was received */
+        OK,
+        /** The message with the sequence number is missing, everything before it was received */
+        FAILED;
+
+        private static final Status[] VALUES = values();
 
+        /**
+         * Get the status sent as its ordinal (without copying the array of all states)
+         *
+         * @param ordinal ordinal of the status
+         * @return the matching status
+         */
+        public static Status fromOrdinal(int ordinal) {
+            return VALUES[ordinal];
+        }
+    }
+
+    private static final Recycler<SafeMessage> RECYCLER = new Recycler<SafeMessage>() {
+        @Override
+        protected SafeMessage newObject(Handle<SafeMessage> handle) {
+            return new SafeMessage(handle);
+        }
+    };
+
+    private final Recycler.Handle<SafeMessage> handle;
     private long sequenceNumber;
     private int storedHash;
+    private boolean hashed;
+    private IntegrityCheck integrityCheck = IntegrityCheck.HASH_CODE;
+    private int computedChecksum;
     private long timeStamp;
     private Type type;
+    private Status status;
     private String data;
+    private byte[] binaryData;
+    private long[] selectiveAcknowledgements;
+    private boolean moreFragments;
+    private long acknowledgement = -1;
 
     /**
      * Getter for property 'sequenceNumber'.
@@ -29,13 +86,38 @@ public class SafeMessage {
 
     /**
      * Getter for property 'storedHash'.
+     * For new messages the hash is only computed on first access (it is not needed for checksums over bytes)
      *
      * @return Value for property 'storedHash'.
      */
     public int getStoredHash() {
+        if (!hashed) {
+            storedHash = hashCode();
+            hashed = true;
+        }
         return storedHash;
     }
 
+    /**
+     * Getter for property 'integrityCheck'.
+     *
+     * @return strategy the received message is checked with
+     */
+    public IntegrityCheck getIntegrityCheck() {
+        return integrityCheck;
+    }
+
+    /**
+     * Set how a received message is checked
+     *
+     * @param integrityCheck strategy the sender used
+     * @param computedChecksum checksum computed over the received payload bytes (for checksums over bytes)
+     */
+    public void setIntegrityCheck(IntegrityCheck integrityCheck, int computedChecksum) {
+        this.integrityCheck = integrityCheck;
+        this.computedChecksum = computedChecksum;
+    }
+
     /**
      * Getter for property 'timeStamp'.
      *
@@ -54,6 +136,27 @@ public class SafeMessage {
         return type;
     }
 
+    /**
+     * Getter for property 'status'.
+     * Feedback messages of older versions only carry the status as data ("OK" or "FAILED")
+     *
+     * @return Value for property 'status' (null for normal messages).
+     */
+    public Status getStatus() {
+        if (status == null && type == Type.FEEDBACK)
+            return "OK".equals(data) ? Status.OK : Status.FAILED;
+        return status;
+    }
+
+    /**
+     * Setter for property 'status'.
+     *
+     * @param status Value to set for property 'status'.
+     */
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
     /**
      * Getter for property 'data'.
      *
@@ -63,6 +166,81 @@ public class SafeMessage {
         return data;
     }
 
+    /**
+     * Getter for property 'binaryData'.
+     *
+     * @return Value for property 'binaryData' (null for text messages).
+     */
+    public byte[] getBinaryData() {
+        return binaryData;
+    }
+
+    /**
+     * Getter for property 'selectiveAcknowledgements'.
+     * Pairs of first and last sequence number of ranges received behind a gap (feedback messages only)
+     *
+     * @return Value for property 'selectiveAcknowledgements' (null if there are none).
+     */
+    public long[] getSelectiveAcknowledgements() {
+        return selectiveAcknowledgements;
+    }
+
+    /**
+     * Setter for property 'selectiveAcknowledgements'.
+     *
+     * @param selectiveAcknowledgements Value to set for property 'selectiveAcknowledgements'.
+     */
+    public void setSelectiveAcknowledgements(long[] selectiveAcknowledgements) {
+        this.selectiveAcknowledgements = selectiveAcknowledgements;
+    }
+
+    /**
+     * Getter for property 'moreFragments'.
+     * Large payloads are split into fragments sent as consecutive messages, all but the last one have this set
+     *
+     * @return true if further fragments of the same payload follow this message
+     */
+    public boolean hasMoreFragments() {
+        return moreFragments;
+    }
+
+    /**
+     * Setter for property 'moreFragments'.
+     *
+     * @param moreFragments Value to set for property 'moreFragments'.
+     */
+    public void setMoreFragments(boolean moreFragments) {
+        this.moreFragments = moreFragments;
+    }
+
+    /**
+     * Getter for property 'acknowledgement'.
+     * Normal messages can carry the acknowledgement of the messages their sender received along in their header
+     *
+     * @return sequence number of the last message the sender received in order (-1 if none is carried)
+     */
+    public long getAcknowledgement() {
+        return acknowledgement;
+    }
+
+    /**
+     * Setter for property 'acknowledgement'.
+     *
+     * @param acknowledgement Value to set for property 'acknowledgement'.
+     */
+    public void setAcknowledgement(long acknowledgement) {
+        this.acknowledgement = acknowledgement;
+    }
+
+    /**
+     * Check whether this message carries a binary payload instead of a string
+     *
+     * @return true if the payload is binary
+     */
+    public boolean isBinary() {
+        return binaryData != null;
+    }
+
     /**
      * Constructor
      *
@@ -70,12 +248,19 @@ public class SafeMessage {
      * @param data data to send
      */
     public SafeMessage(long sequenceNumber, String data, Type type) {
-        this.sequenceNumber = sequenceNumber;
-        this.data = data;
-        this.type = type;
-        this.storedHash = hashCode();
-        Date date = new Date();
-        this.timeStamp = date.getTime();
+        this.handle = null;
+        init(sequenceNumber, data, null, type);
+    }
+
+    /**
+     * Constructor for binary messages
+     *
+     * @param sequenceNumber sequence number for this message
+     * @param binaryData binary data to send
+     */
+    public SafeMessage(long sequenceNumber, byte[] binaryData, Type type) {
+        this.handle = null;
+        init(sequenceNumber, null, binaryData, type);
     }
 
     /**
@@ -87,25 +272,152 @@ public class SafeMessage {
      * @param data contained data
      */
     public SafeMessage(long sequenceNumber, int storedHash, long timeStamp, String data, Type type) {
+        this.handle = null;
+        init(sequenceNumber, storedHash, timeStamp, data, null, type);
+    }
+
+    /**
+     * Constructor for restoring a received binary message
+     *
+     * @param sequenceNumber sequence number for this message
+     * @param storedHash original hash (for checking)
+     * @param timeStamp original time stamp
+     * @param binaryData contained binary data
+     */
+    public SafeMessage(long sequenceNumber, int storedHash, long timeStamp, byte[] binaryData, Type type) {
+        this.handle = null;
+        init(sequenceNumber, storedHash, timeStamp, null, binaryData, type);
+    }
+
+    /**
+     * Constructor for pooled messages
+     *
+     * @param handle handle to return the message to its pool
+     */
+    private SafeMessage(Recycler.Handle<SafeMessage> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Take a message for sending from the pool
+     *
+     * @param sequenceNumber sequence number for this message
+     * @param data data to send
+     * @param type type of the message
+     * @return pooled message, to be recycled once it is encoded
+     */
+    public static SafeMessage newInstance(long sequenceNumber, String data, Type type) {
+        SafeMessage message = RECYCLER.get();
+        message.init(sequenceNumber, data, null, type);
+        return message;
+    }
+
+    /**
+     * Take a binary message for sending from the pool
+     *
+     * @param sequenceNumber sequence number for this message
+     * @param binaryData binary data to send
+     * @param type type of the message
+     * @return pooled message, to be recycled once it is encoded
+     */
+    public static SafeMessage newInstance(long sequenceNumber, byte[] binaryData, Type type) {
+        SafeMessage message = RECYCLER.get();
+        message.init(sequenceNumber, null, binaryData, type);
+        return message;
+    }
+
+    /**
+     * Take a message for restoring a received one from the pool
+     *
+     * @param sequenceNumber sequence number for this message
+     * @param storedHash original hash (for checking)
+     * @param timeStamp original time stamp
+     * @param data contained data
+     * @param type type of the message
+     * @return pooled message, to be recycled once it was handled
+     */
+    public static SafeMessage newInstance(long sequenceNumber, int storedHash, long timeStamp, String data, Type type) {
+        SafeMessage message = RECYCLER.get();
+        message.init(sequenceNumber, storedHash, timeStamp, data, null, type);
+        return message;
+    }
+
+    /**
+     * Take a message for restoring a received binary one from the pool
+     *
+     * @param sequenceNumber sequence number for this message
+     * @param storedHash original hash (for checking)
+     * @param timeStamp original time stamp
+     * @param binaryData contained binary data
+     * @param type type of the message
+     * @return pooled message, to be recycled once it was handled
+     */
+    public static SafeMessage newInstance(long sequenceNumber, int storedHash, long timeStamp, byte[] binaryData, Type type) {
+        SafeMessage message = RECYCLER.get();
+        message.init(sequenceNumber, storedHash, timeStamp, null, binaryData, type);
+        return message;
+    }
+
+    /**
+     * Set the fields of a new message, the hash is computed on first access
+     */
+    private void init(long sequenceNumber, String data, byte[] binaryData, Type type) {
+        init(sequenceNumber, 0, System.currentTimeMillis(), data, binaryData, type);
+        this.hashed = false;
+    }
+
+    /**
+     * Set the fields of a restored message
+     */
+    private void init(long sequenceNumber, int storedHash, long timeStamp, String data, byte[] binaryData, Type type) {
         this.sequenceNumber = sequenceNumber;
         this.storedHash = storedHash;
+        this.hashed = true;
         this.timeStamp = timeStamp;
         this.data = data;
+        this.binaryData = binaryData;
         this.type = type;
+        this.status = null;
+    }
+
+    /**
+     * Hand a pooled message back to its pool, it must not be used afterwards
+     * Does nothing for messages created with a constructor
+     */
+    public void recycle() {
+        if (handle == null)
+            return;
+        data = null;
+        binaryData = null;
+        selectiveAcknowledgements = null;
+        moreFragments = false;
+        acknowledgement = -1;
+        integrityCheck = IntegrityCheck.HASH_CODE;
+        computedChecksum = 0;
+        handle.recycle(this);
     }
 
     @Override
     public int hashCode() {
+        if(binaryData != null)
+            return Arrays.hashCode(binaryData);
         return data.hashCode();
     }
 
     /**
      * Check whether the current data has still the correct hash value it was send with
      *
-     * @return true if stored hash matches current hash, false if not
+     * @return true if stored hash matches current hash (or checksum of the received bytes), false if not
      */
     public boolean matchingHash()
     {
-        return storedHash == hashCode();
+        switch (integrityCheck) {
+            case NONE:
+                return true;
+            case HASH_CODE:
+                return getStoredHash() == hashCode();
+            default:
+                return getStoredHash() == computedChecksum;
+        }
     }
 }
@@ -3,6 +3,9 @@ package de.gfolder.safeCommLib.message;
 /**
  * safeCommLib
  *
+ * Messages created here are plain objects, so callers may keep them as long as they like.
+ * The message handlers take their messages from the pool of SafeMessage instead (see SafeMessage.newInstance).
+ *
  * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
  * @version 0.1
  */
@@ -21,6 +24,34 @@ public class SafeMessageFactory {
         return new SafeMessage(sequenceNumber, data, SafeMessage.Type.MESSAGE);
     }
 
+    /**
+     * Create a new safe message with binary payload for sending
+     *
+     * @param sequenceNumber sequence number to use
+     * @param data binary payload to send
+     * @return the SafeMessage object containing data and meta information
+     */
+    public static SafeMessage createSafeMessage(long sequenceNumber, byte[] data)
+    {
+        return new SafeMessage(sequenceNumber, data, SafeMessage.Type.MESSAGE);
+    }
+
+    /**
+     * Create a new safe message for sending the payload of another message again under a new sequence number
+     *
+     * @param sequenceNumber sequence number to use
+     * @param message message to take payload and fragment flag from
+     * @return the SafeMessage object containing data and meta information
+     */
+    public static SafeMessage createSafeMessage(long sequenceNumber, SafeMessage message)
+    {
+        SafeMessage copy = message.isBinary()
+                ? createSafeMessage(sequenceNumber, message.getBinaryData())
+                : createSafeMessage(sequenceNumber, message.getData());
+        copy.setMoreFragments(message.hasMoreFragments());
+        return copy;
+    }
+
     /**
      * Create a special SafeMessage containing a confirmation for a received one
      *
@@ -29,7 +60,9 @@ public class SafeMessageFactory {
      */
     public static SafeMessage createFeedbackMessageOK(long sequenceNumber)
     {
-        return new SafeMessage(sequenceNumber, "OK", SafeMessage.Type.FEEDBACK);
+        SafeMessage message = new SafeMessage(sequenceNumber, "OK", SafeMessage.Type.FEEDBACK);
+        message.setStatus(SafeMessage.Status.OK);
+        return message;
     }
 
     /**
@@ -40,6 +73,24 @@ public class SafeMessageFactory {
      */
     public static SafeMessage createFeedbackMessageFailed(long sequenceNumber)
     {
-        return new SafeMessage(sequenceNumber, "FAILED", SafeMessage.Type.FEEDBACK);
+        SafeMessage message = new SafeMessage(sequenceNumber, "FAILED", SafeMessage.Type.FEEDBACK);
+        message.setStatus(SafeMessage.Status.FAILED);
+        return message;
+    }
+
+    /**
+     * Create a special SafeMessage containing a discarding information for a received one
+     * together with the ranges that were already received behind it
+     *
+     * @param sequenceNumber sequence number of the message to discard
+     * @param selectiveAcknowledgements first and last sequence number of each range received behind the gap
+     * @return the SafeMessage object containing the discarding information
+     */
+    public static SafeMessage createFeedbackMessageFailed(long sequenceNumber, long[] selectiveAcknowledgements)
+    {
+        SafeMessage message = createFeedbackMessageFailed(sequenceNumber);
+        if(selectiveAcknowledgements.length > 0)
+            message.setSelectiveAcknowledgements(selectiveAcknowledgements);
+        return message;
     }
 }
@@ -0,0 +1,406 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import de.gfolder.safeCommLib.message.IntegrityCheck;
+import de.gfolder.safeCommLib.message.SafeMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+
+import java.util.List;
+
+/**
+ * safeCommLib
+ *
+ * Message handler using a compact binary encoding instead of JSON.
+ * Each message is written into a pooled buffer with a fixed header followed by the payload:
+ *
+ * <pre>
+ * | type (1) | flags (1) | sequenceNumber (8) | storedHash (4) | timestamp (8) | payload length (4) | payload |
+ * </pre>
+ *
+ * The flags carry the id of the integrity check and mark fragments followed by further fragments of the same payload.
+ * storedHash holds the checksum of the payload bytes and selective acknowledgements
+ * (or the legacy hash of the decoded payload). It is computed right after writing the payload, while it is still cached.
+ * Several messages combined into one frame are simply written one after another.
+ * Payloads sent as buffers or shared with other connections are not copied, the header is combined with them instead.
+ * Feedback messages carrying selective acknowledgements append the number of ranges (2)
+ * and the first and last sequence number (8 each) of every range.
+ * Normal messages can carry the acknowledgement of the messages their sender received along; it follows the header
+ * as sequence number (8) and checksum (4, not with NONE) of an OK feedback, so it is checked on its own.
+ *
+ * Unless the legacy hash is used (for older versions), feedback is sent as compact control frame instead:
+ *
+ * <pre>
+ * | type (1) | status (1) | flags (1) | sequenceNumber (8) | checksum (4, not with NONE) | selective acknowledgements |
+ * </pre>
+ *
+ * The checksum covers status, sequence number and ranges (see IntegrityCheck.checksum(int, long, long[])).
+ * Truncated or malformed records are treated like records failing their checksum.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class BinaryMessageHandler extends MessageHandler<ByteBuf> {
+
+    /**
+     * Length of the fixed header in bytes
+     */
+    public static final int HEADER_LENGTH = 1 + 1 + 8 + 4 + 8 + 4;
+
+    /**
+     * Flag marking a binary payload (otherwise the payload is UTF-8 encoded text)
+     */
+    private static final int FLAG_BINARY = 0x01;
+
+    /**
+     * Flag marking appended selective acknowledgement ranges
+     */
+    private static final int FLAG_SELECTIVE_ACKNOWLEDGEMENTS = 0x02;
+
+    /**
+     * Position and mask of the integrity check id within the flags
+     */
+    private static final int INTEGRITY_CHECK_SHIFT = 2;
+    private static final int INTEGRITY_CHECK_MASK = 0x03;
+
+    /**
+     * Flag marking a fragment followed by further fragments of the same payload
+     */
+    private static final int FLAG_MORE_FRAGMENTS = 0x10;
+
+    /**
+     * Flag marking an acknowledgement carried along between header and payload
+     */
+    private static final int FLAG_ACKNOWLEDGEMENT = 0x20;
+
+    /**
+     * Type of a compact control frame (following the ordinals of the message types)
+     */
+    private static final int CONTROL_FRAME = 2;
+
+    /**
+     * Length of a control frame without selective acknowledgements in bytes
+     */
+    public static final int CONTROL_FRAME_LENGTH = 1 + 1 + 1 + 8 + 4;
+
+    @Override
+    public ByteBuf encodeTransportMessage(SafeMessage message) {
+        if(message == null)
+            return null;
+        if(message.getType() == SafeMessage.Type.FEEDBACK && getIntegrityCheck() != IntegrityCheck.HASH_CODE)
+            return encodeControlFrame(message);
+
+        int payloadLength = message.isBinary() ? message.getBinaryData().length : message.getData().length();
+        ByteBuf buffer = alloc().buffer(HEADER_LENGTH + payloadLength);
+        buffer.writeByte(message.getType().ordinal());
+        long[] selectiveAcknowledgements = message.getSelectiveAcknowledgements();
+        IntegrityCheck integrityCheck = getIntegrityCheck();
+        int flags = message.isBinary() ? FLAG_BINARY : 0;
+        if(selectiveAcknowledgements != null)
+            flags |= FLAG_SELECTIVE_ACKNOWLEDGEMENTS;
+        if(message.hasMoreFragments())
+            flags |= FLAG_MORE_FRAGMENTS;
+        flags |= integrityCheck.getId() << INTEGRITY_CHECK_SHIFT;
+        buffer.writeByte(flags);
+        buffer.writeLong(message.getSequenceNumber());
+        int hashIndex = buffer.writerIndex();
+        buffer.writeInt(integrityCheck == IntegrityCheck.HASH_CODE ? message.getStoredHash() : 0);
+        buffer.writeLong(message.getTimeStamp());
+
+        //Length of UTF-8 text is only known after writing it, so fill in afterwards
+        int lengthIndex = buffer.writerIndex();
+        buffer.writeInt(0);
+        if(message.isBinary())
+            buffer.writeBytes(message.getBinaryData());
+        else
+            ByteBufUtil.writeUtf8(buffer, message.getData());
+        buffer.setInt(lengthIndex, buffer.writerIndex() - lengthIndex - 4);
+
+        if(selectiveAcknowledgements != null) {
+            buffer.writeShort(selectiveAcknowledgements.length / 2);
+            for (long sequenceNumber : selectiveAcknowledgements)
+                buffer.writeLong(sequenceNumber);
+        }
+        //Checksums over bytes cover the selective acknowledgements as well
+        if(integrityCheck.isByteChecksum())
+            buffer.setInt(hashIndex, integrityCheck.checksum(buffer, lengthIndex + 4, buffer.writerIndex() - lengthIndex - 4));
+        return buffer;
+    }
+
+    /**
+     * Encode a feedback message as compact control frame
+     *
+     * @param message feedback message
+     * @return encoded control frame
+     */
+    private ByteBuf encodeControlFrame(SafeMessage message) {
+        IntegrityCheck integrityCheck = getIntegrityCheck();
+        long[] selectiveAcknowledgements = message.getSelectiveAcknowledgements();
+        int status = message.getStatus().ordinal();
+        int flags = integrityCheck.getId() << INTEGRITY_CHECK_SHIFT;
+        int length = CONTROL_FRAME_LENGTH;
+        if(selectiveAcknowledgements != null) {
+            flags |= FLAG_SELECTIVE_ACKNOWLEDGEMENTS;
+            length += 2 + 8 * selectiveAcknowledgements.length;
+        }
+
+        ByteBuf buffer = alloc().buffer(length);
+        buffer.writeByte(CONTROL_FRAME);
+        buffer.writeByte(status);
+        buffer.writeByte(flags);
+        buffer.writeLong(message.getSequenceNumber());
+        if(integrityCheck != IntegrityCheck.NONE)
+            buffer.writeInt(integrityCheck.checksum(status, message.getSequenceNumber(), selectiveAcknowledgements));
+        if(selectiveAcknowledgements != null) {
+            buffer.writeShort(selectiveAcknowledgements.length / 2);
+            for (long sequenceNumber : selectiveAcknowledgements)
+                buffer.writeLong(sequenceNumber);
+        }
+        return buffer;
+    }
+
+    @Override
+    public ByteBuf encodeTransportMessage(SafeMessage message, SharedPayload payload) {
+        ByteBuf content = payload.content();
+        IntegrityCheck integrityCheck = getIntegrityCheck();
+        ByteBuf header = alloc().buffer(HEADER_LENGTH);
+        header.writeByte(message.getType().ordinal());
+        header.writeByte((payload.isBinary() ? FLAG_BINARY : 0) | integrityCheck.getId() << INTEGRITY_CHECK_SHIFT);
+        header.writeLong(message.getSequenceNumber());
+        header.writeInt(payload.checksum(integrityCheck));
+        header.writeLong(message.getTimeStamp());
+        header.writeInt(content.readableBytes());
+
+        //Only the header is written per connection, the payload is shared
+        CompositeByteBuf buffer = alloc().compositeBuffer(2);
+        buffer.addComponents(true, header, content.retainedDuplicate());
+        return buffer;
+    }
+
+    @Override
+    protected ByteBuf encodeTransportMessage(SafeMessage message, ByteBuf data) {
+        IntegrityCheck integrityCheck = getIntegrityCheck();
+        int checksum = integrityCheck == IntegrityCheck.HASH_CODE ? hashCode(data)
+                : integrityCheck.checksum(data, data.readerIndex(), data.readableBytes());
+        ByteBuf header = alloc().buffer(HEADER_LENGTH);
+        header.writeByte(message.getType().ordinal());
+        header.writeByte(FLAG_BINARY | integrityCheck.getId() << INTEGRITY_CHECK_SHIFT);
+        header.writeLong(message.getSequenceNumber());
+        header.writeInt(checksum);
+        header.writeLong(message.getTimeStamp());
+        header.writeInt(data.readableBytes());
+
+        //The payload is not copied, the encoded message keeps a slice of the buffer
+        CompositeByteBuf buffer = alloc().compositeBuffer(2);
+        buffer.addComponents(true, header, data.retainedSlice());
+        return buffer;
+    }
+
+    @Override
+    protected ByteBuf encodeWithAcknowledgement(ByteBuf encodedMessage, long acknowledged) {
+        int index = encodedMessage.readerIndex();
+        int flags = encodedMessage.getUnsignedByte(index + 1);
+        IntegrityCheck integrityCheck = IntegrityCheck.fromId((flags >> INTEGRITY_CHECK_SHIFT) & INTEGRITY_CHECK_MASK);
+        ByteBuf header = alloc().buffer(HEADER_LENGTH + 8 + 4);
+        header.writeBytes(encodedMessage, index, HEADER_LENGTH);
+        header.setByte(1, flags | FLAG_ACKNOWLEDGEMENT);
+        header.writeLong(acknowledged);
+        if(integrityCheck != IntegrityCheck.NONE)
+            header.writeInt(integrityCheck.checksum(SafeMessage.Status.OK.ordinal(), acknowledged, null));
+
+        //Only the header is written again, payload and ranges are shared with the stored encoding
+        CompositeByteBuf buffer = alloc().compositeBuffer(2);
+        buffer.addComponents(true, header,
+                encodedMessage.retainedSlice(index + HEADER_LENGTH, encodedMessage.readableBytes() - HEADER_LENGTH));
+        return buffer;
+    }
+
+    /**
+     * Compute the legacy hash of a binary payload (the same as Arrays.hashCode of its bytes)
+     *
+     * @param data buffer containing the payload
+     * @return hash of the readable bytes
+     */
+    private static int hashCode(ByteBuf data) {
+        int hash = 1;
+        for (int i = data.readerIndex(); i < data.writerIndex(); i++)
+            hash = 31 * hash + data.getByte(i);
+        return hash;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws CorruptedFrameException if the record is truncated or malformed
+     */
+    @Override
+    public SafeMessage decodeTransportMessage(ByteBuf transportMessage) {
+        checkReadable(transportMessage, 1);
+        int typeId = transportMessage.readUnsignedByte();
+        if(typeId == CONTROL_FRAME)
+            return decodeControlFrame(transportMessage);
+        if(typeId > SafeMessage.Type.FEEDBACK.ordinal())
+            throw new CorruptedFrameException("Unknown message type " + typeId);
+        SafeMessage.Type type = SafeMessage.Type.fromOrdinal(typeId);
+        checkReadable(transportMessage, HEADER_LENGTH - 1);
+        int flags = transportMessage.readUnsignedByte();
+        long sequenceNumber = transportMessage.readLong();
+        int storedHash = transportMessage.readInt();
+        long timestamp = transportMessage.readLong();
+        int length = transportMessage.readInt();
+        if(length < 0)
+            throw new CorruptedFrameException("Negative payload length " + length);
+
+        IntegrityCheck integrityCheck = IntegrityCheck.fromId((flags >> INTEGRITY_CHECK_SHIFT) & INTEGRITY_CHECK_MASK);
+        long acknowledgement = -1;
+        if((flags & FLAG_ACKNOWLEDGEMENT) != 0) {
+            checkReadable(transportMessage, integrityCheck != IntegrityCheck.NONE ? 12 : 8);
+            long acknowledged = transportMessage.readLong();
+            //An acknowledgement failing its checksum could confirm messages that never arrived, so it is dropped
+            if(integrityCheck == IntegrityCheck.NONE || transportMessage.readInt()
+                    == integrityCheck.checksum(SafeMessage.Status.OK.ordinal(), acknowledged, null))
+                acknowledgement = acknowledged;
+        }
+        checkReadable(transportMessage, length);
+        int checkedLength = length;
+        if((flags & FLAG_SELECTIVE_ACKNOWLEDGEMENTS) != 0) {
+            checkReadable(transportMessage, length + 2);
+            checkedLength += 2 + 16 * transportMessage.getUnsignedShort(transportMessage.readerIndex() + length);
+            checkReadable(transportMessage, checkedLength);
+        }
+        int checksum = integrityCheck.checksum(transportMessage, transportMessage.readerIndex(), checkedLength);
+
+        SafeMessage message;
+        if((flags & FLAG_BINARY) != 0) {
+            byte[] data = new byte[length];
+            transportMessage.readBytes(data);
+            message = SafeMessage.newInstance(sequenceNumber, storedHash, timestamp, data, type);
+        } else {
+            String data = transportMessage.toString(transportMessage.readerIndex(), length, CharsetUtil.UTF_8);
+            transportMessage.skipBytes(length);
+            message = SafeMessage.newInstance(sequenceNumber, storedHash, timestamp, data, type);
+        }
+        message.setIntegrityCheck(integrityCheck, checksum);
+        message.setMoreFragments((flags & FLAG_MORE_FRAGMENTS) != 0);
+        message.setAcknowledgement(acknowledgement);
+
+        if((flags & FLAG_SELECTIVE_ACKNOWLEDGEMENTS) != 0) {
+            long[] selectiveAcknowledgements = new long[2 * transportMessage.readUnsignedShort()];
+            for (int i = 0; i < selectiveAcknowledgements.length; i++)
+                selectiveAcknowledgements[i] = transportMessage.readLong();
+            message.setSelectiveAcknowledgements(selectiveAcknowledgements);
+        }
+        return message;
+    }
+
+    /**
+     * Restore a feedback message from a control frame (the type is already read)
+     *
+     * @param transportMessage received control frame
+     * @return decoded feedback message
+     */
+    private SafeMessage decodeControlFrame(ByteBuf transportMessage) {
+        checkReadable(transportMessage, 1 + 1 + 8);
+        int statusId = transportMessage.readUnsignedByte();
+        if(statusId > SafeMessage.Status.FAILED.ordinal())
+            throw new CorruptedFrameException("Unknown feedback status " + statusId);
+        SafeMessage.Status status = SafeMessage.Status.fromOrdinal(statusId);
+        int flags = transportMessage.readUnsignedByte();
+        long sequenceNumber = transportMessage.readLong();
+        IntegrityCheck integrityCheck = IntegrityCheck.fromId((flags >> INTEGRITY_CHECK_SHIFT) & INTEGRITY_CHECK_MASK);
+        int storedHash = 0;
+        if(integrityCheck != IntegrityCheck.NONE) {
+            checkReadable(transportMessage, 4);
+            storedHash = transportMessage.readInt();
+        }
+
+        long[] selectiveAcknowledgements = null;
+        if((flags & FLAG_SELECTIVE_ACKNOWLEDGEMENTS) != 0) {
+            checkReadable(transportMessage, 2);
+            checkReadable(transportMessage, 2 + 16 * transportMessage.getUnsignedShort(transportMessage.readerIndex()));
+            selectiveAcknowledgements = new long[2 * transportMessage.readUnsignedShort()];
+            for (int i = 0; i < selectiveAcknowledgements.length; i++)
+                selectiveAcknowledgements[i] = transportMessage.readLong();
+        }
+
+        SafeMessage message = SafeMessage.newInstance(sequenceNumber, storedHash, 0,
+                status == SafeMessage.Status.OK ? "OK" : "FAILED", SafeMessage.Type.FEEDBACK);
+        message.setStatus(status);
+        message.setSelectiveAcknowledgements(selectiveAcknowledgements);
+        message.setIntegrityCheck(integrityCheck, integrityCheck.checksum(status.ordinal(), sequenceNumber, selectiveAcknowledgements));
+        return message;
+    }
+
+    /**
+     * Make sure the rest of a record is there before reading it
+     *
+     * @param transportMessage buffer holding the record
+     * @param length number of bytes the record still needs
+     * @throws CorruptedFrameException if fewer bytes are left
+     */
+    private static void checkReadable(ByteBuf transportMessage, int length) {
+        if(transportMessage.readableBytes() < length)
+            throw new CorruptedFrameException("Record truncated, " + length + " bytes expected but only "
+                    + transportMessage.readableBytes() + " left");
+    }
+
+    @Override
+    public void receiveFrame(WebSocketFrame frame) {
+        if (!(frame instanceof BinaryWebSocketFrame)) {
+            rejectFrame(frame);
+            return;
+        }
+        ByteBuf content = frame.content();
+        while (content.isReadable()) {
+            SafeMessage message;
+            try {
+                message = decodeTransportMessage(content);
+            } catch (CorruptedFrameException e) {
+                //Records behind a malformed one cannot be located, so the rest of the frame is dropped
+                receiveCorrupted();
+                return;
+            }
+            receive(message);
+        }
+    }
+
+    @Override
+    protected void send(ByteBuf encodedMessage) {
+        //Keep the encoded message in the buffer for resending, so only hand out a retained view of it
+        WebSocketFrame frame = new BinaryWebSocketFrame(encodedMessage.retainedDuplicate());
+        write(frame);
+    }
+
+    @Override
+    protected ByteBuf pack(List<ByteBuf> encodedMessages) {
+        CompositeByteBuf buffer = alloc().compositeBuffer(encodedMessages.size());
+        for (ByteBuf encodedMessage : encodedMessages)
+            buffer.addComponent(true, encodedMessage.retainedDuplicate());
+        return buffer;
+    }
+
+    @Override
+    protected int sizeOf(ByteBuf encodedMessage) {
+        return encodedMessage.readableBytes();
+    }
+
+    @Override
+    protected void release(ByteBuf encodedMessage) {
+        encodedMessage.release();
+    }
+
+    /**
+     * Get the allocator to use for encoding
+     *
+     * @return allocator of the channel or the default (pooled) one if there is no channel yet
+     */
+    private ByteBufAllocator alloc() {
+        return channel != null ? channel.alloc() : ByteBufAllocator.DEFAULT;
+    }
+}
@@ -0,0 +1,32 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+/**
+ * safeCommLib
+ *
+ * Callback for messages sent without a future of their own. One listener can serve any number of messages,
+ * so sending through it allocates nothing per message.
+ * Every accepted message is reported exactly once, in the order of the sequence numbers (only a message that
+ * could not be journaled fails right away). The callbacks run while the send lock of the message handler is held,
+ * so they must not block or send themselves.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public interface DeliveryListener {
+
+    /**
+     * The receiver acknowledged a message
+     *
+     * @param sequenceNumber sequence number of the message
+     */
+    public void delivered(long sequenceNumber);
+
+    /**
+     * A message was rejected, expired or dropped with its connection
+     *
+     * @param sequenceNumber sequence number of the message (-1 if it was rejected before getting one)
+     * @param cause reason for the failure
+     */
+    public void failed(long sequenceNumber, Throwable cause);
+}
@@ -0,0 +1,115 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * safeCommLib
+ *
+ * Executors for passing received messages on outside of the event loop (see MessageHandler.setDispatchExecutor).
+ * Every connection queues its messages on its own, so a connection never uses more than one thread at a time
+ * and its messages are passed on in order.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public final class Dispatchers {
+
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+
+    private Dispatchers() {
+    }
+
+    /**
+     * Check if the JVM supports virtual threads (Java 21 or newer)
+     *
+     * @return true if virtual threads can be created
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Get an executor starting a new virtual thread for every busy connection
+     * Blocking receivers only park their virtual thread, so thousands of connections can block at the same time.
+     * On JVMs without virtual threads, a cached pool of daemon threads is used instead.
+     *
+     * @return executor for dispatching received messages
+     */
+    public static Executor virtualThreadPerConnection() {
+        if (VIRTUAL_THREAD_FACTORY != null)
+            return threadPerTask(VIRTUAL_THREAD_FACTORY);
+        return cachedThreadPool();
+    }
+
+    /**
+     * Get an executor starting a new thread of the given factory for every task
+     *
+     * @param threadFactory factory creating the threads
+     * @return executor for dispatching received messages
+     */
+    public static Executor threadPerTask(final ThreadFactory threadFactory) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                threadFactory.newThread(task).start();
+            }
+        };
+    }
+
+    /**
+     * Get a pool of daemon threads created on demand and kept for a minute when idle
+     *
+     * @return executor for dispatching received messages
+     */
+    public static ExecutorService cachedThreadPool() {
+        return Executors.newCachedThreadPool(daemonThreadFactory());
+    }
+
+    /**
+     * Get a pool with a fixed number of daemon threads shared by all connections
+     *
+     * @param threads number of threads
+     * @return executor for dispatching received messages
+     */
+    public static ExecutorService fixedThreadPool(int threads) {
+        return Executors.newFixedThreadPool(threads, daemonThreadFactory());
+    }
+
+    /**
+     * Create a factory of daemon threads named after the library
+     *
+     * @return thread factory
+     */
+    private static ThreadFactory daemonThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "safeCommLib-dispatch-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Create a factory of virtual threads with reflection, so the library still runs on older JVMs
+     *
+     * @return thread factory (null if virtual threads are not supported)
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "safeCommLib-dispatch-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
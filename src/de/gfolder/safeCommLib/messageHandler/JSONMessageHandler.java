@@ -1,14 +1,29 @@
 package de.gfolder.safeCommLib.messageHandler;
 
+import de.gfolder.safeCommLib.message.IntegrityCheck;
 import de.gfolder.safeCommLib.message.SafeMessage;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
+import java.util.Base64;
+import java.util.List;
+
 /**
  * safeCommLib
  *
+ * Message handler encoding messages as JSON objects.
+ * Checksums over bytes are computed over the UTF-8 encoded text or the raw binary payload;
+ * the id of the integrity check is sent as "check" unless the legacy hash is used.
+ * Fragments followed by further fragments of the same payload are marked with "more".
+ * Unless the legacy hash is used (for older versions), feedback is sent as compact control object with the numeric
+ * status, e.g. {"status":0,"ack":41,"check":1,"storedHash":-1273893746}. The checksum covers status, sequence number
+ * and ranges in their binary form (see IntegrityCheck.checksum(int, long, long[])).
+ * Normal messages can carry the acknowledgement of the messages their sender received along as "ack",
+ * checked on its own by "ackHash" (the checksum of an OK feedback, left out with NONE).
+ *
  * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
  * @version 0.1
  */
@@ -19,30 +34,219 @@ public class JSONMessageHandler extends MessageHandler<String> {
     public String encodeTransportMessage(SafeMessage message) {
         if(message == null)
             return null;
+        if(message.getType() == SafeMessage.Type.FEEDBACK && getIntegrityCheck() != IntegrityCheck.HASH_CODE)
+            return encodeControlFrame(message);
+
+        IntegrityCheck integrityCheck = getIntegrityCheck();
+        int storedHash;
+        if(integrityCheck == IntegrityCheck.HASH_CODE)
+            storedHash = message.getStoredHash();
+        else if(message.isBinary())
+            storedHash = integrityCheck.checksum(message.getBinaryData(), 0, message.getBinaryData().length);
+        else
+            storedHash = integrityCheck.checksum(message.getData());
+        String escapedData = message.isBinary()
+                ? Base64.getEncoder().encodeToString(message.getBinaryData())
+                : JSONValue.escape(message.getData());
+
+        StringBuilder builder = new StringBuilder(escapedData.length() + 128);
+        builder.append("{\"sequenceNumber\":").append(message.getSequenceNumber())
+                .append(",\"storedHash\":").append(storedHash);
+        if(integrityCheck != IntegrityCheck.HASH_CODE)
+            builder.append(",\"check\":").append(integrityCheck.getId());
+        builder.append(",\"timestamp\":").append(message.getTimeStamp())
+                .append(",\"type\":").append(message.getType().ordinal())
+                .append(message.isBinary() ? ",\"binaryData\":\"" : ",\"data\":\"")
+                .append(escapedData)
+                .append('"');
+        if(message.hasMoreFragments())
+            builder.append(",\"more\":true");
+        appendRanges(builder, message.getSelectiveAcknowledgements());
+        return builder.append('}').toString();
+    }
+
+    /**
+     * Append selective acknowledgement ranges as "sack" array
+     *
+     * @param builder builder of the encoded object
+     * @param selectiveAcknowledgements first and last sequence number of each range (nothing is appended for null)
+     */
+    private static void appendRanges(StringBuilder builder, long[] selectiveAcknowledgements) {
+        if(selectiveAcknowledgements == null)
+            return;
+        builder.append(",\"sack\":[");
+        for (int i = 0; i < selectiveAcknowledgements.length; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append(selectiveAcknowledgements[i]);
+        }
+        builder.append(']');
+    }
 
-        JSONObject jObj = new JSONObject();
-        jObj.put("sequenceNumber", message.getSequenceNumber());
-        jObj.put("storedHash", message.getStoredHash());
-        jObj.put("timestamp", message.getTimeStamp());
-        jObj.put("type", message.getType().ordinal());
-        jObj.put("data", message.getData());
-        return jObj.toJSONString();
+    /**
+     * Encode a feedback message as compact control object
+     *
+     * @param message feedback message
+     * @return encoded control object
+     */
+    private String encodeControlFrame(SafeMessage message) {
+        IntegrityCheck integrityCheck = getIntegrityCheck();
+        long[] selectiveAcknowledgements = message.getSelectiveAcknowledgements();
+        int status = message.getStatus().ordinal();
+        StringBuilder builder = new StringBuilder(64);
+        builder.append("{\"status\":").append(status)
+                .append(",\"ack\":").append(message.getSequenceNumber())
+                .append(",\"check\":").append(integrityCheck.getId());
+        if(integrityCheck != IntegrityCheck.NONE)
+            builder.append(",\"storedHash\":").append(integrityCheck.checksum(status, message.getSequenceNumber(), selectiveAcknowledgements));
+        appendRanges(builder, selectiveAcknowledgements);
+        return builder.append('}').toString();
+    }
+
+    @Override
+    public String encodeTransportMessage(SafeMessage message, SharedPayload payload) {
+        //Only the header fields are written per connection, the escaped payload is shared
+        IntegrityCheck integrityCheck = getIntegrityCheck();
+        String escapedData = payload.escapedData();
+        StringBuilder builder = new StringBuilder(escapedData.length() + 128);
+        builder.append("{\"sequenceNumber\":").append(message.getSequenceNumber())
+                .append(",\"storedHash\":").append(payload.checksum(integrityCheck));
+        if(integrityCheck != IntegrityCheck.HASH_CODE)
+            builder.append(",\"check\":").append(integrityCheck.getId());
+        builder.append(",\"timestamp\":").append(message.getTimeStamp())
+                .append(",\"type\":").append(message.getType().ordinal())
+                .append(payload.isBinary() ? ",\"binaryData\":\"" : ",\"data\":\"")
+                .append(escapedData)
+                .append("\"}");
+        return builder.toString();
+    }
+
+    @Override
+    protected String encodeWithAcknowledgement(String encodedMessage, long acknowledged) {
+        IntegrityCheck integrityCheck = getIntegrityCheck();
+        StringBuilder builder = new StringBuilder(encodedMessage.length() + 48);
+        builder.append("{\"ack\":").append(acknowledged);
+        if(integrityCheck != IntegrityCheck.NONE)
+            builder.append(",\"ackHash\":").append(integrityCheck.checksum(SafeMessage.Status.OK.ordinal(), acknowledged, null));
+        //The stored encoding is an object as well, its fields follow
+        return builder.append(',').append(encodedMessage, 1, encodedMessage.length()).toString();
     }
 
     @Override
     public SafeMessage decodeTransportMessage(String transportMessage) {
-        JSONObject jObj = (JSONObject) JSONValue.parse(transportMessage);
+        return decode((JSONObject) JSONValue.parse(transportMessage));
+    }
+
+    /**
+     * Restore a message from its JSON representation
+     *
+     * @param jObj the parsed message
+     * @return decoded SafeMessage
+     */
+    private SafeMessage decode(JSONObject jObj) {
+        if(jObj.containsKey("status"))
+            return decodeControlFrame(jObj);
         long sequenceNumber = (Long) jObj.get("sequenceNumber");
         int storedHash = ((Long) jObj.get("storedHash")).intValue();
         long timestamp = (Long) jObj.get("timestamp");
-        SafeMessage.Type type = SafeMessage.Type.values()[((Long) jObj.get("type")).intValue()];
-        String data = (String) jObj.get("data");
-        return new SafeMessage(sequenceNumber, storedHash, timestamp, data, type);
+        SafeMessage.Type type = SafeMessage.Type.fromOrdinal(((Long) jObj.get("type")).intValue());
+        Long check = (Long) jObj.get("check");
+        IntegrityCheck integrityCheck = IntegrityCheck.fromId(check != null ? check.intValue() : 0);
+        String binaryData = (String) jObj.get("binaryData");
+        SafeMessage message;
+        if(binaryData != null) {
+            byte[] data = Base64.getDecoder().decode(binaryData);
+            message = SafeMessage.newInstance(sequenceNumber, storedHash, timestamp, data, type);
+            message.setIntegrityCheck(integrityCheck, integrityCheck.checksum(data, 0, data.length));
+        } else {
+            String data = (String) jObj.get("data");
+            message = SafeMessage.newInstance(sequenceNumber, storedHash, timestamp, data, type);
+            message.setIntegrityCheck(integrityCheck, integrityCheck.checksum(data));
+        }
+        message.setMoreFragments(Boolean.TRUE.equals(jObj.get("more")));
+
+        //An acknowledgement failing its checksum could confirm messages that never arrived, so it is dropped
+        Long acknowledged = (Long) jObj.get("ack");
+        Long acknowledgementHash = (Long) jObj.get("ackHash");
+        if(acknowledged != null && integrityCheck != IntegrityCheck.HASH_CODE && (integrityCheck == IntegrityCheck.NONE
+                || (acknowledgementHash != null && acknowledgementHash.intValue()
+                == integrityCheck.checksum(SafeMessage.Status.OK.ordinal(), acknowledged, null))))
+            message.setAcknowledgement(acknowledged);
+
+        JSONArray ranges = (JSONArray) jObj.get("sack");
+        if(ranges != null) {
+            long[] selectiveAcknowledgements = new long[ranges.size()];
+            for (int i = 0; i < selectiveAcknowledgements.length; i++)
+                selectiveAcknowledgements[i] = (Long) ranges.get(i);
+            message.setSelectiveAcknowledgements(selectiveAcknowledgements);
+        }
+        return message;
+    }
+
+    /**
+     * Restore a feedback message from its compact control object
+     *
+     * @param jObj the parsed control object
+     * @return decoded feedback message
+     */
+    private SafeMessage decodeControlFrame(JSONObject jObj) {
+        SafeMessage.Status status = SafeMessage.Status.fromOrdinal(((Long) jObj.get("status")).intValue());
+        long sequenceNumber = (Long) jObj.get("ack");
+        IntegrityCheck integrityCheck = IntegrityCheck.fromId(((Long) jObj.get("check")).intValue());
+        Long storedHash = (Long) jObj.get("storedHash");
+
+        long[] selectiveAcknowledgements = null;
+        JSONArray ranges = (JSONArray) jObj.get("sack");
+        if(ranges != null) {
+            selectiveAcknowledgements = new long[ranges.size()];
+            for (int i = 0; i < selectiveAcknowledgements.length; i++)
+                selectiveAcknowledgements[i] = (Long) ranges.get(i);
+        }
+
+        SafeMessage message = SafeMessage.newInstance(sequenceNumber, storedHash != null ? storedHash.intValue() : 0, 0,
+                status == SafeMessage.Status.OK ? "OK" : "FAILED", SafeMessage.Type.FEEDBACK);
+        message.setStatus(status);
+        message.setSelectiveAcknowledgements(selectiveAcknowledgements);
+        message.setIntegrityCheck(integrityCheck, integrityCheck.checksum(status.ordinal(), sequenceNumber, selectiveAcknowledgements));
+        return message;
+    }
+
+    @Override
+    public void receiveFrame(WebSocketFrame frame) {
+        if (!(frame instanceof TextWebSocketFrame)) {
+            rejectFrame(frame);
+            return;
+        }
+        String text = ((TextWebSocketFrame) frame).text();
+        //Several messages combined into one frame are sent as array
+        if (text.startsWith("[")) {
+            for (Object jObj : (JSONArray) JSONValue.parse(text))
+                receive(decode((JSONObject) jObj));
+        } else {
+            receive(text);
+        }
     }
 
     @Override
     protected void send(String encodedMessage) {
         WebSocketFrame frame = new TextWebSocketFrame(encodedMessage);
-        channel.writeAndFlush(frame);
+        write(frame);
+    }
+
+    @Override
+    protected String pack(List<String> encodedMessages) {
+        StringBuilder builder = new StringBuilder();
+        builder.append('[');
+        for (int i = 0; i < encodedMessages.size(); i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append(encodedMessages.get(i));
+        }
+        return builder.append(']').toString();
+    }
+
+    @Override
+    protected int sizeOf(String encodedMessage) {
+        return encodedMessage.length();
     }
 }
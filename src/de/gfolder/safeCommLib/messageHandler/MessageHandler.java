@@ -1,18 +1,43 @@
 package de.gfolder.safeCommLib.messageHandler;
 
+import de.gfolder.safeCommLib.message.IntegrityCheck;
 import de.gfolder.safeCommLib.message.SafeMessage;
-import de.gfolder.safeCommLib.message.SafeMessageFactory;
+import de.gfolder.safeCommLib.metrics.MessageMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.VoidChannelPromise;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocalThread;
+import io.netty.util.internal.EmptyArrays;
 
-import javax.swing.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * safeCommLib
@@ -23,239 +48,1849 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class MessageHandler<T> {
 
-    private long lastReceivedMessage;
+    /**
+     * Behaviour of sendMessage if the sending window is full
+     */
+    public enum OverflowPolicy {
+        /** Block the calling thread until the window reopens (queues instead if called on any event loop) */
+        BLOCK,
+        /** Return a failed future immediately */
+        FAIL,
+        /** Queue the message and return its future right away */
+        QUEUE
+    }
+
+    /**
+     * Future of a single message, completed by the handler like any other delivery listener
+     */
+    private static final class DeliveryFuture extends CompletableFuture<Long> implements DeliveryListener {
+        @Override
+        public void delivered(long sequenceNumber) {
+            complete(sequenceNumber);
+        }
+
+        @Override
+        public void failed(long sequenceNumber, Throwable cause) {
+            completeExceptionally(cause);
+        }
+    }
+
+    //Payloads of unsolicited pongs telling the other side that reading paused or resumed
+    private static final ByteBuf READING_PAUSED = Unpooled.unreleasableBuffer(
+            Unpooled.wrappedBuffer(new byte[]{'p', 'a', 'u', 's', 'e', 'd'}));
+    private static final ByteBuf READING_RESUMED = Unpooled.unreleasableBuffer(
+            Unpooled.wrappedBuffer(new byte[]{'r', 'e', 's', 'u', 'm', 'e', 'd'}));
+
+    //Only accessed on the event loop of the channel
     private boolean receivedPong;
-    private LinkedList<StoredMessage<T>> sendingBuffer;
-    private LinkedList<StoredMessage<SafeMessage>> receivingBuffer;
-    protected Channel channel;
-    private Timer pingTimer;
+    private boolean receivedMessages;
+    private boolean peerReadingPaused;
+    private long pingSent;
+    private MessageMetrics metrics = new MessageMetrics();
+    private ArrayDeque<StoredMessage<T>> sendingBuffer;
+    private ArrayDeque<StoredMessage<T>> pendingBuffer;
+    private long sendingBufferBytes;
+    private ReceivingWindow receivingWindow;
+    protected volatile Channel channel;
+    private volatile ScheduledFuture<?> supervisorTimer;
+    private final Runnable supervisorTask = new Runnable() {
+        @Override
+        public void run() {
+            if(receivedMessages || readingPaused || peerReadingPaused)
+            {
+                //Messages arrived during the interval, so the connection is alive without pinging it.
+                //While one side does not read, pongs cannot arrive, so the interval is not counted.
+                receivedMessages = false;
+                receivedPong = true;
+            }
+            else if(!receivedPong)
+            {
+                deactivateConnectionSupervisor();
+                handleBreakup(channel);
+            }
+            else
+            {
+                receivedPong = false;
+                sendPing();
+            }
+        }
+    };
+
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Condition sendingWindowOpened = sendLock.newCondition();
+    private long sendingSequenceNumber;
+
+    private int sendingWindowMessages = SENDING_WINDOW_MESSAGES;
+    private int pendingLimit = PENDING_MESSAGES;
+    private IntegrityCheck integrityCheck = INTEGRITY_CHECK;
+    private long sendingWindowBytes = SENDING_WINDOW_BYTES;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long deliveryTimeout = DELIVERY_TIMEOUT;
+    private MessageJournal journal;
+    private int fragmentSize = FRAGMENT_SIZE;
+    private boolean receivingFragments;
+    private StringBuilder textFragments;
+    private ByteArrayOutputStream binaryFragments;
+    private SerialExecutor dispatcher;
+    private boolean recycleReceived;
+    private int dispatchQueueLimit = DISPATCH_QUEUE_LIMIT;
+    //Only changed on the event loop of the channel
+    private volatile boolean readingPaused;
+    private final AtomicBoolean resumeReadingRequested = new AtomicBoolean();
+    private final Runnable resumeReadingTask = new Runnable() {
+        @Override
+        public void run() {
+            resumeReadingRequested.set(false);
+            Channel channel = MessageHandler.this.channel;
+            if (readingPaused && isDispatchQueueDrained() && channel != null) {
+                readingPaused = false;
+                channel.config().setAutoRead(true);
+                advertiseReading(channel, READING_RESUMED);
+            }
+        }
+    };
+    private boolean batching;
+    private final List<T> batch = new ArrayList<>();
+    private int batchBytes;
+    //Only accessed on the event loop of the channel
+    private boolean flushScheduled;
+    private ChannelPromise writePromise;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            channel.flush();
+        }
+    };
+    private long fastRetransmitMark = -1;
+    private boolean resuming;
+    private boolean detached;
+    private boolean cleared;
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator(
+            TimeUnit.MILLISECONDS.toNanos(RETRANSMISSION_TIMEOUT_INITIAL),
+            TimeUnit.MILLISECONDS.toNanos(RETRANSMISSION_TIMEOUT_MIN),
+            TimeUnit.MILLISECONDS.toNanos(RETRANSMISSION_TIMEOUT_MAX));
+    private ScheduledFuture<?> retransmissionTimer;
+    private final Runnable retransmissionTask = new Runnable() {
+        @Override
+        public void run() {
+            resendExpired();
+        }
+    };
+
+    private int acknowledgementMessages = ACKNOWLEDGEMENT_MESSAGES;
+    private long acknowledgementDelay = ACKNOWLEDGEMENT_DELAY;
+    private int unacknowledgedMessages;
+    private boolean acknowledgeFailure;
+    private ScheduledFuture<?> acknowledgementTimer;
+    private final Runnable acknowledgementTask = new Runnable() {
+        @Override
+        public void run() {
+            acknowledgementTimer = null;
+            //Nothing left if sent messages carried everything along
+            if (!acknowledgementPiggybacked() && unacknowledgedMessages > 0)
+                sendAcknowledgement();
+        }
+    };
+    //Sequence number a delayed acknowledgement confirms, taken by the next sent message to carry it along (-1 if none)
+    private final AtomicLong pendingAcknowledgement = new AtomicLong(-1);
+    //Only accessed on the event loop of the channel
+    private boolean acknowledgementPublished;
+    //Message of the current batch carrying the acknowledgement, released once the batch is sent
+    private T batchAcknowledgement;
+
+    /**
+     * Interval between two checks of the supervisor in milliseconds
+     */
+    public static int SUPERVISOR_INTERVAL = 2000;
+
+    /**
+     * Number of sequence numbers the receiving window spans (rounded up to a power of two)
+     * Messages arriving further ahead of the next expected one are dropped and have to be resent
+     */
+    public static int RECEIVING_WINDOW_SIZE = 4096;
+
+    /**
+     * Default maximum number of sent but unacknowledged messages
+     */
+    public static int SENDING_WINDOW_MESSAGES = 1024;
+
+    /**
+     * Default maximum number of bytes in sent but unacknowledged messages
+     */
+    public static long SENDING_WINDOW_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Default maximum number of messages queued while the sending window is full or the connection is down
+     */
+    public static int PENDING_MESSAGES = 65536;
+
+    /**
+     * Default number of received messages after which an acknowledgement is sent at the latest
+     */
+    public static int ACKNOWLEDGEMENT_MESSAGES = 8;
+
+    /**
+     * Default time in microseconds an acknowledgement may be delayed to be combined with following ones
+     */
+    public static long ACKNOWLEDGEMENT_DELAY = 500;
+
+    /**
+     * Maximum number of ranges received behind a gap reported in one feedback message
+     */
+    public static int SELECTIVE_ACKNOWLEDGEMENT_RANGES = 8;
+
+    /**
+     * Retransmission timeout in milliseconds before the round trip time was measured
+     */
+    public static long RETRANSMISSION_TIMEOUT_INITIAL = 1000;
+
+    /**
+     * Lower bound of the retransmission timeout in milliseconds
+     */
+    public static long RETRANSMISSION_TIMEOUT_MIN = 200;
+
+    /**
+     * Upper bound of the retransmission timeout in milliseconds (including backoff)
+     */
+    public static long RETRANSMISSION_TIMEOUT_MAX = 60000;
+
+    /**
+     * Maximum size in bytes of a frame combining several messages (if batching is enabled)
+     */
+    public static int BATCH_SIZE = 32 * 1024;
+
+    /**
+     * Default strategy for detecting corrupted messages
+     */
+    public static IntegrityCheck INTEGRITY_CHECK = IntegrityCheck.CRC32C;
+
+    /**
+     * Default time in milliseconds after which the future of an unacknowledged message fails (0 to wait forever)
+     */
+    public static long DELIVERY_TIMEOUT = 0;
+
+    /**
+     * Default maximum payload of a single message in bytes (binary) or characters (text)
+     * Larger payloads are split into fragments sent as consecutive messages
+     */
+    public static int FRAGMENT_SIZE = 16 * 1024;
+
+    /**
+     * Default maximum payload length in bytes of a received frame (used by servers and clients for the handshake)
+     * Has to be large enough for a batch or fragment after encoding
+     */
+    public static int MAX_FRAME_SIZE = 256 * 1024;
+
+    /**
+     * Default number of received messages waiting for the dispatch executor at which reading from the channel pauses
+     * Reading resumes once the queue is down to half of it
+     */
+    public static int DISPATCH_QUEUE_LIMIT = 1024;
+
+    /**
+     * Constructor
+     */
+    protected MessageHandler() {
+        sendingBuffer = new ArrayDeque<>();
+        pendingBuffer = new ArrayDeque<>();
+        receivingWindow = new ReceivingWindow(RECEIVING_WINDOW_SIZE);
+        receivedPong = true;
+    }
+
+    /**
+     * Getter for property 'channel'.
+     *
+     * @return Value for property 'channel'.
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Setter for property 'channel'.
+     *
+     * @param channel Value to set for property 'channel'.
+     */
+    public void setChannel(Channel channel) {
+        this.channel = channel;
+        readingPaused = false;
+        peerReadingPaused = false;
+        channelWritabilityChanged();
+    }
+
+    /**
+     * Setter for property 'overflowPolicy'.
+     *
+     * @param overflowPolicy Value to set for property 'overflowPolicy'.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Getter for property 'integrityCheck'.
+     *
+     * @return Value for property 'integrityCheck'.
+     */
+    public IntegrityCheck getIntegrityCheck() {
+        return integrityCheck;
+    }
+
+    /**
+     * Setter for property 'integrityCheck'.
+     * Only affects sent messages, received ones are checked the way their sender chose.
+     * Use HASH_CODE when talking to older versions and NONE if the transport guarantees integrity (e.g. TLS).
+     *
+     * @param integrityCheck Value to set for property 'integrityCheck'.
+     */
+    public void setIntegrityCheck(IntegrityCheck integrityCheck) {
+        this.integrityCheck = integrityCheck;
+    }
+
+    /**
+     * Setter for property 'pendingLimit'.
+     * Maximum number of messages queued while the sending window is full or the connection is down.
+     * Further messages are rejected (or block, depending on the overflow policy).
+     *
+     * @param pendingLimit Value to set for property 'pendingLimit'.
+     */
+    public void setPendingLimit(int pendingLimit) {
+        if (pendingLimit < 1) {
+            throw new IllegalArgumentException("Pending limit must allow at least one message");
+        }
+        this.pendingLimit = pendingLimit;
+    }
+
+    /**
+     * Setter for property 'deliveryTimeout'.
+     * The future of a message fails with a TimeoutException if it was not acknowledged in time.
+     * The message itself is still resent, so the receiver may get it nevertheless.
+     * Expired futures are detected with the retransmission timer, so they may fail up to one timeout late.
+     *
+     * @param deliveryTimeout Value to set for property 'deliveryTimeout' in milliseconds (0 to wait forever).
+     */
+    public void setDeliveryTimeout(long deliveryTimeout) {
+        if (deliveryTimeout < 0) {
+            throw new IllegalArgumentException("Delivery timeout must not be negative");
+        }
+        this.deliveryTimeout = deliveryTimeout;
+    }
+
+    /**
+     * Getter for property 'metrics'.
+     *
+     * @return Value for property 'metrics'.
+     */
+    public MessageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Setter for property 'metrics'.
+     * Has to be set before the handler is used. Use MessageMetrics.DISABLED to count nothing.
+     *
+     * @param metrics Value to set for property 'metrics'.
+     */
+    public void setMetrics(MessageMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the number of messages sent but not acknowledged yet
+     *
+     * @return occupancy of the sending window
+     */
+    public int getUnacknowledgedMessages() {
+        sendLock.lock();
+        try {
+            return sendingBuffer.size();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of messages queued until the sending window opens
+     *
+     * @return number of pending messages
+     */
+    public int getPendingMessages() {
+        sendLock.lock();
+        try {
+            return pendingBuffer.size();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of messages received out of order and held back until the gaps before them are filled
+     * The window belongs to the event loop, so the value read from other threads may be slightly outdated
+     *
+     * @return number of messages in the receiving window
+     */
+    public int getReceivingWindowMessages() {
+        return receivingWindow.size();
+    }
+
+    /**
+     * Setter for property 'journal'.
+     * Messages are written to the journal before they are sent and trimmed from it once they are acknowledged.
+     * Unacknowledged messages left in the journal by a previous run are recovered and sent again first,
+     * under new sequence numbers following the ones already used by this handler.
+     * If a message cannot be journaled, its future fails with an IOException. The message itself is still sent,
+     * so the receiver may get it nevertheless, but it is lost if the sender crashes before the acknowledgement.
+     *
+     * @param journal Value to set for property 'journal'.
+     * @throws IOException if the recovered messages could not be journaled again
+     */
+    public void setJournal(MessageJournal journal) throws IOException {
+        sendLock.lock();
+        try {
+            recoverJournal(journal);
+            this.journal = journal;
+            sendPending();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Queue the unacknowledged messages of a journal under the next sequence numbers
+     * Has to be called while holding the send lock
+     *
+     * @param journal journal to recover the messages from
+     * @throws IOException if the recovered messages could not be journaled again
+     */
+    private void recoverJournal(MessageJournal journal) throws IOException {
+        List<SafeMessage> recovered = journal.recover(sendingSequenceNumber);
+        for (SafeMessage message : recovered) {
+            //Not passed to the journal again, it already holds them
+            StoredMessage<T> storedMessage = StoredMessage.newInstance(message.getSequenceNumber(), encodeTransportMessage(message));
+            storedMessage.setSize(sizeOf(storedMessage.getMessage()));
+            pendingBuffer.addLast(storedMessage);
+            message.recycle();
+        }
+        sendingSequenceNumber += recovered.size();
+    }
+
+    /**
+     * Setter for property 'fragmentSize'.
+     * Payloads larger than this are split into fragments, each sequenced and acknowledged on its own.
+     * The receiver reassembles them (or consumes them one by one, see handleReceivedFragment).
+     *
+     * @param fragmentSize maximum payload of a fragment in bytes (binary) or characters (text), 0 to never split
+     */
+    public void setFragmentSize(int fragmentSize) {
+        if (fragmentSize != 0 && fragmentSize < 64) {
+            throw new IllegalArgumentException("Fragments have to hold at least 64 bytes");
+        }
+        this.fragmentSize = fragmentSize;
+    }
+
+    /**
+     * Setter for property 'dispatchExecutor'.
+     * Received messages are passed to handleReceived and handleReceivedFragment on this executor instead of
+     * the event loop, so slow receivers do not hold up the other connections of the event loop.
+     * The messages of this handler are queued and passed on one after another in order.
+     * While more than the dispatch queue limit are waiting, reading from the channel pauses, so the TCP receive window
+     * closes and the sender is slowed down. Pings cannot be answered meanwhile, so the other side is told about the
+     * pause and its supervisor does not consider the connection broken until reading resumes.
+     * Has to be set before the first message arrives.
+     *
+     * @param dispatchExecutor Value to set for property 'dispatchExecutor' (null to pass messages on directly on the event loop).
+     * @see Dispatchers
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        this.dispatcher = dispatchExecutor == null ? null : new SerialExecutor(dispatchExecutor);
+    }
+
+    /**
+     * Setter for property 'recycleReceived'.
+     * If enabled, received messages are handed back to their pool once handleReceived (or handleReceivedFragment)
+     * returned, so receiving allocates no message objects. The message must not be used after returning then;
+     * its payload (data or binary data) may be kept.
+     *
+     * @param recycleReceived Value to set for property 'recycleReceived'.
+     */
+    public void setRecycleReceived(boolean recycleReceived) {
+        this.recycleReceived = recycleReceived;
+    }
+
+    /**
+     * Setter for property 'dispatchQueueLimit'.
+     *
+     * @param dispatchQueueLimit number of messages waiting for the dispatch executor at which reading pauses
+     */
+    public void setDispatchQueueLimit(int dispatchQueueLimit) {
+        if (dispatchQueueLimit < 1) {
+            throw new IllegalArgumentException("Dispatch queue limit must allow at least one message");
+        }
+        this.dispatchQueueLimit = dispatchQueueLimit;
+    }
+
+    /**
+     * Get the number of received messages waiting to be passed on by the dispatch executor
+     *
+     * @return number of queued messages (0 if messages are passed on directly)
+     */
+    public int getDispatchQueueSize() {
+        SerialExecutor dispatcher = this.dispatcher;
+        return dispatcher == null ? 0 : dispatcher.size();
+    }
+
+    /**
+     * Run a task in order with the received messages
+     * With a dispatch executor, the task is queued behind the messages received so far,
+     * otherwise it runs right away on the calling thread
+     *
+     * @param task task to run
+     */
+    public void executeInOrder(Runnable task)
+    {
+        SerialExecutor dispatcher = this.dispatcher;
+        if (dispatcher == null)
+            task.run();
+        else
+            dispatcher.execute(task);
+    }
+
+    /**
+     * Setter for property 'batching'.
+     * If enabled, messages sent together are combined into one frame (up to BATCH_SIZE bytes).
+     * Receiving combined frames is always supported.
+     *
+     * @param batching Value to set for property 'batching'.
+     */
+    public void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    /**
+     * Set how received messages are acknowledged
+     * One acknowledgement is sent per given number of messages or after the given delay, whichever comes first.
+     * Gaps, corrupted and repeated messages are always reported immediately.
+     *
+     * @param everyMessages number of messages to acknowledge together (1 to acknowledge every message)
+     * @param delayMicroseconds maximum delay of an acknowledgement in microseconds (0 to send it immediately)
+     */
+    public void setAcknowledgementPolicy(int everyMessages, long delayMicroseconds) {
+        if (everyMessages < 1 || delayMicroseconds < 0) {
+            throw new IllegalArgumentException("Invalid acknowledgement policy");
+        }
+        this.acknowledgementMessages = everyMessages;
+        this.acknowledgementDelay = delayMicroseconds;
+    }
+
+    /**
+     * Limit the number of messages sent but not acknowledged yet
+     * A single message larger than maxBytes is still sent if the window is empty
+     *
+     * @param maxMessages maximum number of unacknowledged messages
+     * @param maxBytes maximum size of all unacknowledged messages in bytes
+     */
+    public void setSendingWindow(int maxMessages, long maxBytes) {
+        if (maxMessages < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Sending window must allow at least one message and byte");
+        }
+        sendLock.lock();
+        try {
+            this.sendingWindowMessages = maxMessages;
+            this.sendingWindowBytes = maxBytes;
+            sendPending();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Encode a safeMessage to be sended in the given format
+     *
+     * @param message message to be encoded
+     * @return message in sendable format
+     */
+    public abstract T encodeTransportMessage(SafeMessage message);
+
+    /**
+     * Encode a message whose payload is shared with other connections
+     * Encodings able to reuse the serialized payload should override this
+     *
+     * @param message message to be encoded
+     * @param payload payload of the message
+     * @return message in sendable format
+     */
+    public T encodeTransportMessage(SafeMessage message, SharedPayload payload)
+    {
+        return encodeTransportMessage(message);
+    }
+
+    /**
+     * Encode a binary message whose payload is given as buffer
+     * The payload is copied by default, encodings writing bytes should override this to keep the buffer instead
+     *
+     * @param message message to be encoded (its own payload is ignored)
+     * @param data buffer containing the payload, only read (implementations keeping it have to retain it)
+     * @return message in sendable format
+     */
+    protected T encodeTransportMessage(SafeMessage message, ByteBuf data)
+    {
+        SafeMessage copy = SafeMessage.newInstance(message.getSequenceNumber(), ByteBufUtil.getBytes(data), message.getType());
+        try {
+            return encodeTransportMessage(copy);
+        } finally {
+            copy.recycle();
+        }
+    }
+
+    /**
+     * Decode a received message back to safeMessage format
+     *
+     * @param transportMessage received message in transport format
+     * @return decoded SafeMessage
+     */
+    public abstract SafeMessage decodeTransportMessage(T transportMessage);
+
+    /**
+     * Handle receiving of a data frame by extracting the transport message from it
+     * Has to be implemented based upon the frame type the encoding uses
+     *
+     * @param frame received text or binary frame
+     */
+    public abstract void receiveFrame(WebSocketFrame frame);
+
+    /**
+     * Handle receiving of a message
+     *
+     * @param message message that was received
+     */
+    public void receive(T message)
+    {
+        receive(decodeTransportMessage(message));
+    }
+
+    /**
+     * Handle receiving of a decoded message
+     *
+     * @param safeMessage message that was received
+     */
+    protected void receive(SafeMessage safeMessage)
+    {
+        receivedMessages = true;
+        switch(safeMessage.getType())
+        {
+            case MESSAGE:
+                //Decoders only pass on acknowledgements whose checksum matched
+                if (safeMessage.getAcknowledgement() >= 0)
+                    receiveCarriedAcknowledgement(safeMessage.getAcknowledgement());
+                receiveMessage(safeMessage);
+                break;
+            case FEEDBACK:
+                //A corrupted feedback could confirm messages that never arrived, it is repeated anyway
+                if (checkMessage(safeMessage))
+                    receiveFeedback(safeMessage);
+                safeMessage.recycle();
+                break;
+            default:
+                System.err.println("Received message of unsupported type");
+        }
+    }
+
+    /**
+     * Handle an acknowledgement carried along by a normal message like an OK feedback
+     *
+     * @param acknowledged sequence number of the last message the other side received in order
+     */
+    private void receiveCarriedAcknowledgement(long acknowledged)
+    {
+        SafeMessage feedback = newFeedbackMessage(SafeMessage.Status.OK, acknowledged);
+        receiveFeedback(feedback);
+        feedback.recycle();
+    }
+
+    /**
+     * Handle a record that could not be decoded (truncated or malformed), like a message failing its integrity check
+     * The rest of its frame is dropped, so the sender is asked right away to send again what is missing
+     */
+    protected void receiveCorrupted()
+    {
+        receivedMessages = true;
+        acknowledgementPiggybacked();
+        metrics.messageReceived();
+        metrics.corruptedReceived();
+        unacknowledgedMessages++;
+        acknowledgeFailure = true;
+        sendAcknowledgement();
+    }
+
+    /**
+     * Close the connection with a protocol error because the peer sent a frame of a type this encoding does not use
+     * (e.g. a text frame to the binary encoding)
+     *
+     * @param frame frame of the wrong type
+     */
+    protected void rejectFrame(WebSocketFrame frame)
+    {
+        System.err.println(frame.getClass().getSimpleName() + " not supported by " + getClass().getSimpleName()
+                + ", closing the connection");
+        Channel channel = this.channel;
+        if (channel != null)
+            channel.writeAndFlush(new CloseWebSocketFrame(WebSocketCloseStatus.PROTOCOL_ERROR))
+                    .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Handle receiving of a normal message
+     *
+     * @param message received normal message
+     */
+    protected void receiveMessage(SafeMessage message)
+    {
+        acknowledgementPiggybacked();
+        long nextExpected = receivingWindow.getNextSequenceNumber();
+        boolean hadGap = !receivingWindow.isEmpty();
+
+        /*
+        Store message in window (corrupted messages are treated as missing)
+         */
+        long sequenceNumber = message.getSequenceNumber();
+        boolean intact = checkMessage(message);
+        boolean duplicate = sequenceNumber < nextExpected || receivingWindow.contains(sequenceNumber);
+        boolean known = intact && receivingWindow.store(message);
+        metrics.messageReceived();
+        if (!intact)
+            metrics.corruptedReceived();
+        else if (!known)
+            metrics.messageDropped();
+        else if (sequenceNumber < nextExpected)
+            metrics.duplicateReceived();
+        //Only messages taken by the window are passed on
+        if (!known || duplicate)
+            message.recycle();
+
+        /*
+        Acknowledge immediately if the sender has to react, otherwise combine with following messages
+         */
+        unacknowledgedMessages++;
+        if (!known)
+            acknowledgeFailure = true;
+        int releasable = receivingWindow.getReleasableCount();
+        boolean gap = receivingWindow.size() > releasable;
+        boolean immediate = !known || hadGap != gap || sequenceNumber < nextExpected
+                || unacknowledgedMessages >= acknowledgementMessages || acknowledgementDelay == 0;
+        //Published before releasing, so answers sent by the receiver right away carry it along
+        if (!immediate && !gap && !acknowledgeFailure) {
+            pendingAcknowledgement.set(nextExpected + releasable - 1);
+            acknowledgementPublished = true;
+        }
+
+        /*
+        Release everything in order
+         */
+        SafeMessage next;
+        while ((next = receivingWindow.poll()) != null) {
+            deliver(next);
+        }
+        if (!hadGap && gap)
+            metrics.gapDetected();
+
+        if (immediate)
+            sendAcknowledgement();
+        else if (!acknowledgementPiggybacked() && acknowledgementTimer == null)
+            acknowledgementTimer = channel.eventLoop().schedule(acknowledgementTask, acknowledgementDelay, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Check if a sent message carried the delayed acknowledgement along and nothing arrived since
+     *
+     * @return true if nothing is left to acknowledge
+     */
+    private boolean acknowledgementPiggybacked()
+    {
+        if (!acknowledgementPublished || pendingAcknowledgement.get() >= 0)
+            return false;
+        acknowledgementPublished = false;
+        unacknowledgedMessages = 0;
+        return true;
+    }
+
+    /**
+     * Pass a message received in order on, fragments are passed on one by one
+     *
+     * @param message message to pass on
+     */
+    private void deliver(SafeMessage message)
+    {
+        final boolean fragment = message.hasMoreFragments() || receivingFragments;
+        receivingFragments = message.hasMoreFragments();
+        if (dispatcher == null) {
+            handle(message, fragment, channel);
+            return;
+        }
+
+        final SafeMessage dispatched = message;
+        final Channel channel = this.channel;
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                handle(dispatched, fragment, channel);
+                if (readingPaused && isDispatchQueueDrained() && resumeReadingRequested.compareAndSet(false, true))
+                    channel.eventLoop().execute(resumeReadingTask);
+            }
+        });
+        if (!readingPaused && dispatcher.size() >= dispatchQueueLimit) {
+            readingPaused = true;
+            channel.config().setAutoRead(false);
+            advertiseReading(channel, READING_PAUSED);
+        }
+    }
+
+    /**
+     * Tell the other side that reading paused or resumed with an unsolicited pong
+     * Older versions take it for an ordinary pong
+     *
+     * @param channel channel reading paused or resumed on
+     * @param payload READING_PAUSED or READING_RESUMED
+     */
+    private void advertiseReading(Channel channel, ByteBuf payload)
+    {
+        channel.writeAndFlush(new PongWebSocketFrame(payload.duplicate()));
+    }
+
+    /**
+     * Check if the dispatch queue is down to half of its limit, so reading can resume
+     * The message being passed on right now is counted as well
+     *
+     * @return true if reading can resume
+     */
+    private boolean isDispatchQueueDrained()
+    {
+        return dispatcher.size() <= dispatchQueueLimit / 2 + 1;
+    }
+
+    /**
+     * Pass a message on to handleReceived or handleReceivedFragment
+     *
+     * @param message message to pass on
+     * @param fragment true if the message is part of a fragmented payload
+     * @param channel channel the message arrived on
+     */
+    private void handle(SafeMessage message, boolean fragment, Channel channel)
+    {
+        if (fragment)
+            handleReceivedFragment(message, !message.hasMoreFragments(), channel);
+        else
+            handleReceived(message, channel);
+        if (recycleReceived)
+            message.recycle();
+    }
+
+    /**
+     * Forget the fragments of a partly received payload
+     * The reassembled part belongs to the dispatch executor (if any), so it is dropped in order with the messages
+     */
+    private void discardFragments()
+    {
+        receivingFragments = false;
+        executeInOrder(new Runnable() {
+            @Override
+            public void run() {
+                textFragments = null;
+                binaryFragments = null;
+            }
+        });
+    }
+
+    /**
+     * Send a feedback message acknowledging everything received so far
+     * If messages are missing, the ranges received behind the gap are reported as well
+     */
+    private void sendAcknowledgement()
+    {
+        if (acknowledgementTimer != null) {
+            acknowledgementTimer.cancel(false);
+            acknowledgementTimer = null;
+        }
+
+        pendingAcknowledgement.set(-1);
+        acknowledgementPublished = false;
+        SafeMessage answer;
+        long nextExpected = receivingWindow.getNextSequenceNumber();
+        if (receivingWindow.isEmpty() && !acknowledgeFailure)
+            answer = newFeedbackMessage(SafeMessage.Status.OK, nextExpected - 1);
+        else
+            answer = newFeedbackMessage(SafeMessage.Status.FAILED, nextExpected,
+                    receivingWindow.getStoredRanges(SELECTIVE_ACKNOWLEDGEMENT_RANGES));
+        unacknowledgedMessages = 0;
+        acknowledgeFailure = false;
+
+        T encodedAnswer = encodeTransportMessage(answer);
+        answer.recycle();
+        send(encodedAnswer);
+        release(encodedAnswer);
+        metrics.feedbackSent();
+    }
+
+    /**
+     * Handle receiving of a feedback message
+     *
+     * @param message received feedback message
+     */
+    protected void receiveFeedback(SafeMessage message)
+    {
+        //Both kinds of feedback confirm everything before the given message
+        boolean ok = message.getStatus() == SafeMessage.Status.OK;
+        long confirmed = ok ? message.getSequenceNumber() : message.getSequenceNumber() - 1;
+        metrics.feedbackReceived();
+
+        sendLock.lock();
+        try {
+            long now = System.nanoTime();
+            long roundTripTime = -1;
+            int acknowledged = 0;
+            StoredMessage<T> storedMessage;
+            while ((storedMessage = sendingBuffer.peekFirst()) != null
+                    && storedMessage.getSequenceNumber() <= confirmed) {
+                sendingBuffer.removeFirst();
+                acknowledged++;
+                sendingBufferBytes -= storedMessage.getSize();
+                //Only messages sent once give an unambiguous measurement
+                if (storedMessage.getTransmissions() == 1)
+                    roundTripTime = now - storedMessage.getSentTime();
+                release(storedMessage.getMessage());
+                storedMessage.delivered();
+                storedMessage.recycle();
+            }
+            boolean progress = acknowledged > 0;
+            if (progress)
+                metrics.messagesAcknowledged(acknowledged);
+            if (roundTripTime >= 0)
+                roundTripEstimator.sample(roundTripTime);
+            else if (progress)
+                roundTripEstimator.resetBackoff();
+            if (progress && journal != null)
+                journal.acknowledge(confirmed);
+
+            if (ok || confirmed >= fastRetransmitMark)
+                fastRetransmitMark = -1;
+            if (!ok)
+                resendMissing(message.getSequenceNumber(), message.getSelectiveAcknowledgements());
+            if (resuming) {
+                //First feedback after resuming a session, everything it does not confirm was lost with the old connection
+                resuming = false;
+                for (StoredMessage<T> unconfirmed : sendingBuffer) {
+                    if (unconfirmed.getState() != StoredMessage.State.CONFIRMED
+                            && unconfirmed.getSequenceNumber() > fastRetransmitMark) {
+                        unconfirmed.setSent(now);
+                        send(unconfirmed.getMessage());
+                        metrics.messageRetransmitted();
+                    }
+                }
+            }
+
+            sendPending();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Resend the messages reported missing by a failure feedback
+     * Every gap is only resent once until the receiver confirmed it, later losses are left to the retransmission timer
+     * Has to be called while holding the send lock
+     *
+     * @param firstMissing sequence number of the first missing message
+     * @param selectiveAcknowledgements ranges received behind the first missing message (may be null)
+     */
+    private void resendMissing(long firstMissing, long[] selectiveAcknowledgements)
+    {
+        long[] ranges = selectiveAcknowledgements != null ? selectiveAcknowledgements : new long[0];
+        long lastMissing = ranges.length > 0 ? ranges[ranges.length - 1] : firstMissing;
+        int range = 0;
+
+        for (StoredMessage<T> storedMessage : sendingBuffer) {
+            long sequenceNumber = storedMessage.getSequenceNumber();
+            if (sequenceNumber > lastMissing)
+                break;
+
+            while (range < ranges.length && ranges[range + 1] < sequenceNumber)
+                range += 2;
+            if (range < ranges.length && ranges[range] <= sequenceNumber) {
+                storedMessage.setState(StoredMessage.State.CONFIRMED);
+            } else if (storedMessage.getState() != StoredMessage.State.CONFIRMED && sequenceNumber > fastRetransmitMark) {
+                storedMessage.setSent(System.nanoTime());
+                send(storedMessage.getMessage());
+                metrics.messageRetransmitted();
+                fastRetransmitMark = sequenceNumber;
+            }
+        }
+    }
+
+    /**
+     * Resend all unconfirmed messages whose retransmission timeout expired in one batch
+     * Runs on the event loop of the channel
+     */
+    private void resendExpired()
+    {
+        sendLock.lock();
+        try {
+            retransmissionTimer = null;
+            long now = System.nanoTime();
+            long timeout = roundTripEstimator.getTimeout();
+            boolean expired = false;
+            for (StoredMessage<T> storedMessage : sendingBuffer) {
+                if (storedMessage.getState() != StoredMessage.State.CONFIRMED
+                        && now - storedMessage.getSentTime() >= timeout) {
+                    storedMessage.setSent(now);
+                    send(storedMessage.getMessage());
+                    metrics.messageRetransmitted();
+                    expired = true;
+                }
+            }
+            if (expired)
+                roundTripEstimator.backoff();
+            failExpired(sendingBuffer, now);
+            failExpired(pendingBuffer, now);
+            startRetransmissionTimer();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Fail the futures of all messages whose delivery timeout expired
+     * Messages are ordered by their creation, so only the expired ones at the front are visited
+     * Has to be called while holding the send lock
+     *
+     * @param buffer buffer to check
+     * @param now current time as given by System.nanoTime()
+     */
+    private void failExpired(ArrayDeque<StoredMessage<T>> buffer, long now)
+    {
+        for (StoredMessage<T> storedMessage : buffer) {
+            if (storedMessage.getDeadline() == 0 || now - storedMessage.getDeadline() < 0)
+                return;
+            if (!storedMessage.isDone()) {
+                storedMessage.failed(new TimeoutException("Message "
+                        + storedMessage.getSequenceNumber() + " was not acknowledged in time"));
+                metrics.messageExpired();
+            }
+        }
+    }
+
+    /**
+     * Schedule the retransmission timer for the oldest unconfirmed message if it is not running yet
+     * Has to be called while holding the send lock
+     */
+    private void startRetransmissionTimer()
+    {
+        Channel channel = this.channel;
+        if (retransmissionTimer != null || channel == null || !channel.isActive())
+            return;
+
+        for (StoredMessage<T> storedMessage : sendingBuffer) {
+            if (storedMessage.getState() != StoredMessage.State.CONFIRMED) {
+                long delay = storedMessage.getSentTime() + roundTripEstimator.getTimeout() - System.nanoTime();
+                retransmissionTimer = channel.eventLoop().schedule(retransmissionTask, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start an interval timer, that will periodically send ping messages
+     * and check at the end of the interval if a corresponding pong was received
+     * The timer runs on the event loop of the channel, the first check is delayed randomly
+     * so the pings of many connections are spread over the interval
+     */
+    public void activateConnectionSupervisor()
+    {
+        if (supervisorTimer != null)
+            return;
+
+        receivedPong = true;
+        long initialDelay = SUPERVISOR_INTERVAL + ThreadLocalRandom.current().nextInt(SUPERVISOR_INTERVAL);
+        supervisorTimer = channel.eventLoop().scheduleAtFixedRate(supervisorTask, initialDelay,
+                SUPERVISOR_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the interval timer started by activateConnectionSupervisor (if any)
+     */
+    public void deactivateConnectionSupervisor()
+    {
+        ScheduledFuture<?> timer = supervisorTimer;
+        if (timer != null) {
+            timer.cancel(false);
+            supervisorTimer = null;
+        }
+    }
+
+    /**
+     * Detach the handler from its broken connection but keep all buffered messages, so the session can be resumed
+     * Messages sent in the meantime are queued until then
+     * Has to be called on the event loop of the old channel
+     */
+    public void detach()
+    {
+        deactivateConnectionSupervisor();
+        if (acknowledgementTimer != null) {
+            acknowledgementTimer.cancel(false);
+            acknowledgementTimer = null;
+        }
+        //Acknowledged again when the session is resumed
+        pendingAcknowledgement.set(-1);
+        sendLock.lock();
+        try {
+            if (retransmissionTimer != null) {
+                retransmissionTimer.cancel(false);
+                retransmissionTimer = null;
+            }
+            detached = true;
+            sendingWindowOpened.signalAll();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Attach the handler to the channel set last without resuming a session
+     * Needed if it was detached before the first connection succeeded, messages queued in the meantime are sent in order
+     */
+    public void attach()
+    {
+        sendLock.lock();
+        try {
+            detached = false;
+            sendPending();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Resume the session on the channel set last
+     * Both sides acknowledge what they received so far, then each side resends only the messages
+     * the other one did not confirm
+     * Has to be called on the event loop of the new channel
+     */
+    public void resume()
+    {
+        sendLock.lock();
+        try {
+            resuming = true;
+            detached = false;
+            fastRetransmitMark = -1;
+            roundTripEstimator.resetBackoff();
+        } finally {
+            sendLock.unlock();
+        }
+        sendAcknowledgement();
+    }
+
+    /**
+     * Start a new session after the old one could not be resumed
+     * Sent but unacknowledged messages are dropped (their futures fail) and sequence numbers start at 0 again.
+     * Messages that were only queued are kept and sent first in the new session.
+     * If a journal is set, all messages it holds are queued again instead.
+     */
+    public void resetSession()
+    {
+        ArrayDeque<StoredMessage<T>> unsent;
+        sendLock.lock();
+        try {
+            unsent = journal == null ? pendingBuffer : new ArrayDeque<StoredMessage<T>>();
+            pendingBuffer = journal == null ? new ArrayDeque<StoredMessage<T>>() : pendingBuffer;
+        } finally {
+            sendLock.unlock();
+        }
+        clearBuffers();
+
+        sendLock.lock();
+        try {
+            sendingSequenceNumber = 0;
+            fastRetransmitMark = -1;
+            resuming = false;
+            cleared = false;
+            roundTripEstimator.resetBackoff();
+            if (journal != null)
+                recoverJournal(journal);
+            //The sequence number is part of the encoded message, so queued messages are encoded again
+            for (StoredMessage<T> storedMessage : unsent) {
+                SafeMessage message = decodeTransportMessage(storedMessage.getMessage());
+                release(storedMessage.getMessage());
+                SafeMessage renumbered = newMessage(sendingSequenceNumber++, message);
+                message.recycle();
+                StoredMessage<T> requeued = StoredMessage.newInstance(renumbered.getSequenceNumber(), encodeTransportMessage(renumbered));
+                renumbered.recycle();
+                requeued.setSize(sizeOf(requeued.getMessage()));
+                requeued.setDeadline(storedMessage.getDeadline());
+                if (!storedMessage.isDone())
+                    requeued.setListener(storedMessage.getListener());
+                pendingBuffer.addLast(requeued);
+                storedMessage.recycle();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not recover journal: " + e.getMessage());
+        } finally {
+            sendLock.unlock();
+        }
+        receivingWindow.reset();
+        discardFragments();
+        pendingAcknowledgement.set(-1);
+        acknowledgementPublished = false;
+        unacknowledgedMessages = 0;
+        acknowledgeFailure = false;
+    }
+
+    /**
+     * Perform actions to bring system to safe state after connection breakup
+     *
+     * @param channel channel that was closed
+     */
+    public void handleBreakup(Channel channel)
+    {
+        System.err.print("Client disconnected unexpectedly");
+    }
+
+    /**
+     * Notify handler that a pong frame has been received
+     * Unsolicited pongs telling that the other side paused or resumed reading are told apart by their payload
+     *
+     * @param payload content of the pong frame
+     */
+    public void receivedPong(ByteBuf payload)
+    {
+        if (ByteBufUtil.equals(payload, READING_PAUSED))
+            peerReadingPaused = true;
+        else if (ByteBufUtil.equals(payload, READING_RESUMED))
+            peerReadingPaused = false;
+        else
+            receivedPong();
+    }
 
-    private AtomicLong sendingSequenceNumber = new AtomicLong();
+    /**
+     * Notify handler that a pong message has been received
+     */
+    public void receivedPong()
+    {
+        receivedPong = true;
+        if (pingSent != 0) {
+            metrics.pongReceived(System.nanoTime() - pingSent);
+            pingSent = 0;
+        }
+    }
 
     /**
-     * Interval between two checks of the supervisor in milliseconds
+     * Send the given message over the channel
+     *
+     * @param data raw message
+     * @return future completed with the sequence number once the receiver acknowledged the message
      */
-    public static int SUPERVISOR_INTERVAL = 2000;
+    public CompletableFuture<Long> sendMessage(String data)
+    {
+        DeliveryFuture future = new DeliveryFuture();
+        sendMessage(data, future);
+        return future;
+    }
 
     /**
-     * Constructor
+     * Send the given message over the channel without creating a future for it
+     *
+     * @param data raw message
+     * @param listener listener to report the outcome to (null if it is not needed)
+     * @return sequence number of the message (of its last fragment), -1 if it was rejected
      */
-    protected MessageHandler() {
-        sendingBuffer = new LinkedList<>();
-        receivingBuffer = new LinkedList<>();
-        lastReceivedMessage = -1;
-        receivedPong = true;
+    public long sendMessage(String data, DeliveryListener listener)
+    {
+        sendLock.lock();
+        try {
+            Throwable cause = awaitSendingWindow();
+            if (cause != null)
+                return rejected(cause, listener);
+            if (fragmentSize > 0 && data.length() > fragmentSize) {
+                long sequenceNumber = addFragments(data, listener);
+                sendPending();
+                return sequenceNumber;
+            }
+            long sequenceNumber = sendingSequenceNumber++;
+            SafeMessage message = newMessage(sequenceNumber, data);
+            enqueue(message, encodeTransportMessage(message), listener);
+            message.recycle();
+            return sequenceNumber;
+        } finally {
+            sendLock.unlock();
+        }
     }
 
     /**
-     * Getter for property 'channel'.
+     * Send the given binary message over the channel
      *
-     * @return Value for property 'channel'.
+     * @param data raw binary message
+     * @return future completed with the sequence number once the receiver acknowledged the message
      */
-    public Channel getChannel() {
-        return channel;
+    public CompletableFuture<Long> sendMessage(byte[] data)
+    {
+        DeliveryFuture future = new DeliveryFuture();
+        sendMessage(data, future);
+        return future;
     }
 
     /**
-     * Setter for property 'channel'.
+     * Send the given binary message over the channel without creating a future for it
      *
-     * @param channel Value to set for property 'channel'.
+     * @param data raw binary message
+     * @param listener listener to report the outcome to (null if it is not needed)
+     * @return sequence number of the message (of its last fragment), -1 if it was rejected
      */
-    public void setChannel(Channel channel) {
-        this.channel = channel;
+    public long sendMessage(byte[] data, DeliveryListener listener)
+    {
+        sendLock.lock();
+        try {
+            Throwable cause = awaitSendingWindow();
+            if (cause != null)
+                return rejected(cause, listener);
+            if (fragmentSize > 0 && data.length > fragmentSize) {
+                long sequenceNumber = addFragments(data, listener);
+                sendPending();
+                return sequenceNumber;
+            }
+            long sequenceNumber = sendingSequenceNumber++;
+            SafeMessage message = newMessage(sequenceNumber, data);
+            enqueue(message, encodeTransportMessage(message), listener);
+            message.recycle();
+            return sequenceNumber;
+        } finally {
+            sendLock.unlock();
+        }
     }
 
     /**
-     * Encode a safeMessage to be sended in the given format
+     * Send a payload shared with other connections over the channel
+     * The payload is only read, the caller keeps its reference
      *
-     * @param message message to be encoded
-     * @return message in sendable format
+     * @param payload shared payload
+     * @return future completed with the sequence number once the receiver acknowledged the message
      */
-    public abstract T encodeTransportMessage(SafeMessage message);
+    public CompletableFuture<Long> sendMessage(SharedPayload payload)
+    {
+        DeliveryFuture future = new DeliveryFuture();
+        sendMessage(payload, future);
+        return future;
+    }
 
     /**
-     * Decode a received message back to safeMessage format
+     * Send a payload shared with other connections over the channel without creating a future for it
+     * The payload is only read, the caller keeps its reference
      *
-     * @param transportMessage received message in transport format
-     * @return decoded SafeMessage
+     * @param payload shared payload
+     * @param listener listener to report the outcome to (null if it is not needed)
+     * @return sequence number of the message (of its last fragment), -1 if it was rejected
      */
-    public abstract SafeMessage decodeTransportMessage(T transportMessage);
+    public long sendMessage(SharedPayload payload, DeliveryListener listener)
+    {
+        //Fragments are encoded per connection, only unsplit payloads are shared
+        if (fragmentSize > 0 && payload.length() > fragmentSize)
+            return payload.isBinary() ? sendMessage(payload.getBinaryData(), listener) : sendMessage(payload.getData(), listener);
+
+        sendLock.lock();
+        try {
+            Throwable cause = awaitSendingWindow();
+            if (cause != null)
+                return rejected(cause, listener);
+            long sequenceNumber = sendingSequenceNumber++;
+            SafeMessage message = payload.createMessage(sequenceNumber);
+            enqueue(message, encodeTransportMessage(message, payload), listener);
+            message.recycle();
+            return sequenceNumber;
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
     /**
-     * Handle receiving of a message
+     * Send the given messages over the channel
+     * The messages get a contiguous range of sequence numbers and are combined into as few frames as possible
+     * if batching is enabled.
+     * Every message has to fit into the sending window (or the pending messages) like a single one. If one is
+     * rejected by the overflow policy, it and the following messages are not sent, the ones before are.
      *
-     * @param message message that was received
+     * @param data raw messages
+     * @return future completed with the sequence number of the last message once the receiver acknowledged all of them,
+     * failed if not all of them were accepted
      */
-    public void receive(T message)
+    public CompletableFuture<Long> sendMessages(Collection<String> data)
     {
-        SafeMessage safeMessage = decodeTransportMessage(message);
+        sendLock.lock();
+        try {
+            CompletableFuture<Long> future = CompletableFuture.completedFuture(sendingSequenceNumber - 1);
+            Iterator<String> iterator = data.iterator();
+            while (iterator.hasNext()) {
+                String message = iterator.next();
+                //Messages added before are moved into the window first, they stay in the current batch
+                transmitPending();
+                Throwable cause = awaitSendingWindow();
+                if (cause != null) {
+                    sendPending();
+                    return rejected(cause);
+                }
+                //Acknowledgements are cumulative, so only the last message needs a future
+                DeliveryFuture last = iterator.hasNext() ? null : new DeliveryFuture();
+                if (fragmentSize > 0 && message.length() > fragmentSize) {
+                    addFragments(message, last);
+                } else {
+                    SafeMessage safeMessage = newMessage(sendingSequenceNumber++, message);
+                    addPending(safeMessage, encodeTransportMessage(safeMessage), last);
+                    safeMessage.recycle();
+                }
+                if (last != null)
+                    future = last;
+            }
+            sendPending();
+            return future;
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
-        switch(safeMessage.getType())
-        {
-            case MESSAGE:
-                receiveMessage(safeMessage);
-                break;
-            case FEEDBACK:
-                receiveFeedback(safeMessage);
-                break;
-            default:
-                System.err.println("Received message of unsupported type");
+    /**
+     * Send the readable bytes of the given buffer over the channel
+     * The buffer is released afterwards. The binary encoding keeps a retained slice of it until the message is
+     * acknowledged, so its content must not be changed anymore. Payloads that are journaled or split into fragments
+     * are copied.
+     *
+     * @param data buffer containing the raw binary message
+     * @return future completed with the sequence number once the receiver acknowledged the message
+     */
+    public CompletableFuture<Long> sendMessage(ByteBuf data)
+    {
+        try {
+            if (journal != null || (fragmentSize > 0 && data.readableBytes() > fragmentSize))
+                return sendMessage(ByteBufUtil.getBytes(data));
+
+            sendLock.lock();
+            try {
+                Throwable cause = awaitSendingWindow();
+                if (cause != null)
+                    return rejected(cause);
+                SafeMessage message = SafeMessage.newInstance(sendingSequenceNumber++, EmptyArrays.EMPTY_BYTES, SafeMessage.Type.MESSAGE);
+                DeliveryFuture future = new DeliveryFuture();
+                enqueue(message, encodeTransportMessage(message, data), future);
+                message.recycle();
+                return future;
+            } finally {
+                sendLock.unlock();
+            }
+        } finally {
+            data.release();
         }
     }
 
     /**
-     * Handle receiving of a normal message
+     * Send the given message over the channel as soon as the sending window allows it
+     * The message is encoded right away, so the caller may recycle it afterwards
      *
-     * @param message received normal message
+     * @param message SafeMessage containing the real message
+     * @return future completed with the sequence number once the receiver acknowledged the message
      */
-    protected void receiveMessage(SafeMessage message)
+    protected CompletableFuture<Long> sendMessage(SafeMessage message)
     {
-        SafeMessage answer = null;
-        long sequenceNumber = message.getSequenceNumber();
+        DeliveryFuture future = new DeliveryFuture();
+        enqueue(message, encodeTransportMessage(message), future);
+        return future;
+    }
 
-        StoredMessage.State newState = checkMessage(message)? StoredMessage.State.OK : StoredMessage.State.MISSING;
+    /**
+     * Add an encoded message to the pending ones and send it as soon as the sending window allows it
+     *
+     * @param message message to send
+     * @param encodedMessage encoded message
+     * @param listener listener to report the outcome to (may be null)
+     */
+    private void enqueue(SafeMessage message, T encodedMessage, DeliveryListener listener)
+    {
+        sendLock.lock();
+        try {
+            addPending(message, encodedMessage, listener);
+            sendPending();
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
-        /*
-        Store message in buffer
-         */
-        long start;
-        if(receivingBuffer.size() == 0)
-            start = lastReceivedMessage + 1;
-        else
-            start = receivingBuffer.getFirst().getSequenceNumber();
-        int index = Long.valueOf(sequenceNumber - start).intValue();
+    /**
+     * Split a text payload into fragments and add them to the pending ones without trying to send them
+     * The fragments get consecutive sequence numbers, so no other message can come in between
+     * Has to be called while holding the send lock
+     *
+     * @param data text payload larger than the fragment size
+     * @param listener listener to report the outcome of the last fragment to (may be null)
+     * @return sequence number of the last fragment
+     */
+    private long addFragments(String data, DeliveryListener listener)
+    {
+        int start = 0;
+        while (start < data.length()) {
+            int end = Math.min(start + fragmentSize, data.length());
+            //Both halves of a surrogate pair are needed to encode the character, so never split them
+            if (end < data.length() && Character.isHighSurrogate(data.charAt(end - 1)))
+                end--;
+            boolean last = end == data.length();
+            SafeMessage fragment = newMessage(sendingSequenceNumber++, data.substring(start, end));
+            fragment.setMoreFragments(!last);
+            addPending(fragment, encodeTransportMessage(fragment), last ? listener : null);
+            fragment.recycle();
+            start = end;
+        }
+        return sendingSequenceNumber - 1;
+    }
 
-        //Message placeholder already in buffer? Just set state and content
-        try
-        {
-            StoredMessage<SafeMessage> storedMessage = receivingBuffer.get(index);
-            storedMessage.setMessage(message);
-            storedMessage.setState(newState);
-        //Otherwise, create all needed placeholders in between and one for the message itself
-        } catch (IndexOutOfBoundsException e) {
-            for(int i = receivingBuffer.size(); i < index; i++)
-            {
-                receivingBuffer.add(new StoredMessage<SafeMessage>(start + index));
+    /**
+     * Split a binary payload into fragments and add them to the pending ones without trying to send them
+     * Has to be called while holding the send lock
+     *
+     * @param data binary payload larger than the fragment size
+     * @param listener listener to report the outcome of the last fragment to (may be null)
+     * @return sequence number of the last fragment
+     */
+    private long addFragments(byte[] data, DeliveryListener listener)
+    {
+        for (int start = 0; start < data.length; start += fragmentSize) {
+            int end = Math.min(start + fragmentSize, data.length);
+            boolean last = end == data.length;
+            SafeMessage fragment = newMessage(sendingSequenceNumber++, Arrays.copyOfRange(data, start, end));
+            fragment.setMoreFragments(!last);
+            addPending(fragment, encodeTransportMessage(fragment), last ? listener : null);
+            fragment.recycle();
+        }
+        return sendingSequenceNumber - 1;
+    }
+
+    /**
+     * Take a message for sending from the pool
+     *
+     * @param sequenceNumber sequence number to use
+     * @param data payload to send
+     * @return pooled message, to be recycled once it is encoded
+     */
+    private static SafeMessage newMessage(long sequenceNumber, String data)
+    {
+        return SafeMessage.newInstance(sequenceNumber, data, SafeMessage.Type.MESSAGE);
+    }
+
+    /**
+     * Take a binary message for sending from the pool
+     *
+     * @param sequenceNumber sequence number to use
+     * @param data binary payload to send
+     * @return pooled message, to be recycled once it is encoded
+     */
+    private static SafeMessage newMessage(long sequenceNumber, byte[] data)
+    {
+        return SafeMessage.newInstance(sequenceNumber, data, SafeMessage.Type.MESSAGE);
+    }
+
+    /**
+     * Take a message from the pool for sending the payload of another message again under a new sequence number
+     *
+     * @param sequenceNumber sequence number to use
+     * @param message message to take payload and fragment flag from
+     * @return pooled message, to be recycled once it is encoded
+     */
+    private static SafeMessage newMessage(long sequenceNumber, SafeMessage message)
+    {
+        SafeMessage copy = message.isBinary()
+                ? newMessage(sequenceNumber, message.getBinaryData())
+                : newMessage(sequenceNumber, message.getData());
+        copy.setMoreFragments(message.hasMoreFragments());
+        return copy;
+    }
+
+    /**
+     * Take a feedback message from the pool
+     *
+     * @param status status to report
+     * @param sequenceNumber last received (OK) or first missing (FAILED) sequence number
+     * @return pooled message, to be recycled once it is encoded
+     */
+    private static SafeMessage newFeedbackMessage(SafeMessage.Status status, long sequenceNumber)
+    {
+        SafeMessage message = SafeMessage.newInstance(sequenceNumber,
+                status == SafeMessage.Status.OK ? "OK" : "FAILED", SafeMessage.Type.FEEDBACK);
+        message.setStatus(status);
+        return message;
+    }
+
+    /**
+     * Take a feedback message from the pool together with the ranges received behind the reported gap
+     *
+     * @param status status to report
+     * @param sequenceNumber first missing sequence number
+     * @param selectiveAcknowledgements first and last sequence number of each range received behind the gap
+     * @return pooled message, to be recycled once it is encoded
+     */
+    private static SafeMessage newFeedbackMessage(SafeMessage.Status status, long sequenceNumber, long[] selectiveAcknowledgements)
+    {
+        SafeMessage message = newFeedbackMessage(status, sequenceNumber);
+        if (selectiveAcknowledgements.length > 0)
+            message.setSelectiveAcknowledgements(selectiveAcknowledgements);
+        return message;
+    }
+
+    /**
+     * Add an encoded message to the pending ones (and the journal) without trying to send it
+     * Has to be called while holding the send lock
+     *
+     * @param message message to send
+     * @param encodedMessage encoded message
+     * @param listener listener to report the outcome to (may be null)
+     */
+    private void addPending(SafeMessage message, T encodedMessage, DeliveryListener listener)
+    {
+        StoredMessage<T> storedMessage = StoredMessage.newInstance(message.getSequenceNumber(), encodedMessage);
+        storedMessage.setSize(sizeOf(encodedMessage));
+        storedMessage.setListener(listener);
+        if (journal != null) {
+            try {
+                journal.append(message);
+            } catch (IOException e) {
+                //The sequence number is taken already, so the message is still sent, just not durably
+                storedMessage.failed(new IOException("Message "
+                        + message.getSequenceNumber() + " could not be journaled", e));
             }
-            receivingBuffer.add(new StoredMessage<SafeMessage>(sequenceNumber, newState, message));
         }
+        if (deliveryTimeout > 0) {
+            //A deadline of 0 means none
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deliveryTimeout);
+            storedMessage.setDeadline(deadline != 0 ? deadline : 1);
+        }
+        pendingBuffer.addLast(storedMessage);
+    }
 
-        /*
-        Confirm everything in buffer
-         */
-        long lastOK = -1;
-        for (StoredMessage<SafeMessage> storedMessage : receivingBuffer) {
-            if (storedMessage.getState() == StoredMessage.State.OK) {
-                lastOK = storedMessage.getSequenceNumber();
-                handleReceived(storedMessage.getMessage(), channel);
-                receivingBuffer.removeFirst();
+    /**
+     * Wait until the sending window can take another message (depending on the overflow policy)
+     * Has to be called while holding the send lock
+     *
+     * @return reason why the message must not be sent, null if it can be passed on
+     */
+    private Throwable awaitSendingWindow()
+    {
+        OverflowPolicy policy = overflowPolicy;
+        while (!hasSendingCapacity()) {
+            //Blocking an event loop could also block the acknowledgements the window is waiting for
+            if (policy == OverflowPolicy.BLOCK && isEventLoopThread())
+                policy = OverflowPolicy.QUEUE;
+            //Until the buffers are cleared, the session may still be resumed, so wait (or queue) as for a full window
+            if (!detached && channel != null && !channel.isOpen() && (cleared || policy == OverflowPolicy.FAIL)) {
+                return new ClosedChannelException();
             }
-            else
-            {
-                break;
+            //A detached session queues messages until it is resumed
+            OverflowPolicy effectivePolicy = detached && pendingBuffer.size() < pendingLimit ? OverflowPolicy.QUEUE : policy;
+            switch (effectivePolicy) {
+                case FAIL:
+                    return new IllegalStateException("Sending window is full");
+                case QUEUE:
+                    if (pendingBuffer.size() < pendingLimit)
+                        return null;
+                    return new IllegalStateException("Sending queue is full");
+                default:
+                    //Combined messages have to go out, their acknowledgements are what the window waits for
+                    sendPending();
+                    try {
+                        sendingWindowOpened.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return e;
+                    }
             }
         }
+        return null;
+    }
 
-        if(lastOK != -1)
-            answer = SafeMessageFactory.createFeedbackMessageOK(lastOK);
-        else
-            answer = SafeMessageFactory.createFeedbackMessageFailed(lastReceivedMessage+1);
-
-        send(encodeTransportMessage(answer));
-        lastReceivedMessage = lastOK;
+    /**
+     * Check if the calling thread is an event loop, not only the one of this channel
+     * Loops of other channels (e.g. sending a broadcast) must not wait for this window either
+     *
+     * @return true if called on a Netty event loop
+     */
+    private boolean isEventLoopThread()
+    {
+        if (Thread.currentThread() instanceof FastThreadLocalThread)
+            return true;
+        //Loops created with a custom thread factory
+        Channel channel = this.channel;
+        if (channel == null)
+            return false;
+        for (EventExecutor executor : channel.eventLoop().parent()) {
+            if (executor.inEventLoop())
+                return true;
+        }
+        return false;
     }
 
     /**
-     * Handle receiving of a feedback message
+     * Check whether another message may be sent right now
+     * Has to be called while holding the send lock
      *
-     * @param message received feedback message
+     * @return true if the window is open and the channel accepts more data
      */
-    protected void receiveFeedback(SafeMessage message)
+    private boolean hasSendingCapacity()
     {
-        if(message.getData().equals("OK")) {
-            for (StoredMessage<T> storedMessage : sendingBuffer) {
-                if (storedMessage.getSequenceNumber() < message.getSequenceNumber())
-                    sendingBuffer.removeFirst();
-                else {
-                    if (message.getData().equals("OK")) {
-                        sendingBuffer.removeFirst();
-                        System.out.println("Message was OK");
-                    } else {
-                        storedMessage.setState(StoredMessage.State.NEW);
-                        System.out.println("Message was not OK. Resending");
-                        sendBuffer();
-                    }
-                    break;
-                }
+        Channel channel = this.channel;
+        return pendingBuffer.isEmpty()
+                && sendingBuffer.size() < sendingWindowMessages
+                && (sendingBufferBytes < sendingWindowBytes || sendingBuffer.isEmpty())
+                && channel != null && channel.isWritable();
+    }
+
+    /**
+     * Send as many pending messages as the sending window allows and wake up blocked senders
+     * Has to be called while holding the send lock
+     */
+    private void sendPending()
+    {
+        transmitPending();
+        sendBatch();
+        startRetransmissionTimer();
+        sendingWindowOpened.signalAll();
+    }
+
+    /**
+     * Move as many pending messages into the sending window as it allows
+     * Messages combined into one frame stay in the current batch until it is sent
+     * Has to be called while holding the send lock
+     */
+    private void transmitPending()
+    {
+        Channel channel = this.channel;
+        StoredMessage<T> storedMessage;
+        boolean first = true;
+        while ((storedMessage = pendingBuffer.peekFirst()) != null
+                && sendingBuffer.size() < sendingWindowMessages
+                && (sendingBufferBytes < sendingWindowBytes || sendingBuffer.isEmpty())
+                && channel != null && channel.isWritable()) {
+            pendingBuffer.removeFirst();
+            sendingBuffer.addLast(storedMessage);
+            sendingBufferBytes += storedMessage.getSize();
+            storedMessage.setSent(System.nanoTime());
+            metrics.messageSent();
+            T carrier = first ? carryAcknowledgement(storedMessage) : null;
+            first = false;
+            if (carrier == null) {
+                if (batching)
+                    addToBatch(storedMessage.getMessage(), storedMessage.getSize());
+                else
+                    send(storedMessage.getMessage());
+            } else if (batching) {
+                addToBatch(carrier, sizeOf(carrier));
+                batchAcknowledgement = carrier;
+            } else {
+                send(carrier);
+                release(carrier);
             }
         }
     }
 
     /**
-     * Start an interval timer, that will periodically send ping messages
-     * and check at the end of the interval if a corresponding pong was received
+     * Take the delayed acknowledgement (if any) and encode the message for its first transmission with
+     * the acknowledgement in its header, so it is carried along instead of being sent on its own
+     * The stored encoding is kept for retransmissions, older versions using the legacy hash never get one
+     * Has to be called while holding the send lock
+     *
+     * @param storedMessage message about to be sent for the first time
+     * @return encoded message carrying the acknowledgement (to be released once sent), null if none is carried
      */
-    public void activateConnectionSupervisor()
+    private T carryAcknowledgement(StoredMessage<T> storedMessage)
     {
-        pingTimer = new javax.swing.Timer(SUPERVISOR_INTERVAL, new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                if(!receivedPong)
-                {
-                    pingTimer.stop();
-                    handleBreakup(channel);
-                }
-                else
-                {
-                    receivedPong = false;
-                    sendPing();
-                }
+        //The frame carries one already, the next one is taken by the following frame
+        if (batchAcknowledgement != null || integrityCheck == IntegrityCheck.HASH_CODE)
+            return null;
+        long acknowledged = pendingAcknowledgement.getAndSet(-1);
+        if (acknowledged < 0)
+            return null;
 
-            }
-        });
-        pingTimer.setRepeats(true);
-        pingTimer.start();
+        T carrier = encodeWithAcknowledgement(storedMessage.getMessage(), acknowledged);
+        metrics.feedbackSent();
+        metrics.acknowledgementPiggybacked();
+        return carrier;
     }
 
     /**
-     * Perform actions to bring system to safe state after connection breakup
+     * Add a message to the frame currently being combined, the frame is sent first if the message does not fit
+     * Has to be called while holding the send lock
      *
-     * @param channel channel that was closed
+     * @param encodedMessage encoded message to add
+     * @param size size of the encoded message
      */
-    public void handleBreakup(Channel channel)
+    private void addToBatch(T encodedMessage, int size)
     {
-        System.err.print("Client disconnected unexpectedly");
+        if (batchBytes + size > BATCH_SIZE)
+            sendBatch();
+        batch.add(encodedMessage);
+        batchBytes += size;
     }
 
     /**
-     * Notify handler that a pong message has been received
+     * Send the messages combined so far as one frame
+     * Has to be called while holding the send lock
      */
-    public void receivedPong()
+    private void sendBatch()
     {
-        receivedPong = true;
+        if (batch.size() == 1) {
+            send(batch.get(0));
+        } else if (batch.size() > 1) {
+            T packedMessage = pack(batch);
+            send(packedMessage);
+            release(packedMessage);
+        }
+        batch.clear();
+        batchBytes = 0;
+        if (batchAcknowledgement != null) {
+            release(batchAcknowledgement);
+            batchAcknowledgement = null;
+        }
     }
 
     /**
-     * Send the given message over the channel
+     * Notify handler that the writability of the channel changed
+     * Sending is paused while the outbound buffer of the channel is above its high water mark
+     */
+    public void channelWritabilityChanged()
+    {
+        sendLock.lock();
+        try {
+            sendPending();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Create the future of a message that was not accepted for sending, it already failed with the given cause
      *
-     * @param data raw message
+     * @param cause reason for the failure
+     * @return the failed future
      */
-    public void sendMessage(String data)
+    private CompletableFuture<Long> rejected(Throwable cause)
     {
-        SafeMessage message = SafeMessageFactory.createSafeMessage(sendingSequenceNumber.getAndAdd(1), data);
-        sendMessage(message);
+        DeliveryFuture future = new DeliveryFuture();
+        rejected(cause, future);
+        return future;
     }
 
     /**
-     * Send the given message over the channel
+     * Report a message that was not accepted for sending to its listener
      *
-     * @param message SafeMessage containing the real message
+     * @param cause reason for the failure
+     * @param listener listener of the message (may be null)
+     * @return -1 as the message got no sequence number
      */
-    protected void sendMessage(SafeMessage message)
+    private long rejected(Throwable cause, DeliveryListener listener)
     {
-        T encodedMessage = encodeTransportMessage(message);
-        sendingBuffer.add(new StoredMessage<>(message.getSequenceNumber(), encodedMessage));
-        sendBuffer();
+        metrics.messageRejected();
+        if (listener != null)
+            listener.failed(-1, cause);
+        return -1;
     }
 
     /**
@@ -264,35 +1899,122 @@ public abstract class MessageHandler<T> {
     public void sendPing()
     {
         WebSocketFrame frame = new PingWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{8, 1, 8, 1}));
+        pingSent = System.nanoTime();
         channel.writeAndFlush(frame);
     }
 
     /**
-     * Try to send the content of the buffer (if any)
+     * Really send the raw message - has to be implemented based upon message encoding
+     *
+     * @param encodedMessage encoded message
+     */
+    protected abstract void send(T encodedMessage);
+
+    /**
+     * Encode a normal message again with the given acknowledgement in its header
+     * Has to be implemented based upon message encoding
+     *
+     * @param encodedMessage stored encoding of the message (stays untouched, it is kept for resending)
+     * @param acknowledged sequence number of the last message received in order
+     * @return encoded message carrying the acknowledgement
+     */
+    protected abstract T encodeWithAcknowledgement(T encodedMessage, long acknowledged);
+
+    /**
+     * Combine several encoded messages into one that is sent as a single frame
+     * The given messages stay untouched (they are kept for resending)
+     *
+     * @param encodedMessages encoded messages in order
+     * @return combined message
+     */
+    protected abstract T pack(List<T> encodedMessages);
+
+    /**
+     * Write a frame to the channel without flushing it
+     * All writes are flushed together once the event loop gets to it
+     *
+     * @param frame frame to write
      */
-    private void sendBuffer()
+    protected void write(final WebSocketFrame frame)
     {
-        if(sendingBuffer.size() > 0)
-        {
-            Iterator<StoredMessage<T>> iterator = sendingBuffer.iterator();
-            while ((iterator.hasNext()))
-            {
-                StoredMessage<T> storedMessage = iterator.next();
-                if(storedMessage.getState() == StoredMessage.State.NEW)
-                {
-                    storedMessage.setSent();
-                    send(storedMessage.getMessage());
+        final Channel channel = this.channel;
+        if (!channel.eventLoop().inEventLoop()) {
+            //Writing on the event loop keeps the scheduled flush behind all writes it has to cover
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(frame);
                 }
-            }
+            });
+            return;
+        }
+
+        //Nobody waits for single writes, so share one promise ignoring failures (lost frames are resent anyway)
+        ChannelPromise promise = writePromise;
+        if (promise == null || promise.channel() != channel)
+            writePromise = promise = new VoidChannelPromise(channel, false);
+        channel.write(frame, promise);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            channel.eventLoop().execute(flushTask);
         }
     }
 
     /**
-     * Really send the raw message - has to be implemented based upon message encoding
+     * Get the size of an encoded message (for limiting the sending window)
      *
      * @param encodedMessage encoded message
+     * @return size of the message in bytes
      */
-    protected abstract void send(T encodedMessage);
+    protected abstract int sizeOf(T encodedMessage);
+
+    /**
+     * Release an encoded message that is not needed anymore (e.g. after it was acknowledged)
+     * Encodings holding pooled resources have to override this
+     *
+     * @param encodedMessage encoded message
+     */
+    protected void release(T encodedMessage)
+    {
+    }
+
+    /**
+     * Drop all buffered messages and release their resources
+     * Should be called once the channel is gone for good
+     */
+    public void clearBuffers()
+    {
+        deactivateConnectionSupervisor();
+        sendLock.lock();
+        try {
+            if (retransmissionTimer != null) {
+                retransmissionTimer.cancel(false);
+                retransmissionTimer = null;
+            }
+            detached = false;
+            cleared = true;
+            //Messages that were not acknowledged may or may not have reached the receiver
+            ClosedChannelException cause = new ClosedChannelException();
+            while (!sendingBuffer.isEmpty()) {
+                StoredMessage<T> storedMessage = sendingBuffer.removeFirst();
+                release(storedMessage.getMessage());
+                storedMessage.failed(cause);
+                storedMessage.recycle();
+            }
+            sendingBufferBytes = 0;
+            while (!pendingBuffer.isEmpty()) {
+                StoredMessage<T> storedMessage = pendingBuffer.removeFirst();
+                release(storedMessage.getMessage());
+                storedMessage.failed(cause);
+                storedMessage.recycle();
+            }
+            sendingWindowOpened.signalAll();
+        } finally {
+            sendLock.unlock();
+        }
+        receivingWindow.clear();
+        discardFragments();
+    }
 
     /**
      * Check if the message was corrupted
@@ -314,7 +2036,43 @@ public abstract class MessageHandler<T> {
      */
     public void handleReceived(SafeMessage message, Channel channel)
     {
-        System.out.println("'"+message.getData()+"' on "+channel.toString());
+        if(message.isBinary())
+            System.out.println(message.getBinaryData().length+" bytes on "+channel.toString());
+        else
+            System.out.println("'"+message.getData()+"' on "+channel.toString());
+    }
+
+    /**
+     * Call an external action to react on a received fragment of a large payload
+     * The fragments arrive in order; by default they are reassembled and the complete payload is passed
+     * to handleReceived. Override this to consume large payloads piece by piece instead.
+     *
+     * @param fragment received fragment
+     * @param last true for the last fragment of the payload
+     * @param channel channel the fragment arrived on
+     */
+    public void handleReceivedFragment(SafeMessage fragment, boolean last, Channel channel)
+    {
+        if (fragment.isBinary()) {
+            if (binaryFragments == null)
+                binaryFragments = new ByteArrayOutputStream();
+            binaryFragments.write(fragment.getBinaryData(), 0, fragment.getBinaryData().length);
+        } else {
+            if (textFragments == null)
+                textFragments = new StringBuilder();
+            textFragments.append(fragment.getData());
+        }
+        if (!last)
+            return;
+
+        SafeMessage message = fragment.isBinary()
+                ? new SafeMessage(fragment.getSequenceNumber(), 0, fragment.getTimeStamp(), binaryFragments.toByteArray(), SafeMessage.Type.MESSAGE)
+                : new SafeMessage(fragment.getSequenceNumber(), 0, fragment.getTimeStamp(), textFragments.toString(), SafeMessage.Type.MESSAGE);
+        //Every fragment was checked on its own already
+        message.setIntegrityCheck(IntegrityCheck.NONE, 0);
+        binaryFragments = null;
+        textFragments = null;
+        handleReceived(message, channel);
     }
 
     /**
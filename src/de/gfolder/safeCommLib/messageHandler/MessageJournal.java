@@ -0,0 +1,444 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.message.SafeMessageFactory;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * safeCommLib
+ *
+ * Durable journal of sent but unacknowledged messages.
+ * Messages are appended to memory-mapped segment files before they are sent and trimmed once they are acknowledged.
+ * The files are synced to disk in groups (after a number of messages or an interval, whichever comes first),
+ * so a crash may lose the messages appended since the last sync, but never reorders them.
+ * Syncing and deleting acknowledged segments are always left to a background thread,
+ * so neither appending nor acknowledging waits for the disk.
+ * After a restart, the unacknowledged messages can be recovered and sent again (at least once delivery).
+ *
+ * Every record consists of its total length (4 bytes), CRC32 of the payload (4), sequence number (8), flags (1)
+ * and payload.
+ * A zero length marks the end of a segment, a record with a wrong checksum is treated as torn by a crash
+ * and ends the recovery (later records could not have been synced before it).
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class MessageJournal {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String ACKNOWLEDGEMENT_FILE = "acknowledged";
+    private static final int RECORD_HEADER_LENGTH = 17;
+    private static final byte FLAG_BINARY = 1;
+    private static final byte FLAG_MORE_FRAGMENTS = 2;
+
+    /**
+     * Default size of a segment file in bytes
+     */
+    public static int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Default number of appended messages after which the journal is synced at the latest
+     */
+    public static int SYNC_MESSAGES = 1024;
+
+    /**
+     * Default interval in milliseconds in which the journal is synced (0 to only sync by message count)
+     */
+    public static long SYNC_INTERVAL = 10;
+
+    /**
+     * Segment file mapped into memory
+     */
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private long lastSequenceNumber = -1;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int syncMessages;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final MappedByteBuffer acknowledgement;
+    private final CRC32 checksum = new CRC32();
+    //Text is encoded straight into the segment, so no copy of it is allocated
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ScheduledExecutorService syncTimer;
+    private final Runnable syncTask = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+    private Segment current;
+    private long nextSegmentIndex;
+    private long acknowledgedSequenceNumber;
+    private int unsyncedMessages;
+    private boolean acknowledgementDirty;
+    private boolean syncRequested;
+    private boolean closed;
+
+    /**
+     * Constructor using the default segment size and sync policy
+     *
+     * @param directory directory holding the journal files (created if missing)
+     * @throws IOException if the journal could not be opened
+     */
+    public MessageJournal(File directory) throws IOException {
+        this(directory, SEGMENT_SIZE, SYNC_MESSAGES, SYNC_INTERVAL);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory directory holding the journal files (created if missing)
+     * @param segmentSize size of a segment file in bytes
+     * @param syncMessages number of appended messages after which the journal is synced at the latest
+     * @param syncInterval interval in milliseconds in which the journal is synced (0 to only sync by message count)
+     * @throws IOException if the journal could not be opened
+     */
+    public MessageJournal(File directory, int segmentSize, int syncMessages, long syncInterval) throws IOException {
+        if (segmentSize <= RECORD_HEADER_LENGTH || syncMessages < 1 || syncInterval < 0) {
+            throw new IllegalArgumentException("Invalid journal settings");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncMessages = syncMessages;
+
+        acknowledgement = map(new File(directory, ACKNOWLEDGEMENT_FILE), 8);
+        acknowledgedSequenceNumber = acknowledgement.getLong(0) - 1;
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+                    segments.addLast(new Segment(file, map(file, (int) file.length())));
+                    nextSegmentIndex = index + 1;
+                }
+            }
+        }
+
+        syncTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "safeCommLib-journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (syncInterval > 0)
+            syncTimer.scheduleWithFixedDelay(syncTask, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Read the unacknowledged messages left by a previous run and journal them again under new sequence numbers
+     * Has to be called once before appending new messages
+     * The old segments are only deleted once the renumbered messages were synced, so a crash in between can
+     * lead to messages being recovered twice but not to losing them
+     * Reading stops at the first torn record, the segments after it are discarded
+     *
+     * @param firstSequenceNumber sequence number to give the first recovered message
+     * @return recovered messages in their original order (plain messages, not taken from the pool)
+     * @throws IOException if the journal is closed or the renumbered messages could not be synced
+     */
+    public synchronized List<SafeMessage> recover(long firstSequenceNumber) throws IOException {
+        if (closed)
+            throw new IOException("Journal is closed");
+        List<SafeMessage> messages = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (!readSegment(segment, messages))
+                break;
+        }
+
+        ArrayDeque<Segment> oldSegments = new ArrayDeque<>(segments);
+        segments.clear();
+        current = null;
+
+        long sequenceNumber = firstSequenceNumber;
+        for (SafeMessage message : messages) {
+            append(sequenceNumber, message);
+            sequenceNumber++;
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        acknowledgedSequenceNumber = firstSequenceNumber - 1;
+        acknowledgement.putLong(0, firstSequenceNumber);
+        acknowledgement.force();
+        acknowledgementDirty = false;
+        unsyncedMessages = 0;
+
+        for (Segment segment : oldSegments) {
+            delete(segment);
+        }
+
+        List<SafeMessage> recovered = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            recovered.add(SafeMessageFactory.createSafeMessage(firstSequenceNumber + i, messages.get(i)));
+        }
+        return recovered;
+    }
+
+    /**
+     * Append a message to the journal
+     * A sync is requested from the sync thread if the configured number of messages was appended since the last one
+     *
+     * @param message message to append
+     * @throws IOException if the journal is closed or a new segment could not be created
+     */
+    public synchronized void append(SafeMessage message) throws IOException {
+        if (closed)
+            throw new IOException("Journal is closed");
+        append(message.getSequenceNumber(), message);
+        if (++unsyncedMessages >= syncMessages && !syncRequested) {
+            syncRequested = true;
+            syncTimer.execute(syncTask);
+        }
+    }
+
+    /**
+     * Trim all messages up to the given sequence number
+     * Segments only holding trimmed messages are deleted by the sync thread
+     *
+     * @param sequenceNumber sequence number of the last acknowledged message
+     */
+    public synchronized void acknowledge(long sequenceNumber) {
+        if (closed || sequenceNumber <= acknowledgedSequenceNumber)
+            return;
+        acknowledgedSequenceNumber = sequenceNumber;
+        acknowledgement.putLong(0, sequenceNumber + 1);
+        acknowledgementDirty = true;
+
+        Segment segment;
+        while ((segment = segments.peekFirst()) != null && segment != current
+                && segment.lastSequenceNumber <= sequenceNumber) {
+            segments.removeFirst();
+            delete(segment);
+        }
+    }
+
+    /**
+     * Write all appended messages and the acknowledgement mark to disk
+     */
+    public void sync() {
+        MappedByteBuffer toSync;
+        boolean acknowledgementChanged;
+        synchronized (this) {
+            if (closed)
+                return;
+            syncRequested = false;
+            unsyncedMessages = 0;
+            acknowledgementChanged = acknowledgementDirty;
+            acknowledgementDirty = false;
+            toSync = current != null ? current.buffer : null;
+        }
+        if (acknowledgementChanged)
+            acknowledgement.force();
+        force(toSync);
+    }
+
+    /**
+     * Sync the journal and stop the sync thread
+     * The files are kept for recovery
+     */
+    public void close() {
+        MappedByteBuffer toSync;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            toSync = current != null ? current.buffer : null;
+        }
+        //Nothing is submitted once the journal is closed
+        syncTimer.shutdown();
+        try {
+            syncTimer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        acknowledgement.force();
+        force(toSync);
+    }
+
+    /**
+     * Append a record to the current segment, a new segment is started if it does not fit
+     * Text is encoded into the segment directly, its record is reserved for three bytes per character at most
+     * Has to be called while holding the monitor
+     *
+     * @param sequenceNumber sequence number to journal the message under
+     * @param message message to append
+     * @throws IOException if a new segment could not be created
+     */
+    private void append(long sequenceNumber, SafeMessage message) throws IOException {
+        int length = RECORD_HEADER_LENGTH
+                + (message.isBinary() ? message.getBinaryData().length : 3 * message.getData().length());
+        //Keep room for the terminating zero length
+        if (current == null || current.buffer.remaining() < length + 4) {
+            if (current != null) {
+                //Synced in order with the following segments
+                final MappedByteBuffer full = current.buffer;
+                syncTimer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        force(full);
+                    }
+                });
+            }
+            File file = new File(directory, String.format("%s%016x%s", SEGMENT_PREFIX, nextSegmentIndex, SEGMENT_SUFFIX));
+            nextSegmentIndex++;
+            current = new Segment(file, map(file, Math.max(segmentSize, length + 4)));
+            segments.addLast(current);
+        }
+
+        MappedByteBuffer buffer = current.buffer;
+        int start = buffer.position();
+        buffer.position(start + RECORD_HEADER_LENGTH);
+        if (message.isBinary()) {
+            buffer.put(message.getBinaryData());
+        } else {
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(message.getData()), buffer, true);
+            encoder.flush(buffer);
+        }
+        int end = buffer.position();
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(start + RECORD_HEADER_LENGTH).limit(end);
+        checksum.reset();
+        checksum.update(payload);
+        buffer.putInt(start + 4, (int) checksum.getValue());
+        buffer.putLong(start + 8, sequenceNumber);
+        buffer.put(start + 16, flags(message));
+        //The length is written last so a reader never sees a record that is only partly written
+        buffer.putInt(start, end - start);
+        current.lastSequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * Read the valid unacknowledged records of a segment
+     *
+     * @param segment segment to read
+     * @param messages list to add the messages to
+     * @return true if the segment ended regularly, false if it ended with a torn record
+     */
+    private boolean readSegment(Segment segment, List<SafeMessage> messages) {
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.position(0);
+        while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+            int recordLength = buffer.getInt();
+            if (recordLength == 0)
+                return true;
+            int length = recordLength - RECORD_HEADER_LENGTH;
+            if (length < 0 || length > buffer.remaining() - RECORD_HEADER_LENGTH + 4)
+                return false;
+            int storedChecksum = buffer.getInt();
+            long sequenceNumber = buffer.getLong();
+            byte flags = buffer.get();
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+
+            checksum.reset();
+            checksum.update(payload, 0, payload.length);
+            if ((int) checksum.getValue() != storedChecksum)
+                return false;
+            if (sequenceNumber <= acknowledgedSequenceNumber)
+                continue;
+            SafeMessage message = (flags & FLAG_BINARY) != 0
+                    ? SafeMessageFactory.createSafeMessage(sequenceNumber, payload)
+                    : SafeMessageFactory.createSafeMessage(sequenceNumber, new String(payload, StandardCharsets.UTF_8));
+            message.setMoreFragments((flags & FLAG_MORE_FRAGMENTS) != 0);
+            messages.add(message);
+        }
+        return true;
+    }
+
+    /**
+     * Get the flags of a message as they are journaled
+     *
+     * @param message message to journal
+     * @return flags of the record
+     */
+    private static byte flags(SafeMessage message) {
+        return (byte) ((message.isBinary() ? FLAG_BINARY : 0) | (message.hasMoreFragments() ? FLAG_MORE_FRAGMENTS : 0));
+    }
+
+    /**
+     * Write the dirty pages of a mapped buffer to disk
+     *
+     * @param buffer buffer to force (may be null)
+     */
+    private static void force(MappedByteBuffer buffer) {
+        if (buffer != null)
+            buffer.force();
+    }
+
+    /**
+     * Unmap and delete a segment on the sync thread
+     * It runs after the syncs requested before, so no other thread uses the mapping anymore
+     * Has to be called while holding the monitor
+     *
+     * @param segment segment removed from the journal
+     */
+    private void delete(final Segment segment) {
+        syncTimer.execute(new Runnable() {
+            @Override
+            public void run() {
+                //Without access to the cleaner, the mapping is released once the buffer is garbage collected
+                PlatformDependent.freeDirectBuffer(segment.buffer);
+                if (!segment.file.delete())
+                    segment.file.deleteOnExit();
+            }
+        });
+    }
+
+    /**
+     * Map a file into memory, the file is created or extended to the given size
+     *
+     * @param file file to map
+     * @param size size of the mapping in bytes
+     * @return mapped buffer
+     * @throws IOException if the file could not be mapped
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() < size)
+                randomAccessFile.setLength(size);
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
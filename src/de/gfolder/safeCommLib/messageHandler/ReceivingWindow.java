@@ -0,0 +1,254 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import de.gfolder.safeCommLib.message.SafeMessage;
+
+/**
+ * safeCommLib
+ *
+ * Bounded window of received messages waiting to be released in order.
+ * Messages are stored in a ring buffer with a power of two size, indexed by their sequence number,
+ * so storing a message and releasing the next one in order are both O(1).
+ * The ranges of stored messages are kept up to date while storing and releasing, so reporting them for
+ * selective acknowledgements does not scan the window.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class ReceivingWindow {
+
+    private final SafeMessage[] slots;
+    private final int mask;
+    private long nextSequenceNumber;
+    private int size;
+    //First and last sequence number (inclusive) of each range of stored messages in ascending order
+    private long[] rangeStarts = new long[16];
+    private long[] rangeEnds = new long[16];
+    private int firstRange;
+    private int rangeCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of sequence numbers the window spans (rounded up to a power of two)
+     */
+    public ReceivingWindow(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Window capacity must be between 1 and 2^30");
+        }
+        int powerOfTwo = Integer.highestOneBit(capacity);
+        if (powerOfTwo < capacity)
+            powerOfTwo <<= 1;
+
+        slots = new SafeMessage[powerOfTwo];
+        mask = powerOfTwo - 1;
+        nextSequenceNumber = 0;
+        size = 0;
+    }
+
+    /**
+     * Getter for property 'nextSequenceNumber'.
+     *
+     * @return sequence number of the next message to be released
+     */
+    public long getNextSequenceNumber() {
+        return nextSequenceNumber;
+    }
+
+    /**
+     * Get the number of messages stored and not released yet
+     *
+     * @return number of buffered messages
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if there are no messages waiting in the window
+     *
+     * @return true if the window is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the number of sequence numbers the window spans
+     *
+     * @return capacity of the window
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Store a received message in its slot
+     *
+     * @param message message to store
+     * @return true if the message is now known (stored or already received before),
+     *         false if it is beyond the window and has to be sent again later
+     */
+    public boolean store(SafeMessage message) {
+        long sequenceNumber = message.getSequenceNumber();
+
+        //Already released
+        if (sequenceNumber < nextSequenceNumber)
+            return true;
+        if (sequenceNumber - nextSequenceNumber >= slots.length)
+            return false;
+
+        int index = (int) (sequenceNumber & mask);
+        if (slots[index] == null) {
+            slots[index] = message;
+            size++;
+            addToRanges(sequenceNumber);
+        }
+        return true;
+    }
+
+    /**
+     * Add a newly stored sequence number to the ranges, joining it with the neighbouring ones
+     *
+     * @param sequenceNumber sequence number that was not stored before
+     */
+    private void addToRanges(long sequenceNumber) {
+        //Find the first range starting behind the sequence number
+        int end = firstRange + rangeCount;
+        int low = firstRange;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (rangeStarts[middle] > sequenceNumber)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        int next = low;
+        int previous = next - 1;
+
+        boolean joinsPrevious = previous >= firstRange && rangeEnds[previous] == sequenceNumber - 1;
+        boolean joinsNext = next < end && rangeStarts[next] == sequenceNumber + 1;
+        if (joinsPrevious && joinsNext) {
+            rangeEnds[previous] = rangeEnds[next];
+            System.arraycopy(rangeStarts, next + 1, rangeStarts, next, end - next - 1);
+            System.arraycopy(rangeEnds, next + 1, rangeEnds, next, end - next - 1);
+            rangeCount--;
+        } else if (joinsPrevious) {
+            rangeEnds[previous] = sequenceNumber;
+        } else if (joinsNext) {
+            rangeStarts[next] = sequenceNumber;
+        } else {
+            insertRange(next, sequenceNumber);
+        }
+    }
+
+    /**
+     * Insert a range holding a single sequence number
+     *
+     * @param index index the range gets
+     * @param sequenceNumber sequence number of the range
+     */
+    private void insertRange(int index, long sequenceNumber) {
+        if (firstRange + rangeCount == rangeStarts.length) {
+            //Move the ranges to the front, or grow the arrays if they are full
+            long[] starts = rangeCount < rangeStarts.length / 2 ? rangeStarts : new long[rangeStarts.length * 2];
+            long[] ends = rangeCount < rangeEnds.length / 2 ? rangeEnds : new long[rangeEnds.length * 2];
+            System.arraycopy(rangeStarts, firstRange, starts, 0, rangeCount);
+            System.arraycopy(rangeEnds, firstRange, ends, 0, rangeCount);
+            rangeStarts = starts;
+            rangeEnds = ends;
+            index -= firstRange;
+            firstRange = 0;
+        }
+        int end = firstRange + rangeCount;
+        System.arraycopy(rangeStarts, index, rangeStarts, index + 1, end - index);
+        System.arraycopy(rangeEnds, index, rangeEnds, index + 1, end - index);
+        rangeStarts[index] = sequenceNumber;
+        rangeEnds[index] = sequenceNumber;
+        rangeCount++;
+    }
+
+    /**
+     * Check if a message is stored in the window and not released yet
+     *
+     * @param sequenceNumber sequence number of the message
+     * @return true if the message is waiting in its slot
+     */
+    public boolean contains(long sequenceNumber) {
+        if (sequenceNumber < nextSequenceNumber || sequenceNumber - nextSequenceNumber >= slots.length)
+            return false;
+        return slots[(int) (sequenceNumber & mask)] != null;
+    }
+
+    /**
+     * Get the ranges of messages stored behind the first gap
+     * Each range is given by its first and last sequence number (inclusive)
+     *
+     * @param maxRanges maximum number of ranges to report
+     * @return first and last sequence number of each range in ascending order
+     */
+    public long[] getStoredRanges(int maxRanges) {
+        int count = Math.max(0, Math.min(maxRanges, rangeCount));
+        long[] ranges = new long[2 * count];
+        for (int i = 0; i < count; i++) {
+            ranges[2 * i] = rangeStarts[firstRange + i];
+            ranges[2 * i + 1] = rangeEnds[firstRange + i];
+        }
+        return ranges;
+    }
+
+    /**
+     * Get the number of messages that can be released in order right now
+     *
+     * @return length of the run of stored messages starting at the next sequence number
+     */
+    public int getReleasableCount() {
+        if (rangeCount == 0 || rangeStarts[firstRange] != nextSequenceNumber)
+            return 0;
+        return (int) (rangeEnds[firstRange] - nextSequenceNumber + 1);
+    }
+
+    /**
+     * Release the next message in order if it has already been received
+     *
+     * @return the next message or null if it is still missing
+     */
+    public SafeMessage poll() {
+        int index = (int) (nextSequenceNumber & mask);
+        SafeMessage message = slots[index];
+        if (message != null) {
+            slots[index] = null;
+            size--;
+            nextSequenceNumber++;
+            //The released message is the start of the first range
+            if (++rangeStarts[firstRange] > rangeEnds[firstRange]) {
+                firstRange = --rangeCount == 0 ? 0 : firstRange + 1;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Drop all stored messages and recycle them (the position in the sequence is kept)
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length && size > 0; i++) {
+            if (slots[i] != null) {
+                slots[i].recycle();
+                slots[i] = null;
+                size--;
+            }
+        }
+        firstRange = 0;
+        rangeCount = 0;
+    }
+
+    /**
+     * Drop all stored messages and expect sequence number 0 next (for a new session)
+     */
+    public void reset() {
+        clear();
+        nextSequenceNumber = 0;
+    }
+}
@@ -0,0 +1,89 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+/**
+ * safeCommLib
+ *
+ * Estimation of the round trip time of a connection and the derived retransmission timeout
+ * (smoothed round trip time and variance as described in RFC 6298, with exponential backoff).
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class RoundTripEstimator {
+
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    private long smoothedRoundTripTime;
+    private long roundTripTimeVariance;
+    private long timeout;
+    private int backoff;
+
+    /**
+     * Constructor
+     *
+     * @param initialTimeout timeout before the first measurement in nanoseconds
+     * @param minTimeout lower bound of the timeout in nanoseconds
+     * @param maxTimeout upper bound of the timeout (including backoff) in nanoseconds
+     */
+    public RoundTripEstimator(long initialTimeout, long minTimeout, long maxTimeout) {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.smoothedRoundTripTime = -1;
+        this.timeout = Math.min(Math.max(initialTimeout, minTimeout), maxTimeout);
+        this.backoff = 0;
+    }
+
+    /**
+     * Getter for property 'smoothedRoundTripTime'.
+     *
+     * @return smoothed round trip time in nanoseconds (-1 if not measured yet)
+     */
+    public long getSmoothedRoundTripTime() {
+        return smoothedRoundTripTime;
+    }
+
+    /**
+     * Get the current retransmission timeout including backoff
+     *
+     * @return timeout in nanoseconds
+     */
+    public long getTimeout() {
+        long backedOff = timeout << backoff;
+        return backedOff <= 0 || backedOff > maxTimeout ? maxTimeout : backedOff;
+    }
+
+    /**
+     * Add a new measurement (only for messages that were not resent, see Karn's algorithm)
+     * Resets the backoff
+     *
+     * @param roundTripTime measured round trip time in nanoseconds
+     */
+    public void sample(long roundTripTime) {
+        if (smoothedRoundTripTime < 0) {
+            smoothedRoundTripTime = roundTripTime;
+            roundTripTimeVariance = roundTripTime / 2;
+        } else {
+            roundTripTimeVariance += (Math.abs(smoothedRoundTripTime - roundTripTime) - roundTripTimeVariance) / 4;
+            smoothedRoundTripTime += (roundTripTime - smoothedRoundTripTime) / 8;
+        }
+        timeout = Math.min(Math.max(smoothedRoundTripTime + 4 * roundTripTimeVariance, minTimeout), maxTimeout);
+        backoff = 0;
+    }
+
+    /**
+     * Double the timeout after it expired (up to the upper bound)
+     */
+    public void backoff() {
+        if ((timeout << backoff) < maxTimeout && backoff < 30)
+            backoff++;
+    }
+
+    /**
+     * Return to the unmodified timeout (e.g. after the receiver confirmed new messages)
+     */
+    public void resetBackoff() {
+        backoff = 0;
+    }
+}
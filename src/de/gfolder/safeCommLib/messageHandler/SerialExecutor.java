@@ -0,0 +1,78 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * safeCommLib
+ *
+ * Executor running its tasks one after another in the order they were submitted, using a shared executor.
+ * At most one task of the queue runs at a time, so every connection can have its own queue on a common pool.
+ * After a batch of tasks the queue gives its thread back and is submitted again, so busy queues do not starve others.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+class SerialExecutor implements Executor {
+
+    /**
+     * Number of tasks run before the thread is given back to the shared executor
+     */
+    private static final int BATCH = 64;
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //Queued tasks plus the running one, the queue is drained while it is above 0
+    private final AtomicInteger size = new AtomicInteger();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param executor executor to run the tasks on
+     */
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Get the number of tasks not finished yet
+     *
+     * @return number of queued tasks including the running one
+     */
+    int size() {
+        return size.get();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (size.getAndIncrement() == 0)
+            executor.execute(drainTask);
+    }
+
+    /**
+     * Run queued tasks until the queue is empty or the batch is used up
+     */
+    private void drain() {
+        for (int i = 0; i < BATCH; i++) {
+            Runnable task = tasks.poll();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            if (size.decrementAndGet() == 0)
+                return;
+        }
+        executor.execute(drainTask);
+    }
+}
@@ -0,0 +1,170 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import de.gfolder.safeCommLib.message.IntegrityCheck;
+import de.gfolder.safeCommLib.message.SafeMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import org.json.simple.JSONValue;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * safeCommLib
+ *
+ * Payload sent to many connections at once.
+ * The payload is checksummed once per integrity check and serialized at most once per encoding; each connection only
+ * adds its own header (sequence number, timestamp) around the shared, reference counted content.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class SharedPayload extends AbstractReferenceCounted {
+
+    private final String data;
+    private final byte[] binaryData;
+    private final int[] checksums = new int[IntegrityCheck.values().length];
+    private final boolean[] checksummed = new boolean[IntegrityCheck.values().length];
+
+    private ByteBuf content;
+    private String escapedData;
+
+    /**
+     * Constructor
+     *
+     * @param data text payload
+     */
+    public SharedPayload(String data) {
+        this.data = data;
+        this.binaryData = null;
+    }
+
+    /**
+     * Constructor for binary payloads
+     *
+     * @param binaryData binary payload
+     */
+    public SharedPayload(byte[] binaryData) {
+        this.data = null;
+        this.binaryData = binaryData;
+    }
+
+    /**
+     * Check whether this payload is binary
+     *
+     * @return true if the payload is binary
+     */
+    public boolean isBinary() {
+        return binaryData != null;
+    }
+
+    /**
+     * Get the length of the payload
+     *
+     * @return length in bytes (binary) or characters (text)
+     */
+    public int length() {
+        return binaryData != null ? binaryData.length : data.length();
+    }
+
+    /**
+     * Getter for property 'data'.
+     *
+     * @return Value for property 'data' (null for binary payloads).
+     */
+    String getData() {
+        return data;
+    }
+
+    /**
+     * Getter for property 'binaryData'.
+     *
+     * @return Value for property 'binaryData' (null for text payloads).
+     */
+    byte[] getBinaryData() {
+        return binaryData;
+    }
+
+    /**
+     * Create the message for one connection
+     *
+     * @param sequenceNumber sequence number of the message on that connection
+     * @return pooled message carrying this payload, to be recycled once it is encoded
+     */
+    public SafeMessage createMessage(long sequenceNumber) {
+        if (binaryData != null)
+            return SafeMessage.newInstance(sequenceNumber, binaryData, SafeMessage.Type.MESSAGE);
+        return SafeMessage.newInstance(sequenceNumber, data, SafeMessage.Type.MESSAGE);
+    }
+
+    /**
+     * Get the checksum of the payload (computed on first use)
+     * Checksums over bytes are computed over the serialized payload (see content)
+     *
+     * @param integrityCheck strategy to compute the checksum with
+     * @return checksum to send as stored hash
+     */
+    public synchronized int checksum(IntegrityCheck integrityCheck) {
+        int index = integrityCheck.ordinal();
+        if (!checksummed[index]) {
+            if (integrityCheck == IntegrityCheck.HASH_CODE) {
+                checksums[index] = binaryData != null ? Arrays.hashCode(binaryData) : data.hashCode();
+            } else {
+                ByteBuf content = content();
+                checksums[index] = integrityCheck.checksum(content, content.readerIndex(), content.readableBytes());
+            }
+            checksummed[index] = true;
+        }
+        return checksums[index];
+    }
+
+    /**
+     * Get the payload as bytes (UTF-8 for text)
+     * The buffer is shared, callers have to use a retained duplicate of it
+     *
+     * @return buffer containing the serialized payload
+     */
+    public synchronized ByteBuf content() {
+        if (content == null) {
+            if (binaryData != null) {
+                content = Unpooled.wrappedBuffer(binaryData);
+            } else {
+                content = ByteBufAllocator.DEFAULT.buffer(data.length());
+                ByteBufUtil.writeUtf8(content, data);
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Get the payload as content of a JSON string (escaped text or base64 for binary payloads)
+     *
+     * @return the escaped payload
+     */
+    public synchronized String escapedData() {
+        if (escapedData == null) {
+            if (binaryData != null)
+                escapedData = Base64.getEncoder().encodeToString(binaryData);
+            else
+                escapedData = JSONValue.escape(data);
+        }
+        return escapedData;
+    }
+
+    @Override
+    protected synchronized void deallocate() {
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+    }
+
+    @Override
+    public SharedPayload touch(Object hint) {
+        return this;
+    }
+}
@@ -1,8 +1,12 @@
 package de.gfolder.safeCommLib.messageHandler;
 
+import io.netty.util.Recycler;
+
 /**
  * safeCommLib
  *
+ * Messages created with newInstance are pooled and handed back with recycle once they left the buffers.
+ *
  * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
  * @version 0.1
  */
@@ -11,9 +15,23 @@ public class StoredMessage<T> {
 
     enum State {NEW, SENT, OK, CONFIRMED, MISSING}
 
+    private static final Recycler<StoredMessage<Object>> RECYCLER = new Recycler<StoredMessage<Object>>() {
+        @Override
+        protected StoredMessage<Object> newObject(Handle<StoredMessage<Object>> handle) {
+            return new StoredMessage<>(handle);
+        }
+    };
+
+    private final Recycler.Handle<StoredMessage<Object>> handle;
     private long sequenceNumber;
     private State state;
     private T message;
+    private int size;
+    private long sentTime;
+    private int transmissions;
+    private long deadline;
+    private DeliveryListener listener;
+    private boolean done;
 
     public long getSequenceNumber() {
         return sequenceNumber;
@@ -35,6 +53,66 @@ public class StoredMessage<T> {
         this.message = message;
     }
 
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public long getSentTime() {
+        return sentTime;
+    }
+
+    public int getTransmissions() {
+        return transmissions;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public DeliveryListener getListener() {
+        return listener;
+    }
+
+    public void setListener(DeliveryListener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Report the message as delivered to its listener (if any), unless it was reported before
+     */
+    void delivered() {
+        if (done)
+            return;
+        done = true;
+        if (listener != null)
+            listener.delivered(sequenceNumber);
+    }
+
+    /**
+     * Report the message as failed to its listener (if any), unless it was reported before
+     *
+     * @param cause reason for the failure
+     */
+    void failed(Throwable cause) {
+        if (done)
+            return;
+        done = true;
+        if (listener != null)
+            listener.failed(sequenceNumber, cause);
+    }
+
     /**
      * Constructor
      *
@@ -43,6 +121,7 @@ public class StoredMessage<T> {
      * @param message message to store/stored message
      */
     public StoredMessage(long sequenceNumber, State state, T message) {
+        this.handle = null;
         this.sequenceNumber = sequenceNumber;
         this.state = state;
         this.message = message;
@@ -55,6 +134,7 @@ public class StoredMessage<T> {
      * @param message message to store/stored message
      */
     public StoredMessage(long sequenceNumber, T message) {
+        this.handle = null;
         this.sequenceNumber = sequenceNumber;
         this.message = message;
         this.state = State.NEW;
@@ -66,14 +146,65 @@ public class StoredMessage<T> {
      * @param sequenceNumber number of the message
      */
     public StoredMessage(long sequenceNumber) {
+        this.handle = null;
         this.sequenceNumber = sequenceNumber;
         this.state = State.MISSING;
         this.message = null;
     }
 
-    public void setSent()
+    /**
+     * Constructor for pooled messages
+     *
+     * @param handle handle to return the message to its pool
+     */
+    private StoredMessage(Recycler.Handle<StoredMessage<Object>> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Take a new message (without given state) from the pool
+     *
+     * @param sequenceNumber number of the message
+     * @param message message to store
+     * @return pooled message, to be recycled once it left the buffers
+     */
+    @SuppressWarnings("unchecked")
+    static <T> StoredMessage<T> newInstance(long sequenceNumber, T message) {
+        StoredMessage<T> storedMessage = (StoredMessage<T>) (StoredMessage<?>) RECYCLER.get();
+        storedMessage.sequenceNumber = sequenceNumber;
+        storedMessage.message = message;
+        storedMessage.state = State.NEW;
+        return storedMessage;
+    }
+
+    /**
+     * Hand a pooled message back to its pool, it must not be used afterwards
+     * The stored message itself has to be released before
+     */
+    @SuppressWarnings("unchecked")
+    void recycle() {
+        if (handle == null)
+            return;
+        message = null;
+        size = 0;
+        sentTime = 0;
+        transmissions = 0;
+        deadline = 0;
+        listener = null;
+        done = false;
+        handle.recycle((StoredMessage<Object>) this);
+    }
+
+    /**
+     * Mark message as (re)sent
+     *
+     * @param sentTime time of sending as given by System.nanoTime()
+     */
+    public void setSent(long sentTime)
     {
         this.state = State.SENT;
+        this.sentTime = sentTime;
+        this.transmissions++;
     }
 
     public void setOK()
@@ -0,0 +1,61 @@
+package de.gfolder.safeCommLib.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * safeCommLib
+ *
+ * Registry exposing metrics as MXBeans of the platform MBean server,
+ * named de.gfolder.safeCommLib:type=Metrics,name=...
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class JmxMetricsRegistry implements MetricsRegistry {
+
+    /**
+     * Domain of the registered object names
+     */
+    public static final String DOMAIN = "de.gfolder.safeCommLib";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @Override
+    public void register(String name, MessageMetricsMXBean metrics) {
+        try {
+            ObjectName objectName = objectName(name);
+            //Replace the metrics of a previous instance with the same name
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(metrics, objectName);
+        } catch (JMException e) {
+            System.err.println("Could not register metrics " + name + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void unregister(String name) {
+        try {
+            ObjectName objectName = objectName(name);
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            System.err.println("Could not unregister metrics " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the object name metrics are registered with
+     *
+     * @param name name of the metrics
+     * @return the object name
+     * @throws JMException if the name is not valid
+     */
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+    }
+}
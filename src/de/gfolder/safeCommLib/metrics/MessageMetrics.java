@@ -0,0 +1,330 @@
+package de.gfolder.safeCommLib.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * safeCommLib
+ *
+ * Counters of a connection.
+ * The counters are striped (LongAdder), so connections on different threads can share the counters of a parent
+ * (e.g. all connections of a server) without contention. Counting does not allocate; counting into the
+ * DISABLED instance only costs a branch.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class MessageMetrics implements MessageMetricsMXBean {
+
+    /**
+     * Metrics counting nothing, to switch metrics off
+     */
+    public static final MessageMetrics DISABLED = new MessageMetrics(false, null);
+
+    private final boolean enabled;
+    private final MessageMetrics parent;
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesRetransmitted = new LongAdder();
+    private final LongAdder messagesAcknowledged = new LongAdder();
+    private final LongAdder messagesRejected = new LongAdder();
+    private final LongAdder messagesExpired = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder duplicatesReceived = new LongAdder();
+    private final LongAdder corruptedReceived = new LongAdder();
+    private final LongAdder messagesDropped = new LongAdder();
+    private final LongAdder gapsDetected = new LongAdder();
+    private final LongAdder feedbackSent = new LongAdder();
+    private final LongAdder feedbackReceived = new LongAdder();
+    private final LongAdder acknowledgementsPiggybacked = new LongAdder();
+    private final LongAdder breakups = new LongAdder();
+    private final LongAdder pongsReceived = new LongAdder();
+    private final LongAdder pongLatency = new LongAdder();
+
+    /**
+     * Constructor for standalone metrics
+     */
+    public MessageMetrics() {
+        this(true, null);
+    }
+
+    /**
+     * Constructor for metrics also counting into aggregated ones
+     *
+     * @param parent metrics to count everything into as well (e.g. of the whole server)
+     */
+    public MessageMetrics(MessageMetrics parent) {
+        this(true, parent);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param enabled false to count nothing
+     * @param parent metrics to count everything into as well (may be null)
+     */
+    private MessageMetrics(boolean enabled, MessageMetrics parent) {
+        this.enabled = enabled;
+        this.parent = parent;
+    }
+
+    /**
+     * Getter for property 'enabled'.
+     *
+     * @return Value for property 'enabled'.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Count that a message was sent for the first time
+     */
+    public void messageSent() {
+        if (enabled) {
+            messagesSent.increment();
+            if (parent != null)
+                parent.messageSent();
+        }
+    }
+
+    /**
+     * Count that a message was sent again
+     */
+    public void messageRetransmitted() {
+        if (enabled) {
+            messagesRetransmitted.increment();
+            if (parent != null)
+                parent.messageRetransmitted();
+        }
+    }
+
+    /**
+     * Count that a message was not accepted for sending
+     */
+    public void messageRejected() {
+        if (enabled) {
+            messagesRejected.increment();
+            if (parent != null)
+                parent.messageRejected();
+        }
+    }
+
+    /**
+     * Count that the delivery timeout of a message expired
+     */
+    public void messageExpired() {
+        if (enabled) {
+            messagesExpired.increment();
+            if (parent != null)
+                parent.messageExpired();
+        }
+    }
+
+    /**
+     * Count that a message was received
+     */
+    public void messageReceived() {
+        if (enabled) {
+            messagesReceived.increment();
+            if (parent != null)
+                parent.messageReceived();
+        }
+    }
+
+    /**
+     * Count that a message was received that was already passed on
+     */
+    public void duplicateReceived() {
+        if (enabled) {
+            duplicatesReceived.increment();
+            if (parent != null)
+                parent.duplicateReceived();
+        }
+    }
+
+    /**
+     * Count that a message with a wrong checksum was received
+     */
+    public void corruptedReceived() {
+        if (enabled) {
+            corruptedReceived.increment();
+            if (parent != null)
+                parent.corruptedReceived();
+        }
+    }
+
+    /**
+     * Count that a message was received too far ahead of the receiving window
+     */
+    public void messageDropped() {
+        if (enabled) {
+            messagesDropped.increment();
+            if (parent != null)
+                parent.messageDropped();
+        }
+    }
+
+    /**
+     * Count that a gap opened in the received sequence
+     */
+    public void gapDetected() {
+        if (enabled) {
+            gapsDetected.increment();
+            if (parent != null)
+                parent.gapDetected();
+        }
+    }
+
+    /**
+     * Count that a feedback message was sent
+     */
+    public void feedbackSent() {
+        if (enabled) {
+            feedbackSent.increment();
+            if (parent != null)
+                parent.feedbackSent();
+        }
+    }
+
+    /**
+     * Count that a feedback message was received
+     */
+    public void feedbackReceived() {
+        if (enabled) {
+            feedbackReceived.increment();
+            if (parent != null)
+                parent.feedbackReceived();
+        }
+    }
+
+    /**
+     * Count that a feedback message was sent along with outgoing messages instead of on its own
+     * (it is counted as sent feedback as well)
+     */
+    public void acknowledgementPiggybacked() {
+        if (enabled) {
+            acknowledgementsPiggybacked.increment();
+            if (parent != null)
+                parent.acknowledgementPiggybacked();
+        }
+    }
+
+    /**
+     * Count that the connection was lost
+     */
+    public void breakup() {
+        if (enabled) {
+            breakups.increment();
+            if (parent != null)
+                parent.breakup();
+        }
+    }
+
+    /**
+     * Count messages confirmed by the receiver
+     *
+     * @param count number of messages confirmed by one feedback message
+     */
+    public void messagesAcknowledged(int count) {
+        if (enabled) {
+            messagesAcknowledged.add(count);
+            if (parent != null)
+                parent.messagesAcknowledged(count);
+        }
+    }
+
+    /**
+     * Count a pong received in answer to a ping
+     *
+     * @param latency time since the ping was sent in nanoseconds
+     */
+    public void pongReceived(long latency) {
+        if (enabled) {
+            pongsReceived.increment();
+            pongLatency.add(latency);
+            if (parent != null)
+                parent.pongReceived(latency);
+        }
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getMessagesRetransmitted() {
+        return messagesRetransmitted.sum();
+    }
+
+    @Override
+    public long getMessagesAcknowledged() {
+        return messagesAcknowledged.sum();
+    }
+
+    @Override
+    public long getMessagesRejected() {
+        return messagesRejected.sum();
+    }
+
+    @Override
+    public long getMessagesExpired() {
+        return messagesExpired.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getDuplicatesReceived() {
+        return duplicatesReceived.sum();
+    }
+
+    @Override
+    public long getCorruptedReceived() {
+        return corruptedReceived.sum();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    @Override
+    public long getGapsDetected() {
+        return gapsDetected.sum();
+    }
+
+    @Override
+    public long getFeedbackSent() {
+        return feedbackSent.sum();
+    }
+
+    @Override
+    public long getFeedbackReceived() {
+        return feedbackReceived.sum();
+    }
+
+    @Override
+    public long getAcknowledgementsPiggybacked() {
+        return acknowledgementsPiggybacked.sum();
+    }
+
+    @Override
+    public long getBreakups() {
+        return breakups.sum();
+    }
+
+    @Override
+    public long getPongsReceived() {
+        return pongsReceived.sum();
+    }
+
+    @Override
+    public long getAveragePongLatency() {
+        long pongs = pongsReceived.sum();
+        return pongs == 0 ? 0 : pongLatency.sum() / pongs / 1000;
+    }
+}
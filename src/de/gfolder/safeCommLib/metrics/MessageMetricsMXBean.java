@@ -0,0 +1,61 @@
+package de.gfolder.safeCommLib.metrics;
+
+/**
+ * safeCommLib
+ *
+ * Counters of a connection or of all connections of a server, as exposed via JMX.
+ * All counters only ever grow; rates are computed by the monitoring system from two readings.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public interface MessageMetricsMXBean {
+    /** Messages sent for the first time */
+    public long getMessagesSent();
+
+    /** Messages sent again after they were reported missing or their retransmission timeout expired */
+    public long getMessagesRetransmitted();
+
+    /** Messages confirmed by the receiver */
+    public long getMessagesAcknowledged();
+
+    /** Messages not accepted for sending (full window or queue, closed connection) */
+    public long getMessagesRejected();
+
+    /** Messages whose delivery timeout expired before they were acknowledged */
+    public long getMessagesExpired();
+
+    /** Messages received (including duplicates and corrupted ones) */
+    public long getMessagesReceived();
+
+    /** Messages received again after they were already passed on */
+    public long getDuplicatesReceived();
+
+    /** Messages received with a wrong checksum */
+    public long getCorruptedReceived();
+
+    /** Messages received too far ahead of the receiving window */
+    public long getMessagesDropped();
+
+    /** Gaps opened in the received sequence (a message arrived before one it follows) */
+    public long getGapsDetected();
+
+    /** Feedback messages sent */
+    public long getFeedbackSent();
+
+    /** Feedback messages received */
+    public long getFeedbackReceived();
+
+    /** Feedback messages sent along with outgoing messages in the same frame (included in FeedbackSent) */
+    public long getAcknowledgementsPiggybacked();
+
+    /** Connections lost */
+    public long getBreakups();
+
+    /** Pongs received in answer to the pings of the connection supervisor */
+    public long getPongsReceived();
+
+    /** Average time between a ping and its pong in microseconds */
+    public long getAveragePongLatency();
+}
@@ -0,0 +1,18 @@
+package de.gfolder.safeCommLib.metrics;
+
+/**
+ * safeCommLib
+ *
+ * Hook to expose metrics to a monitoring system.
+ * The metrics are only registered once; they are read by the monitoring system whenever it needs them,
+ * so nothing is pushed or allocated while messages are sent and received.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public interface MetricsRegistry {
+    public void register(String name, MessageMetricsMXBean metrics);
+
+    public void unregister(String name);
+}
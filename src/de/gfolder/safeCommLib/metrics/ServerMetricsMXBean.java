@@ -0,0 +1,28 @@
+package de.gfolder.safeCommLib.metrics;
+
+/**
+ * safeCommLib
+ *
+ * Metrics of a server: the counters of all its connections plus the current state of their buffers.
+ * The buffer gauges are summed over the connections when they are read.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public interface ServerMetricsMXBean extends MessageMetricsMXBean {
+    /** Open connections */
+    public int getConnections();
+
+    /** Sessions waiting to be resumed by their clients */
+    public int getDetachedSessions();
+
+    /** Messages sent but not acknowledged yet (occupancy of the sending windows) */
+    public long getUnacknowledgedMessages();
+
+    /** Messages queued until the sending windows open */
+    public long getPendingMessages();
+
+    /** Messages received out of order and held back until the gaps before them are filled */
+    public long getReceivingWindowMessages();
+}
@@ -1,23 +1,49 @@
 package de.gfolder.safeCommLib.server;
 
-import de.gfolder.safeCommLib.SSLInitializer;
+import de.gfolder.safeCommLib.CompressionConfig;
+import de.gfolder.safeCommLib.SslConfig;
+import de.gfolder.safeCommLib.TransportConfig;
+import de.gfolder.safeCommLib.connector.BinaryMessageReceiver;
 import de.gfolder.safeCommLib.connector.BreakupHandler;
 import de.gfolder.safeCommLib.connector.MessageReceiver;
+import de.gfolder.safeCommLib.connector.StreamingMessageReceiver;
 import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.messageHandler.BinaryMessageHandler;
 import de.gfolder.safeCommLib.messageHandler.JSONMessageHandler;
 import de.gfolder.safeCommLib.messageHandler.MessageHandler;
+import de.gfolder.safeCommLib.messageHandler.SharedPayload;
+import de.gfolder.safeCommLib.metrics.JmxMetricsRegistry;
+import de.gfolder.safeCommLib.metrics.MessageMetrics;
+import de.gfolder.safeCommLib.metrics.MetricsRegistry;
+import de.gfolder.safeCommLib.metrics.ServerMetricsMXBean;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.logging.LogLevel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslContext;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 import javax.net.ssl.SSLException;
+import java.nio.channels.ClosedChannelException;
 import java.security.cert.CertificateException;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * safeCommLib
@@ -27,22 +53,58 @@ import java.util.HashMap;
  */
 
 public class SafeMessageServer {
+    /**
+     * Channel attribute holding the message handler of a connection
+     */
+    private static final AttributeKey<MessageHandler<?>> HANDLER = AttributeKey.valueOf(SafeMessageServer.class, "handler");
+
+    /**
+     * Channel attribute holding the id of the session a connection belongs to
+     */
+    private static final AttributeKey<String> SESSION = AttributeKey.valueOf(SafeMessageServer.class, "session");
+
+    /**
+     * Session whose connection broke up, waiting to be resumed
+     */
+    private static class DetachedSession {
+        private final MessageHandler<?> handler;
+        private volatile ScheduledFuture<?> expiry;
+
+        private DetachedSession(MessageHandler<?> handler) {
+            this.handler = handler;
+        }
+    }
+
     private boolean ssl;
+    private SslConfig sslConfig;
+    private boolean binary;
+    private long sessionGracePeriod;
     private int port;
     private String websocketPath;
 
     protected SslContext sslCtx;
 
+    private TransportConfig transportConfig;
+    private CompressionConfig compressionConfig;
+    private int maxFrameSize = MessageHandler.MAX_FRAME_SIZE;
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
 
-    private Channel ch;
+    private List<Channel> serverChannels;
 
-    private HashMap<Channel, MessageHandler<String>> handlers;
-    private HashMap<String, Channel> channels;
+    private ConcurrentHashMap<String, MessageHandler<?>> handlers;
+    private ChannelGroup allChannels;
+    private ConcurrentHashMap<String, ChannelGroup> groups;
+    private ConcurrentHashMap<String, DetachedSession> detachedSessions;
 
     private MessageReceiver messageReceiver;
     private BreakupHandler breakupHandler;
+    private Executor dispatchExecutor;
+
+    private boolean metricsEnabled = true;
+    private MessageMetrics metrics;
+    private ServerMetricsMXBean serverMetrics;
+    private MetricsRegistry metricsRegistry = new JmxMetricsRegistry();
 
     /**
      * Constructor
@@ -58,8 +120,204 @@ public class SafeMessageServer {
         this.ssl = ssl;
         this.messageReceiver = messageReceiver;
         this.breakupHandler = breakupHandler;
-        handlers = new HashMap<>();
-        channels = new HashMap<>();
+        transportConfig = TransportConfig.defaults();
+        serverChannels = new ArrayList<>();
+        handlers = new ConcurrentHashMap<>();
+        allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+        groups = new ConcurrentHashMap<>();
+        detachedSessions = new ConcurrentHashMap<>();
+        metrics = new MessageMetrics();
+        serverMetrics = new SafeMessageServerMetrics(metrics, this);
+    }
+
+    /**
+     * Getter for property 'binary'.
+     *
+     * @return Value for property 'binary'.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Setter for property 'binary'.
+     * If set, new connections use the compact binary encoding instead of JSON
+     *
+     * @param binary Value to set for property 'binary'.
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Getter for property 'sessionGracePeriod'.
+     *
+     * @return Value for property 'sessionGracePeriod'.
+     */
+    public long getSessionGracePeriod() {
+        return sessionGracePeriod;
+    }
+
+    /**
+     * Setter for property 'sessionGracePeriod'.
+     * Time in milliseconds the session of a broken connection is kept to be resumed by a reconnecting client.
+     * Messages sent to the session meanwhile are queued, the breakup handler is only called once the period expired.
+     * Group memberships end with the connection and have to be renewed after resuming. 0 disables resumption.
+     *
+     * @param sessionGracePeriod Value to set for property 'sessionGracePeriod'.
+     */
+    public void setSessionGracePeriod(long sessionGracePeriod) {
+        this.sessionGracePeriod = sessionGracePeriod;
+    }
+
+    /**
+     * Getter for property 'transportConfig'.
+     *
+     * @return Value for property 'transportConfig'.
+     */
+    public TransportConfig getTransportConfig() {
+        return transportConfig;
+    }
+
+    /**
+     * Setter for property 'transportConfig'.
+     * Has to be set before calling init
+     *
+     * @param transportConfig Value to set for property 'transportConfig'.
+     */
+    public void setTransportConfig(TransportConfig transportConfig) {
+        this.transportConfig = transportConfig;
+    }
+
+    /**
+     * Getter for property 'compressionConfig'.
+     *
+     * @return Value for property 'compressionConfig' (null if compression is disabled).
+     */
+    public CompressionConfig getCompressionConfig() {
+        return compressionConfig;
+    }
+
+    /**
+     * Setter for property 'compressionConfig'.
+     * Has to be set before calling init. Clients not offering permessage-deflate stay uncompressed
+     *
+     * @param compressionConfig Value to set for property 'compressionConfig' (null to disable compression).
+     */
+    public void setCompressionConfig(CompressionConfig compressionConfig) {
+        this.compressionConfig = compressionConfig;
+    }
+
+    /**
+     * Getter for property 'sslConfig'.
+     *
+     * @return TLS settings (null for the shared default config)
+     */
+    public SslConfig getSslConfig() {
+        return sslConfig;
+    }
+
+    /**
+     * Setter for property 'sslConfig'.
+     * Has to be set before calling init, only used if the server was created with ssl enabled.
+     * Servers sharing a config share its SslContext and session cache.
+     *
+     * @param sslConfig TLS settings (null for the shared default config with a self-signed certificate)
+     */
+    public void setSslConfig(SslConfig sslConfig) {
+        this.sslConfig = sslConfig;
+    }
+
+    /**
+     * Getter for property 'maxFrameSize'.
+     *
+     * @return maximum payload length in bytes of a received frame
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Setter for property 'maxFrameSize'.
+     * Larger frames close the connection, so it has to be large enough for the batches and fragments clients send
+     *
+     * @param maxFrameSize maximum payload length in bytes of a received frame
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Getter for property 'dispatchExecutor'.
+     *
+     * @return executor the receivers are called on (null for the event loop)
+     */
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Setter for property 'dispatchExecutor'.
+     * The message receiver and breakup handler are called on this executor instead of the event loop,
+     * so they may block without holding up other connections. The calls for one connection still happen
+     * one after another and in order (see MessageHandler.setDispatchExecutor).
+     * Only affects connections opened afterwards.
+     *
+     * @param dispatchExecutor executor to call the receivers on, e.g. Dispatchers.virtualThreadPerConnection()
+     *                         (null to call them on the event loop)
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * Setter for property 'metricsEnabled'.
+     * Has to be set before calling init. Without metrics, handlers count into MessageMetrics.DISABLED
+     *
+     * @param metricsEnabled Value to set for property 'metricsEnabled'.
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * Setter for property 'metricsRegistry'.
+     * Has to be set before calling init. The metrics are registered by init as "SafeMessageServer-[port]"
+     * and unregistered by close
+     *
+     * @param metricsRegistry registry to expose the metrics with (JMX by default, null to not expose them)
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * Get the metrics of all connections of the server
+     *
+     * @return server-wide metrics
+     */
+    public ServerMetricsMXBean getMetrics() {
+        return serverMetrics;
+    }
+
+    /**
+     * Get the metrics of a single connection or session
+     *
+     * @param channelIdentifier name identifying the channel
+     * @return metrics of the connection (null if there is none)
+     */
+    public MessageMetrics getMetrics(String channelIdentifier) {
+        MessageHandler<?> handler = handlers.get(channelIdentifier);
+        return handler == null ? null : handler.getMetrics();
+    }
+
+    /**
+     * Get the name the metrics are registered with
+     *
+     * @return name of the metrics
+     */
+    private String getMetricsName() {
+        return "SafeMessageServer-" + port;
     }
 
     /**
@@ -74,21 +332,29 @@ public class SafeMessageServer {
          * Init SSL Context if secure scheme was chosen
          */
         if (ssl) {
-            sslCtx = SSLInitializer.getContext();
+            sslCtx = (sslConfig != null ? sslConfig : SslConfig.defaults()).serverContext();
         } else {
             sslCtx = null;
         }
 
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        bossGroup = transportConfig.newEventLoopGroup(transportConfig.getAcceptorThreads());
+        workerGroup = transportConfig.getEventLoopGroup() != null ?
+                transportConfig.getEventLoopGroup() : transportConfig.newEventLoopGroup(transportConfig.getWorkerThreads());
 
         ServerBootstrap b = new ServerBootstrap();
         b.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .handler(new LoggingHandler(LogLevel.INFO))
-                .childHandler(new SafeMessageServerInitializer(sslCtx, websocketPath, this));
+                .channel(transportConfig.serverChannelClass())
+                .childHandler(new SafeMessageServerInitializer(sslCtx, websocketPath, compressionConfig, this));
+        if (transportConfig.getAcceptorLogLevel() != null)
+            b.handler(new LoggingHandler(transportConfig.getAcceptorLogLevel()));
+        transportConfig.apply(b);
 
-        ch = b.bind(port).sync().channel();
+        //With SO_REUSEPORT every acceptor thread gets its own socket bound to the same port
+        for (int i = 0; i < transportConfig.getAcceptorCount(); i++) {
+            serverChannels.add(b.bind(port).sync().channel());
+        }
+        if (metricsEnabled && metricsRegistry != null)
+            metricsRegistry.register(getMetricsName(), serverMetrics);
     }
 
     /**
@@ -96,10 +362,18 @@ public class SafeMessageServer {
      *
      * @param channelIdentifier channel to send the message to
      * @param msg message to send
+     * @return future completed with the sequence number once the receiver acknowledged the message
      * @throws InterruptedException
      */
-    public void sendMessage(String channelIdentifier, String msg) throws InterruptedException {
-        sendMessage(getChannel(channelIdentifier), msg);
+    public CompletableFuture<Long> sendMessage(String channelIdentifier, String msg) throws InterruptedException {
+        //Looked up by name, so sessions waiting to be resumed get the message queued
+        MessageHandler<?> handler = handlers.get(channelIdentifier);
+        if(handler == null) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+        return handler.sendMessage(msg);
     }
 
     /**
@@ -107,10 +381,142 @@ public class SafeMessageServer {
      *
      * @param channel channel to send the message to
      * @param msg message to send
+     * @return future completed with the sequence number once the receiver acknowledged the message
      * @throws InterruptedException
      */
-    public void sendMessage(Channel channel, String msg) throws InterruptedException {
-        getHandler(channel).sendMessage(msg);
+    public CompletableFuture<Long> sendMessage(Channel channel, String msg) throws InterruptedException {
+        return getHandler(channel).sendMessage(msg);
+    }
+
+    /**
+     * Send a message to all connected channels
+     * The payload is serialized once and shared by all connections
+     *
+     * @param msg message to send
+     */
+    public void broadcast(String msg)
+    {
+        fanOut(allChannels, new SharedPayload(msg));
+    }
+
+    /**
+     * Send a binary message to all connected channels
+     * The payload is serialized once and shared by all connections
+     *
+     * @param msg binary message to send
+     */
+    public void broadcast(byte[] msg)
+    {
+        fanOut(allChannels, new SharedPayload(msg));
+    }
+
+    /**
+     * Send a message to all channels of the given group
+     * The payload is serialized once and shared by all connections
+     *
+     * @param groupName name of the group
+     * @param msg message to send
+     */
+    public void sendToGroup(String groupName, String msg)
+    {
+        ChannelGroup group = groups.get(groupName);
+        if(group != null)
+            fanOut(group, new SharedPayload(msg));
+    }
+
+    /**
+     * Send a binary message to all channels of the given group
+     * The payload is serialized once and shared by all connections
+     *
+     * @param groupName name of the group
+     * @param msg binary message to send
+     */
+    public void sendToGroup(String groupName, byte[] msg)
+    {
+        ChannelGroup group = groups.get(groupName);
+        if(group != null)
+            fanOut(group, new SharedPayload(msg));
+    }
+
+    /**
+     * Add the channel identified by the given name to a group (the group is created if necessary)
+     * Closed channels leave their groups automatically
+     *
+     * @param groupName name of the group
+     * @param channelIdentifier name of the channel
+     */
+    public void joinGroup(String groupName, String channelIdentifier)
+    {
+        Channel channel = getChannel(channelIdentifier);
+        if(channel == null)
+            return;
+
+        ChannelGroup group = groups.get(groupName);
+        if(group == null) {
+            ChannelGroup newGroup = new DefaultChannelGroup(groupName, GlobalEventExecutor.INSTANCE);
+            group = groups.putIfAbsent(groupName, newGroup);
+            if(group == null)
+                group = newGroup;
+        }
+        group.add(channel);
+    }
+
+    /**
+     * Remove the channel identified by the given name from a group
+     *
+     * @param groupName name of the group
+     * @param channelIdentifier name of the channel
+     */
+    public void leaveGroup(String groupName, String channelIdentifier)
+    {
+        ChannelGroup group = groups.get(groupName);
+        Channel channel = getChannel(channelIdentifier);
+        if(group != null && channel != null)
+            group.remove(channel);
+    }
+
+    /**
+     * Hand a shared payload to the handlers of all channels in the group
+     * The handlers are grouped by their event loop, so each loop gets one task sending to all of its channels
+     *
+     * @param group channels to send to
+     * @param payload payload to send (released when done)
+     */
+    private void fanOut(ChannelGroup group, final SharedPayload payload)
+    {
+        try {
+            Map<EventLoop, List<MessageHandler<?>>> handlersByLoop = new IdentityHashMap<>();
+            for (Channel channel : group) {
+                MessageHandler<?> handler = getHandler(channel);
+                if (handler == null)
+                    continue;
+                List<MessageHandler<?>> loopHandlers = handlersByLoop.get(channel.eventLoop());
+                if (loopHandlers == null) {
+                    loopHandlers = new ArrayList<>();
+                    handlersByLoop.put(channel.eventLoop(), loopHandlers);
+                }
+                loopHandlers.add(handler);
+            }
+
+            for (Map.Entry<EventLoop, List<MessageHandler<?>>> entry : handlersByLoop.entrySet()) {
+                final List<MessageHandler<?>> loopHandlers = entry.getValue();
+                payload.retain();
+                entry.getKey().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            //Broadcasts are not confirmed per receiver, so no future is created
+                            for (MessageHandler<?> handler : loopHandlers)
+                                handler.sendMessage(payload, null);
+                        } finally {
+                            payload.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            payload.release();
+        }
     }
 
     /**
@@ -138,8 +544,9 @@ public class SafeMessageServer {
      */
     public void requestClose()
     {
-        //Close the channel for incoming connections
-        ch.close();
+        //Close the channels for incoming connections
+        for (Channel serverChannel : serverChannels)
+            serverChannel.close();
     }
 
     /**
@@ -148,9 +555,13 @@ public class SafeMessageServer {
      * @throws InterruptedException
      */
     public void close() throws InterruptedException {
-        ch.closeFuture().sync();
+        for (Channel serverChannel : serverChannels)
+            serverChannel.closeFuture().sync();
         bossGroup.shutdownGracefully();
-        workerGroup.shutdownGracefully();
+        if (workerGroup != transportConfig.getEventLoopGroup())
+            workerGroup.shutdownGracefully();
+        if (metricsEnabled && metricsRegistry != null)
+            metricsRegistry.unregister(getMetricsName());
     }
 
     /**
@@ -159,10 +570,65 @@ public class SafeMessageServer {
      * @param channel channel identifying the handler
      * @param handler the handler
      */
-    public void addHandler(Channel channel, MessageHandler<String> handler)
+    public void addHandler(Channel channel, MessageHandler<?> handler)
     {
-        handlers.put(channel, handler);
-        channels.put(channel.toString(), channel);
+        channel.attr(HANDLER).set(handler);
+        handlers.put(getChannelIdentifier(channel), handler);
+        allChannels.add(channel);
+    }
+
+    /**
+     * Add the handler of a session to the list of handlers, the session id becomes the identifier of the channel
+     *
+     * @param channel channel of the session
+     * @param sessionId id of the session
+     * @param handler the handler
+     */
+    public void addHandler(Channel channel, String sessionId, MessageHandler<?> handler)
+    {
+        channel.attr(SESSION).set(sessionId);
+        addHandler(channel, handler);
+    }
+
+    /**
+     * Create an id for a new session
+     *
+     * @return random session id
+     */
+    String newSessionId()
+    {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Take the handler of a session waiting to be resumed
+     *
+     * @param sessionId id of the session
+     * @return handler of the session (null if there is no such session or its grace period expired)
+     */
+    MessageHandler<?> resumeSession(String sessionId)
+    {
+        DetachedSession session = detachedSessions.remove(sessionId);
+        if(session == null)
+            return null;
+        ScheduledFuture<?> expiry = session.expiry;
+        if(expiry != null)
+            expiry.cancel(false);
+        return session.handler;
+    }
+
+    /**
+     * Get the channel a session is still attached to
+     *
+     * @param sessionId id of the session
+     * @return channel of the session (null if there is none or the session waits to be resumed)
+     */
+    Channel getAttachedChannel(String sessionId)
+    {
+        MessageHandler<?> handler = handlers.get(sessionId);
+        if(handler == null || detachedSessions.containsKey(sessionId))
+            return null;
+        return handler.getChannel();
     }
 
     /**
@@ -170,9 +636,9 @@ public class SafeMessageServer {
      *
      * @param channel channel identifying the handler
      */
-    public MessageHandler<String> getHandler(Channel channel)
+    public MessageHandler<?> getHandler(Channel channel)
     {
-        return handlers.get(channel);
+        return channel.attr(HANDLER).get();
     }
 
     /**
@@ -182,8 +648,48 @@ public class SafeMessageServer {
      */
     public void removeHandler(Channel channel)
     {
-        handlers.remove(channel);
-        channels.remove(channel.toString());
+        MessageHandler<?> handler = channel.attr(HANDLER).getAndSet(null);
+        if(handler != null) {
+            handlers.remove(getChannelIdentifier(channel), handler);
+            allChannels.remove(channel);
+            for (ChannelGroup group : groups.values())
+                group.remove(channel);
+            handler.clearBuffers();
+        }
+    }
+
+    /**
+     * Get all registered handlers
+     * The collection is backed by the registry and can be iterated without locking while connections come and go
+     *
+     * @return unmodifiable view of the registered handlers
+     */
+    public Collection<MessageHandler<?>> getHandlers()
+    {
+        return Collections.unmodifiableCollection(handlers.values());
+    }
+
+    /**
+     * Get the number of registered connections
+     *
+     * @return number of registered handlers
+     */
+    public int getConnectionCount()
+    {
+        return handlers.size();
+    }
+
+    /**
+     * Get the name identifying the given channel
+     * Connections belonging to a session are identified by the session id, so the name survives resuming
+     *
+     * @param channel channel to identify
+     * @return unique identifier of the channel
+     */
+    public String getChannelIdentifier(Channel channel)
+    {
+        String sessionId = channel.attr(SESSION).get();
+        return sessionId != null ? sessionId : channel.id().asLongText();
     }
 
     /**
@@ -194,7 +700,8 @@ public class SafeMessageServer {
      */
     public Channel getChannel(String channelIdentifier)
     {
-        return channels.get(channelIdentifier);
+        MessageHandler<?> handler = handlers.get(channelIdentifier);
+        return handler == null ? null : handler.getChannel();
     }
 
     /**
@@ -204,11 +711,22 @@ public class SafeMessageServer {
      * Attention: Which channel is seen as "the first one" does not
      * depend on the order in which they were added to the list
      *
-     * @return identifier of the first registered channel
+     * @return identifier of the first registered channel (null if there is none)
      */
     public String getFirstChannelIdentifier()
     {
-        return channels.values().toArray()[0].toString();
+        Iterator<String> iterator = handlers.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Get the number of sessions waiting to be resumed
+     *
+     * @return number of detached sessions
+     */
+    int getDetachedSessionCount()
+    {
+        return detachedSessions.size();
     }
 
     /**
@@ -216,19 +734,153 @@ public class SafeMessageServer {
      *
      * @return a suiting message handler
      */
-    public MessageHandler<String> createMessageHandler()
+    public MessageHandler<?> createMessageHandler()
+    {
+        MessageHandler<?> handler = newMessageHandler();
+        handler.setMetrics(metricsEnabled ? new MessageMetrics(metrics) : MessageMetrics.DISABLED);
+        handler.setDispatchExecutor(dispatchExecutor);
+        //Receivers only get the payload, so the message objects can be reused
+        handler.setRecycleReceived(true);
+        return handler;
+    }
+
+    /**
+     * Create a message handler of the configured encoding passing received messages on to the receiver
+     *
+     * @return a suiting message handler
+     */
+    private MessageHandler<?> newMessageHandler()
     {
+        if(binary) {
+            return new BinaryMessageHandler() {
+                @Override
+                public void handleReceived(SafeMessage message, Channel channel) {
+                    dispatchReceived(message, channel);
+                }
+
+                @Override
+                public void handleReceivedFragment(SafeMessage fragment, boolean last, Channel channel) {
+                    if(messageReceiver instanceof StreamingMessageReceiver)
+                        dispatchFragment(fragment, last, channel);
+                    else
+                        super.handleReceivedFragment(fragment, last, channel);
+                }
+
+                @Override
+                public void handleBreakup(Channel channel) {
+                    dispatchBreakup(channel);
+                }
+            };
+        }
+
         return new JSONMessageHandler() {
             @Override
             public void handleReceived(SafeMessage message, Channel channel) {
-                messageReceiver.receive(message.getData(), channel.toString());
+                dispatchReceived(message, channel);
+            }
+
+            @Override
+            public void handleReceivedFragment(SafeMessage fragment, boolean last, Channel channel) {
+                if(messageReceiver instanceof StreamingMessageReceiver)
+                    dispatchFragment(fragment, last, channel);
+                else
+                    super.handleReceivedFragment(fragment, last, channel);
             }
 
             @Override
             public void handleBreakup(Channel channel) {
-                removeHandler(channel);
-                breakupHandler.handleBreakup(channel.toString());
+                dispatchBreakup(channel);
             }
         };
     }
+
+    /**
+     * Pass a received message on to the message receiver
+     * Binary payloads are handed to a BinaryMessageReceiver if possible and decoded as UTF-8 text otherwise
+     *
+     * @param message received message
+     * @param channel channel the message arrived on
+     */
+    private void dispatchReceived(SafeMessage message, Channel channel)
+    {
+        String channelIdentifier = getChannelIdentifier(channel);
+        if(!message.isBinary())
+            messageReceiver.receive(message.getData(), channelIdentifier);
+        else if(messageReceiver instanceof BinaryMessageReceiver)
+            ((BinaryMessageReceiver) messageReceiver).receive(message.getBinaryData(), channelIdentifier);
+        else
+            messageReceiver.receive(new String(message.getBinaryData(), CharsetUtil.UTF_8), channelIdentifier);
+    }
+
+    /**
+     * Pass a received fragment of a large payload on to the streaming message receiver
+     *
+     * @param fragment received fragment
+     * @param last true for the last fragment of the payload
+     * @param channel channel the fragment arrived on
+     */
+    private void dispatchFragment(SafeMessage fragment, boolean last, Channel channel)
+    {
+        String channelIdentifier = getChannelIdentifier(channel);
+        StreamingMessageReceiver receiver = (StreamingMessageReceiver) messageReceiver;
+        if(fragment.isBinary())
+            receiver.receiveFragment(fragment.getBinaryData(), last, channelIdentifier);
+        else
+            receiver.receiveFragment(fragment.getData(), last, channelIdentifier);
+    }
+
+    /**
+     * Clean up after a connection breakup and inform the breakup handler
+     * Sessions are kept for the grace period first, so the client can resume them
+     *
+     * @param channel channel that was closed
+     */
+    private void dispatchBreakup(Channel channel)
+    {
+        final MessageHandler<?> handler = channel.attr(HANDLER).getAndSet(null);
+        if(handler == null)
+            return;
+        handler.getMetrics().breakup();
+
+        final String channelIdentifier = getChannelIdentifier(channel);
+        allChannels.remove(channel);
+        for (ChannelGroup group : groups.values())
+            group.remove(channel);
+        channel.close();
+
+        if(sessionGracePeriod <= 0 || !channel.hasAttr(SESSION)) {
+            expireSession(channelIdentifier, handler);
+            return;
+        }
+
+        handler.detach();
+        final DetachedSession session = new DetachedSession(handler);
+        detachedSessions.put(channelIdentifier, session);
+        session.expiry = channel.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(detachedSessions.remove(channelIdentifier, session))
+                    expireSession(channelIdentifier, handler);
+            }
+        }, sessionGracePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drop the handler of a connection or session for good and inform the breakup handler
+     *
+     * @param channelIdentifier name of the channel
+     * @param handler handler of the channel
+     */
+    private void expireSession(final String channelIdentifier, MessageHandler<?> handler)
+    {
+        handlers.remove(channelIdentifier, handler);
+        handler.clearBuffers();
+        //Messages received before the breakup are passed on first
+        handler.executeInOrder(new Runnable() {
+            @Override
+            public void run() {
+                breakupHandler.handleBreakup(channelIdentifier);
+            }
+        });
+    }
 }
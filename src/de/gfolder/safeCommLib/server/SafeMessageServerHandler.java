@@ -1,10 +1,13 @@
 package de.gfolder.safeCommLib.server;
 
+import de.gfolder.safeCommLib.SessionHeaders;
 import de.gfolder.safeCommLib.messageHandler.MessageHandler;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.websocketx.*;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.HOST;
@@ -49,27 +52,93 @@ public class SafeMessageServerHandler  extends SimpleChannelInboundHandler<Objec
         ctx.flush();
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        //Closed without closing handshake
+        MessageHandler<?> handler = safeMessageServer.getHandler(ctx.channel());
+        if (handler != null)
+            handler.handleBreakup(ctx.channel());
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        MessageHandler<?> handler = safeMessageServer.getHandler(ctx.channel());
+        if (handler != null)
+            handler.channelWritabilityChanged();
+        super.channelWritabilityChanged(ctx);
+    }
+
     /**
      * Handle HTTP Request
      *
      * @param ctx Context
      * @param req Request
      */
-    private void handleHttpRequest(ChannelHandlerContext ctx, FullHttpRequest req) {
+    private void handleHttpRequest(final ChannelHandlerContext ctx, final FullHttpRequest req) {
         // Handshake
         WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(
-                getWebSocketLocation(req), null, false);
+                getWebSocketLocation(req), null, safeMessageServer.getCompressionConfig() != null,
+                safeMessageServer.getMaxFrameSize());
         handshaker = wsFactory.newHandshaker(req);
         if (handshaker == null) {
             WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
-        } else {
-            ChannelFuture shakedChannel = handshaker.handshake(ctx.channel(), req);
+            return;
+        }
 
-            MessageHandler<String> handler = safeMessageServer.createMessageHandler();
-            handler.setChannel(shakedChannel.channel());
-            handler.activateConnectionSupervisor();
-            safeMessageServer.addHandler(shakedChannel.channel(), handler);
+        final String sessionId = req.headers().get(SessionHeaders.SESSION);
+        final Channel previous = sessionId != null ? safeMessageServer.getAttachedChannel(sessionId) : null;
+        if (previous != null && previous != ctx.channel()) {
+            //The client reconnected before the breakup of its old connection was noticed, so close that one first
+            req.retain();
+            previous.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    MessageHandler<?> handler = safeMessageServer.getHandler(previous);
+                    if (handler != null)
+                        handler.handleBreakup(previous);
+                    ctx.channel().eventLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                handshake(ctx, req, sessionId);
+                            } finally {
+                                req.release();
+                            }
+                        }
+                    });
+                }
+            });
+            return;
         }
+        handshake(ctx, req, sessionId);
+    }
+
+    /**
+     * Complete the handshake and attach the connection to a resumed or new session
+     *
+     * @param ctx Context
+     * @param req Request
+     * @param requestedSessionId id of the session the client wants to resume (may be null)
+     */
+    private void handshake(ChannelHandlerContext ctx, FullHttpRequest req, String requestedSessionId) {
+        Channel channel = ctx.channel();
+        MessageHandler<?> handler = requestedSessionId != null ? safeMessageServer.resumeSession(requestedSessionId) : null;
+        boolean resumed = handler != null;
+        String sessionId = resumed ? requestedSessionId : safeMessageServer.newSessionId();
+        if (!resumed)
+            handler = safeMessageServer.createMessageHandler();
+
+        HttpHeaders responseHeaders = new DefaultHttpHeaders()
+                .set(SessionHeaders.SESSION, sessionId)
+                .set(SessionHeaders.RESUMED, Boolean.toString(resumed));
+        handshaker.handshake(channel, req, responseHeaders, channel.newPromise());
+
+        safeMessageServer.addHandler(channel, sessionId, handler);
+        handler.setChannel(channel);
+        if (resumed)
+            handler.resume();
+        handler.activateConnectionSupervisor();
     }
 
     /**
@@ -81,7 +150,7 @@ public class SafeMessageServerHandler  extends SimpleChannelInboundHandler<Objec
     private void handleWebSocketFrame(ChannelHandlerContext ctx, WebSocketFrame frame)
     {
         //Get matching handler for handshaked channel
-        MessageHandler<String> handler = safeMessageServer.getHandler(ctx.channel());
+        MessageHandler<?> handler = safeMessageServer.getHandler(ctx.channel());
 
         if (frame instanceof CloseWebSocketFrame) {
             handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
@@ -91,10 +160,10 @@ public class SafeMessageServerHandler  extends SimpleChannelInboundHandler<Objec
             ctx.channel().writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
         }
         else if (frame instanceof PongWebSocketFrame) {
-            handler.receivedPong();
+            handler.receivedPong(frame.content());
         }
-        else if (frame instanceof TextWebSocketFrame) {
-            handler.receive(((TextWebSocketFrame) frame).text());
+        else if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
+            handler.receiveFrame(frame);
         }
         else
         {
@@ -1,10 +1,12 @@
 package de.gfolder.safeCommLib.server;
 
+import de.gfolder.safeCommLib.CompressionConfig;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
 import io.netty.handler.ssl.SslContext;
 
 /**
@@ -18,11 +20,14 @@ public class SafeMessageServerInitializer extends ChannelInitializer<SocketChann
 
     private final SslContext sslCtx;
     private final String websocketPath;
+    private final CompressionConfig compressionConfig;
     private final SafeMessageServer safeMessageServer;
 
-    public SafeMessageServerInitializer(SslContext sslCtx, String websocketPath, SafeMessageServer safeMessageServer) {
+    public SafeMessageServerInitializer(SslContext sslCtx, String websocketPath, CompressionConfig compressionConfig,
+                                        SafeMessageServer safeMessageServer) {
         this.sslCtx = sslCtx;
         this.websocketPath = websocketPath;
+        this.compressionConfig = compressionConfig;
         this.safeMessageServer = safeMessageServer;
     }
 
@@ -34,6 +39,9 @@ public class SafeMessageServerInitializer extends ChannelInitializer<SocketChann
         }
         pipeline.addLast(new HttpServerCodec());
         pipeline.addLast(new HttpObjectAggregator(65536));
+        if (compressionConfig != null) {
+            pipeline.addLast(new WebSocketServerExtensionHandler(compressionConfig.newServerHandshaker()));
+        }
         pipeline.addLast(new SafeMessageServerHandler(websocketPath, !(sslCtx==null), safeMessageServer));
     }
 }
@@ -0,0 +1,145 @@
+package de.gfolder.safeCommLib.server;
+
+import de.gfolder.safeCommLib.messageHandler.MessageHandler;
+import de.gfolder.safeCommLib.metrics.MessageMetrics;
+import de.gfolder.safeCommLib.metrics.ServerMetricsMXBean;
+
+/**
+ * safeCommLib
+ *
+ * Metrics of a server: the counters all its handlers count into plus gauges summed over the handlers when read.
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+class SafeMessageServerMetrics implements ServerMetricsMXBean {
+
+    private final MessageMetrics counters;
+    private final SafeMessageServer server;
+
+    /**
+     * Constructor
+     *
+     * @param counters counters all handlers of the server count into
+     * @param server server to read the gauges from
+     */
+    SafeMessageServerMetrics(MessageMetrics counters, SafeMessageServer server) {
+        this.counters = counters;
+        this.server = server;
+    }
+
+    @Override
+    public int getConnections() {
+        return server.getConnectionCount();
+    }
+
+    @Override
+    public int getDetachedSessions() {
+        return server.getDetachedSessionCount();
+    }
+
+    @Override
+    public long getUnacknowledgedMessages() {
+        long sum = 0;
+        for (MessageHandler<?> handler : server.getHandlers())
+            sum += handler.getUnacknowledgedMessages();
+        return sum;
+    }
+
+    @Override
+    public long getPendingMessages() {
+        long sum = 0;
+        for (MessageHandler<?> handler : server.getHandlers())
+            sum += handler.getPendingMessages();
+        return sum;
+    }
+
+    @Override
+    public long getReceivingWindowMessages() {
+        long sum = 0;
+        for (MessageHandler<?> handler : server.getHandlers())
+            sum += handler.getReceivingWindowMessages();
+        return sum;
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return counters.getMessagesSent();
+    }
+
+    @Override
+    public long getMessagesRetransmitted() {
+        return counters.getMessagesRetransmitted();
+    }
+
+    @Override
+    public long getMessagesAcknowledged() {
+        return counters.getMessagesAcknowledged();
+    }
+
+    @Override
+    public long getMessagesRejected() {
+        return counters.getMessagesRejected();
+    }
+
+    @Override
+    public long getMessagesExpired() {
+        return counters.getMessagesExpired();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return counters.getMessagesReceived();
+    }
+
+    @Override
+    public long getDuplicatesReceived() {
+        return counters.getDuplicatesReceived();
+    }
+
+    @Override
+    public long getCorruptedReceived() {
+        return counters.getCorruptedReceived();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return counters.getMessagesDropped();
+    }
+
+    @Override
+    public long getGapsDetected() {
+        return counters.getGapsDetected();
+    }
+
+    @Override
+    public long getFeedbackSent() {
+        return counters.getFeedbackSent();
+    }
+
+    @Override
+    public long getFeedbackReceived() {
+        return counters.getFeedbackReceived();
+    }
+
+    @Override
+    public long getAcknowledgementsPiggybacked() {
+        return counters.getAcknowledgementsPiggybacked();
+    }
+
+    @Override
+    public long getBreakups() {
+        return counters.getBreakups();
+    }
+
+    @Override
+    public long getPongsReceived() {
+        return counters.getPongsReceived();
+    }
+
+    @Override
+    public long getAveragePongLatency() {
+        return counters.getAveragePongLatency();
+    }
+}
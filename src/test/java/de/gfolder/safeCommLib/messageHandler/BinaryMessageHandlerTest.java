@@ -0,0 +1,298 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import de.gfolder.safeCommLib.message.IntegrityCheck;
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.message.SafeMessageFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * safeCommLib
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class BinaryMessageHandlerTest {
+
+    private static BinaryMessageHandler handler(IntegrityCheck integrityCheck) {
+        BinaryMessageHandler handler = new BinaryMessageHandler();
+        handler.setIntegrityCheck(integrityCheck);
+        return handler;
+    }
+
+    /**
+     * Encode and decode a message, the encoded buffer is released afterwards
+     */
+    private static SafeMessage roundTrip(BinaryMessageHandler handler, SafeMessage message) {
+        ByteBuf encoded = handler.encodeTransportMessage(message);
+        try {
+            SafeMessage decoded = handler.decodeTransportMessage(encoded);
+            assertFalse(encoded.isReadable());
+            return decoded;
+        } finally {
+            encoded.release();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void roundTripsText(IntegrityCheck integrityCheck) {
+        SafeMessage message = SafeMessageFactory.createSafeMessage(42, "héllo 😀");
+        SafeMessage decoded = roundTrip(handler(integrityCheck), message);
+
+        assertEquals(SafeMessage.Type.MESSAGE, decoded.getType());
+        assertEquals(42, decoded.getSequenceNumber());
+        assertEquals(message.getTimeStamp(), decoded.getTimeStamp());
+        assertEquals(message.getData(), decoded.getData());
+        assertFalse(decoded.isBinary());
+        assertFalse(decoded.hasMoreFragments());
+        assertEquals(integrityCheck, decoded.getIntegrityCheck());
+        assertTrue(decoded.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void roundTripsBinaryFragment(IntegrityCheck integrityCheck) {
+        SafeMessage message = SafeMessageFactory.createSafeMessage(7, new byte[]{0, 1, -1, 127, -128});
+        message.setMoreFragments(true);
+        SafeMessage decoded = roundTrip(handler(integrityCheck), message);
+
+        assertTrue(decoded.isBinary());
+        assertArrayEquals(message.getBinaryData(), decoded.getBinaryData());
+        assertTrue(decoded.hasMoreFragments());
+        assertTrue(decoded.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = IntegrityCheck.class, names = "NONE", mode = EnumSource.Mode.EXCLUDE)
+    public void detectsCorruptedPayload(IntegrityCheck integrityCheck) {
+        BinaryMessageHandler handler = handler(integrityCheck);
+        ByteBuf encoded = handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(1, "payload"));
+        try {
+            int index = BinaryMessageHandler.HEADER_LENGTH;
+            encoded.setByte(index, encoded.getByte(index) ^ 0x01);
+            assertFalse(handler.decodeTransportMessage(encoded).matchingHash());
+        } finally {
+            encoded.release();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void roundTripsFeedback(IntegrityCheck integrityCheck) {
+        BinaryMessageHandler handler = handler(integrityCheck);
+        SafeMessage failed = SafeMessageFactory.createFeedbackMessageFailed(10, new long[]{12, 14, 20, 20});
+        ByteBuf encoded = handler.encodeTransportMessage(failed);
+        //Feedback goes out as compact control frame unless the legacy hash is used
+        if (integrityCheck != IntegrityCheck.HASH_CODE) {
+            int checksumLength = integrityCheck == IntegrityCheck.NONE ? 0 : 4;
+            assertEquals(BinaryMessageHandler.CONTROL_FRAME_LENGTH - 4 + checksumLength + 2 + 4 * 8, encoded.readableBytes());
+        }
+        SafeMessage decoded = handler.decodeTransportMessage(encoded);
+        encoded.release();
+
+        assertEquals(SafeMessage.Type.FEEDBACK, decoded.getType());
+        assertEquals(SafeMessage.Status.FAILED, decoded.getStatus());
+        assertEquals(10, decoded.getSequenceNumber());
+        assertArrayEquals(new long[]{12, 14, 20, 20}, decoded.getSelectiveAcknowledgements());
+        assertTrue(decoded.matchingHash());
+
+        SafeMessage ok = roundTrip(handler, SafeMessageFactory.createFeedbackMessageOK(99));
+        assertEquals(SafeMessage.Status.OK, ok.getStatus());
+        assertEquals(99, ok.getSequenceNumber());
+        assertNull(ok.getSelectiveAcknowledgements());
+        assertTrue(ok.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = IntegrityCheck.class, names = "HASH_CODE", mode = EnumSource.Mode.EXCLUDE)
+    public void carriesAcknowledgement(IntegrityCheck integrityCheck) {
+        BinaryMessageHandler handler = handler(integrityCheck);
+        ByteBuf stored = handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(3, "payload"));
+        ByteBuf carrier = handler.encodeWithAcknowledgement(stored, 41);
+        int storedLength = stored.readableBytes();
+
+        SafeMessage decoded = handler.decodeTransportMessage(carrier);
+        assertFalse(carrier.isReadable());
+        assertEquals(41, decoded.getAcknowledgement());
+        assertEquals("payload", decoded.getData());
+        assertTrue(decoded.matchingHash());
+        //The stored encoding is kept for retransmissions without the acknowledgement
+        assertEquals(storedLength, stored.readableBytes());
+        assertEquals(-1, handler.decodeTransportMessage(stored.duplicate()).getAcknowledgement());
+
+        if (integrityCheck != IntegrityCheck.NONE) {
+            carrier.readerIndex(0);
+            int index = BinaryMessageHandler.HEADER_LENGTH + 7;
+            carrier.setByte(index, carrier.getByte(index) ^ 0x01);
+            SafeMessage corrupted = handler.decodeTransportMessage(carrier);
+            assertEquals(-1, corrupted.getAcknowledgement());
+            assertTrue(corrupted.matchingHash());
+        }
+        carrier.release();
+        stored.release();
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void unpacksCombinedMessages(IntegrityCheck integrityCheck) {
+        BinaryMessageHandler handler = handler(integrityCheck);
+        List<ByteBuf> encoded = Arrays.asList(
+                handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(0, "first")),
+                handler.encodeTransportMessage(SafeMessageFactory.createFeedbackMessageOK(5)),
+                handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(1, new byte[]{1, 2, 3})));
+        ByteBuf packed = handler.pack(encoded);
+        for (ByteBuf buffer : encoded)
+            buffer.release();
+
+        SafeMessage first = handler.decodeTransportMessage(packed);
+        SafeMessage feedback = handler.decodeTransportMessage(packed);
+        SafeMessage last = handler.decodeTransportMessage(packed);
+        assertFalse(packed.isReadable());
+        packed.release();
+
+        assertEquals("first", first.getData());
+        assertEquals(SafeMessage.Status.OK, feedback.getStatus());
+        assertEquals(5, feedback.getSequenceNumber());
+        assertArrayEquals(new byte[]{1, 2, 3}, last.getBinaryData());
+        assertTrue(first.matchingHash() && feedback.matchingHash() && last.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void keepsPayloadBuffer(IntegrityCheck integrityCheck) {
+        BinaryMessageHandler handler = handler(integrityCheck);
+        ByteBuf data = Unpooled.buffer(8);
+        data.writeZero(2).writeBytes(new byte[]{5, 6, 7}).readerIndex(2);
+        SafeMessage message = SafeMessage.newInstance(3, new byte[0], SafeMessage.Type.MESSAGE);
+
+        ByteBuf encoded = handler.encodeTransportMessage(message, data);
+        //The encoded message holds a slice of the payload instead of a copy
+        assertEquals(2, data.refCnt());
+        SafeMessage decoded = handler.decodeTransportMessage(encoded);
+        encoded.release();
+        assertEquals(1, data.refCnt());
+        data.release();
+
+        assertEquals(3, decoded.getSequenceNumber());
+        assertArrayEquals(new byte[]{5, 6, 7}, decoded.getBinaryData());
+        assertTrue(decoded.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void sharesPayload(IntegrityCheck integrityCheck) {
+        BinaryMessageHandler handler = handler(integrityCheck);
+        SharedPayload payload = new SharedPayload("shared");
+        SafeMessage message = payload.createMessage(8);
+        ByteBuf encoded = handler.encodeTransportMessage(message, payload);
+        SafeMessage decoded = handler.decodeTransportMessage(encoded);
+        encoded.release();
+        payload.release();
+
+        assertEquals(8, decoded.getSequenceNumber());
+        assertEquals("shared", decoded.getData());
+        assertTrue(decoded.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void rejectsTruncatedRecords(IntegrityCheck integrityCheck) {
+        BinaryMessageHandler handler = handler(integrityCheck);
+        for (SafeMessage message : Arrays.asList(SafeMessageFactory.createSafeMessage(1, "payload"),
+                SafeMessageFactory.createFeedbackMessageFailed(4, new long[]{6, 8}))) {
+            ByteBuf encoded = handler.encodeTransportMessage(message);
+            for (int length = 0; length < encoded.readableBytes(); length++) {
+                ByteBuf truncated = encoded.slice(0, length);
+                assertThrows(CorruptedFrameException.class, () -> handler.decodeTransportMessage(truncated));
+            }
+            encoded.release();
+        }
+        ByteBuf unknownType = Unpooled.wrappedBuffer(new byte[BinaryMessageHandler.HEADER_LENGTH]).setByte(0, 9);
+        assertThrows(CorruptedFrameException.class, () -> handler.decodeTransportMessage(unknownType));
+    }
+
+    @Test
+    public void answersMalformedFrameWithFailure() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        BinaryMessageHandler handler = handler(IntegrityCheck.CRC32C);
+        handler.setChannel(channel);
+
+        ByteBuf encoded = handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(0, "payload"));
+        handler.receiveFrame(new BinaryWebSocketFrame(encoded.slice(0, encoded.readableBytes() - 1)));
+        channel.runPendingTasks();
+        encoded.release();
+
+        BinaryWebSocketFrame answer = channel.readOutbound();
+        assertNotNull(answer);
+        SafeMessage feedback = handler.decodeTransportMessage(answer.content());
+        answer.release();
+        assertEquals(SafeMessage.Status.FAILED, feedback.getStatus());
+        assertEquals(0, feedback.getSequenceNumber());
+        assertEquals(1, handler.getMetrics().getCorruptedReceived());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void reportsDeliveryToListener() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        BinaryMessageHandler handler = handler(IntegrityCheck.CRC32C);
+        handler.setChannel(channel);
+        final List<Long> delivered = new ArrayList<>();
+        DeliveryListener listener = new DeliveryListener() {
+            @Override
+            public void delivered(long sequenceNumber) {
+                delivered.add(sequenceNumber);
+            }
+
+            @Override
+            public void failed(long sequenceNumber, Throwable cause) {
+                fail("Message " + sequenceNumber + " failed");
+            }
+        };
+
+        assertEquals(0, handler.sendMessage("first", listener));
+        assertEquals(1, handler.sendMessage(new byte[]{1}, null));
+        assertEquals(2, handler.sendMessage("last", listener));
+        channel.runPendingTasks();
+        channel.releaseOutbound();
+
+        ByteBuf feedback = handler.encodeTransportMessage(SafeMessageFactory.createFeedbackMessageOK(2));
+        handler.receiveFrame(new BinaryWebSocketFrame(feedback));
+        assertEquals(Arrays.asList(0L, 2L), delivered);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void closesConnectionOnTextFrame() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        BinaryMessageHandler handler = handler(IntegrityCheck.CRC32C);
+        handler.setChannel(channel);
+
+        TextWebSocketFrame frame = new TextWebSocketFrame("{}");
+        handler.receiveFrame(frame);
+        frame.release();
+        channel.runPendingTasks();
+
+        CloseWebSocketFrame close = channel.readOutbound();
+        assertEquals(WebSocketCloseStatus.PROTOCOL_ERROR.code(), close.statusCode());
+        close.release();
+        assertFalse(channel.isOpen());
+    }
+}
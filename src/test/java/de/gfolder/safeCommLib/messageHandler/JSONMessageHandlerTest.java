@@ -0,0 +1,144 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import de.gfolder.safeCommLib.message.IntegrityCheck;
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.message.SafeMessageFactory;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * safeCommLib
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class JSONMessageHandlerTest {
+
+    private static JSONMessageHandler handler(IntegrityCheck integrityCheck) {
+        JSONMessageHandler handler = new JSONMessageHandler();
+        handler.setIntegrityCheck(integrityCheck);
+        return handler;
+    }
+
+    private static SafeMessage roundTrip(JSONMessageHandler handler, SafeMessage message) {
+        return handler.decodeTransportMessage(handler.encodeTransportMessage(message));
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void roundTripsText(IntegrityCheck integrityCheck) {
+        SafeMessage message = SafeMessageFactory.createSafeMessage(42, "\"quoted\" héllo 😀\n");
+        SafeMessage decoded = roundTrip(handler(integrityCheck), message);
+
+        assertEquals(SafeMessage.Type.MESSAGE, decoded.getType());
+        assertEquals(42, decoded.getSequenceNumber());
+        assertEquals(message.getTimeStamp(), decoded.getTimeStamp());
+        assertEquals(message.getData(), decoded.getData());
+        assertFalse(decoded.hasMoreFragments());
+        assertEquals(integrityCheck, decoded.getIntegrityCheck());
+        assertTrue(decoded.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void roundTripsBinaryFragment(IntegrityCheck integrityCheck) {
+        SafeMessage message = SafeMessageFactory.createSafeMessage(7, new byte[]{0, 1, -1, 127, -128});
+        message.setMoreFragments(true);
+        SafeMessage decoded = roundTrip(handler(integrityCheck), message);
+
+        assertTrue(decoded.isBinary());
+        assertArrayEquals(message.getBinaryData(), decoded.getBinaryData());
+        assertTrue(decoded.hasMoreFragments());
+        assertTrue(decoded.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = IntegrityCheck.class, names = "NONE", mode = EnumSource.Mode.EXCLUDE)
+    public void detectsCorruptedPayload(IntegrityCheck integrityCheck) {
+        JSONMessageHandler handler = handler(integrityCheck);
+        String encoded = handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(1, "payload"));
+        assertFalse(handler.decodeTransportMessage(encoded.replace("payload", "paylaod")).matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void roundTripsFeedback(IntegrityCheck integrityCheck) {
+        JSONMessageHandler handler = handler(integrityCheck);
+        String encoded = handler.encodeTransportMessage(SafeMessageFactory.createFeedbackMessageFailed(10, new long[]{12, 14, 20, 20}));
+        //Feedback goes out as compact control object unless the legacy hash is used
+        assertEquals(integrityCheck != IntegrityCheck.HASH_CODE, encoded.startsWith("{\"status\":"));
+        SafeMessage decoded = handler.decodeTransportMessage(encoded);
+
+        assertEquals(SafeMessage.Type.FEEDBACK, decoded.getType());
+        assertEquals(SafeMessage.Status.FAILED, decoded.getStatus());
+        assertEquals(10, decoded.getSequenceNumber());
+        assertArrayEquals(new long[]{12, 14, 20, 20}, decoded.getSelectiveAcknowledgements());
+        assertTrue(decoded.matchingHash());
+
+        SafeMessage ok = roundTrip(handler, SafeMessageFactory.createFeedbackMessageOK(99));
+        assertEquals(SafeMessage.Status.OK, ok.getStatus());
+        assertEquals(99, ok.getSequenceNumber());
+        assertNull(ok.getSelectiveAcknowledgements());
+        assertTrue(ok.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = IntegrityCheck.class, names = "HASH_CODE", mode = EnumSource.Mode.EXCLUDE)
+    public void carriesAcknowledgement(IntegrityCheck integrityCheck) {
+        JSONMessageHandler handler = handler(integrityCheck);
+        String stored = handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(3, "payload"));
+        String carrier = handler.encodeWithAcknowledgement(stored, 41);
+
+        SafeMessage decoded = handler.decodeTransportMessage(carrier);
+        assertEquals(41, decoded.getAcknowledgement());
+        assertEquals("payload", decoded.getData());
+        assertTrue(decoded.matchingHash());
+        assertEquals(-1, handler.decodeTransportMessage(stored).getAcknowledgement());
+
+        if (integrityCheck != IntegrityCheck.NONE)
+            assertEquals(-1, handler.decodeTransportMessage(carrier.replace("\"ack\":41", "\"ack\":42")).getAcknowledgement());
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void packsMessagesIntoArray(IntegrityCheck integrityCheck) {
+        JSONMessageHandler handler = handler(integrityCheck);
+        String packed = handler.pack(Arrays.asList(
+                handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(0, "first")),
+                handler.encodeTransportMessage(SafeMessageFactory.createFeedbackMessageOK(5)),
+                handler.encodeTransportMessage(SafeMessageFactory.createSafeMessage(1, new byte[]{1, 2, 3}))));
+
+        JSONArray messages = (JSONArray) JSONValue.parse(packed);
+        assertEquals(3, messages.size());
+        SafeMessage first = handler.decodeTransportMessage(((JSONObject) messages.get(0)).toJSONString());
+        SafeMessage feedback = handler.decodeTransportMessage(((JSONObject) messages.get(1)).toJSONString());
+        SafeMessage last = handler.decodeTransportMessage(((JSONObject) messages.get(2)).toJSONString());
+
+        assertEquals("first", first.getData());
+        assertEquals(SafeMessage.Status.OK, feedback.getStatus());
+        assertEquals(5, feedback.getSequenceNumber());
+        assertArrayEquals(new byte[]{1, 2, 3}, last.getBinaryData());
+        assertTrue(first.matchingHash() && feedback.matchingHash() && last.matchingHash());
+    }
+
+    @ParameterizedTest
+    @EnumSource(IntegrityCheck.class)
+    public void sharesPayload(IntegrityCheck integrityCheck) {
+        JSONMessageHandler handler = handler(integrityCheck);
+        SharedPayload payload = new SharedPayload("shared \"text\"");
+        SafeMessage decoded = handler.decodeTransportMessage(handler.encodeTransportMessage(payload.createMessage(8), payload));
+        payload.release();
+
+        assertEquals(8, decoded.getSequenceNumber());
+        assertEquals("shared \"text\"", decoded.getData());
+        assertTrue(decoded.matchingHash());
+    }
+}
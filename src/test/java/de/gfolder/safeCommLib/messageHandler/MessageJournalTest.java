@@ -0,0 +1,170 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import de.gfolder.safeCommLib.message.SafeMessage;
+import de.gfolder.safeCommLib.message.SafeMessageFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * safeCommLib
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class MessageJournalTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @TempDir
+    File directory;
+
+    private MessageJournal open() throws IOException {
+        return new MessageJournal(directory, SEGMENT_SIZE, 16, 0);
+    }
+
+    private static void append(MessageJournal journal, long first, int count) throws IOException {
+        for (int i = 0; i < count; i++)
+            journal.append(SafeMessageFactory.createSafeMessage(first + i, "message " + (first + i)));
+    }
+
+    private File[] segments() {
+        return directory.listFiles((dir, name) -> name.endsWith(".journal"));
+    }
+
+    @Test
+    public void recoversUnacknowledgedMessages() throws IOException {
+        MessageJournal journal = open();
+        assertTrue(journal.recover(0).isEmpty());
+        append(journal, 0, 2);
+        SafeMessage binary = SafeMessageFactory.createSafeMessage(2, new byte[]{1, 2, 3});
+        binary.setMoreFragments(true);
+        journal.append(binary);
+        journal.acknowledge(0);
+        journal.close();
+
+        journal = open();
+        List<SafeMessage> recovered = journal.recover(100);
+        journal.close();
+
+        assertEquals(2, recovered.size());
+        assertEquals(100, recovered.get(0).getSequenceNumber());
+        assertEquals("message 1", recovered.get(0).getData());
+        assertFalse(recovered.get(0).hasMoreFragments());
+        assertEquals(101, recovered.get(1).getSequenceNumber());
+        assertArrayEquals(new byte[]{1, 2, 3}, recovered.get(1).getBinaryData());
+        assertTrue(recovered.get(1).hasMoreFragments());
+    }
+
+    @Test
+    public void keepsRecoveredMessagesUntilAcknowledged() throws IOException {
+        MessageJournal journal = open();
+        journal.recover(0);
+        append(journal, 0, 3);
+        journal.close();
+
+        //Recovering journals the messages again under their new numbers, so a second crash loses nothing
+        journal = open();
+        assertEquals(3, journal.recover(10).size());
+        journal.close();
+
+        journal = open();
+        List<SafeMessage> recovered = journal.recover(20);
+        journal.acknowledge(20);
+        journal.close();
+        assertEquals(3, recovered.size());
+        assertEquals(20, recovered.get(0).getSequenceNumber());
+        assertEquals("message 0", recovered.get(0).getData());
+
+        journal = open();
+        recovered = journal.recover(30);
+        journal.close();
+        assertEquals(2, recovered.size());
+        assertEquals("message 1", recovered.get(0).getData());
+    }
+
+    @Test
+    public void deletesAcknowledgedSegments() throws IOException {
+        MessageJournal journal = open();
+        journal.recover(0);
+        append(journal, 0, 1000);
+        assertTrue(segments().length > 2);
+
+        journal.acknowledge(989);
+        //Segments are deleted by the sync thread, closing waits for it
+        journal.close();
+        assertEquals(1, segments().length);
+
+        journal = open();
+        List<SafeMessage> recovered = journal.recover(0);
+        journal.close();
+        assertEquals(10, recovered.size());
+        for (int i = 0; i < recovered.size(); i++) {
+            assertEquals(i, recovered.get(i).getSequenceNumber());
+            assertEquals("message " + (990 + i), recovered.get(i).getData());
+        }
+    }
+
+    @Test
+    public void stopsAtTornRecord() throws IOException {
+        MessageJournal journal = open();
+        journal.recover(0);
+        for (int i = 0; i < 3; i++)
+            journal.append(SafeMessageFactory.createSafeMessage(i, "abc"));
+        journal.close();
+
+        //Damage the payload of the last record (records are the header of 17 bytes followed by the payload)
+        try (RandomAccessFile file = new RandomAccessFile(segments()[0], "rw")) {
+            file.seek(2 * (17 + 3) + 17);
+            file.write('x');
+        }
+
+        journal = open();
+        List<SafeMessage> recovered = journal.recover(0);
+        journal.close();
+        assertEquals(2, recovered.size());
+    }
+
+    @Test
+    public void discardsSegmentsAfterTornRecord() throws IOException {
+        MessageJournal journal = open();
+        journal.recover(0);
+        append(journal, 0, 1000);
+        journal.close();
+        File[] files = segments();
+        Arrays.sort(files);
+        assertTrue(files.length > 2);
+
+        //Damage the checksum of the second record, the intact records of the later segments are not recovered
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            long position = 17 + "message 0".length() + 4;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0x01);
+        }
+
+        journal = open();
+        List<SafeMessage> recovered = journal.recover(0);
+        journal.close();
+        assertEquals(1, recovered.size());
+        assertEquals("message 0", recovered.get(0).getData());
+        assertEquals(1, segments().length);
+    }
+
+    @Test
+    public void rejectsAppendAfterClose() throws IOException {
+        MessageJournal journal = open();
+        journal.recover(0);
+        journal.close();
+        assertThrows(IOException.class, () -> append(journal, 0, 1));
+    }
+}
@@ -0,0 +1,153 @@
+package de.gfolder.safeCommLib.messageHandler;
+
+import de.gfolder.safeCommLib.message.SafeMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * safeCommLib
+ *
+ * @author Benjamin Haettasch <Benjamin.Haettasch@googlemail.com>
+ * @version 0.1
+ */
+
+public class ReceivingWindowTest {
+
+    private static SafeMessage message(long sequenceNumber) {
+        return new SafeMessage(sequenceNumber, Long.toString(sequenceNumber), SafeMessage.Type.MESSAGE);
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1, new ReceivingWindow(1).capacity());
+        assertEquals(8, new ReceivingWindow(5).capacity());
+        assertEquals(16, new ReceivingWindow(16).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new ReceivingWindow(0));
+    }
+
+    @Test
+    public void releasesInOrder() {
+        ReceivingWindow window = new ReceivingWindow(8);
+        assertTrue(window.store(message(2)));
+        assertTrue(window.store(message(0)));
+        assertTrue(window.store(message(1)));
+        assertEquals(3, window.size());
+        assertEquals(3, window.getReleasableCount());
+
+        for (long sequenceNumber = 0; sequenceNumber < 3; sequenceNumber++)
+            assertEquals(sequenceNumber, window.poll().getSequenceNumber());
+        assertNull(window.poll());
+        assertTrue(window.isEmpty());
+        assertEquals(3, window.getNextSequenceNumber());
+    }
+
+    @Test
+    public void holdsMessagesBehindGap() {
+        ReceivingWindow window = new ReceivingWindow(8);
+        window.store(message(1));
+        assertTrue(window.contains(1));
+        assertFalse(window.contains(0));
+        assertEquals(0, window.getReleasableCount());
+        assertNull(window.poll());
+        assertEquals(0, window.getNextSequenceNumber());
+    }
+
+    @Test
+    public void rejectsMessagesBeyondWindow() {
+        ReceivingWindow window = new ReceivingWindow(4);
+        assertFalse(window.store(message(4)));
+        assertTrue(window.store(message(3)));
+        assertFalse(window.contains(4));
+    }
+
+    @Test
+    public void ignoresDuplicatesAndReleasedMessages() {
+        ReceivingWindow window = new ReceivingWindow(4);
+        window.store(message(0));
+        window.store(message(0));
+        assertEquals(1, window.size());
+        window.poll();
+        assertTrue(window.store(message(0)));
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void reportsStoredRanges() {
+        ReceivingWindow window = new ReceivingWindow(16);
+        for (long sequenceNumber : new long[]{2, 3, 7, 5, 6, 10})
+            window.store(message(sequenceNumber));
+        assertArrayEquals(new long[]{2, 3, 5, 7, 10, 10}, window.getStoredRanges(4));
+        assertArrayEquals(new long[]{2, 3}, window.getStoredRanges(1));
+
+        //Filling a gap joins both neighbouring ranges
+        window.store(message(4));
+        assertArrayEquals(new long[]{2, 7, 10, 10}, window.getStoredRanges(4));
+
+        window.store(message(0));
+        window.store(message(1));
+        assertEquals(8, window.getReleasableCount());
+        for (int i = 0; i < 8; i++)
+            window.poll();
+        assertArrayEquals(new long[]{10, 10}, window.getStoredRanges(4));
+        assertEquals(0, window.getReleasableCount());
+    }
+
+    @Test
+    public void rangesMatchStoredMessages() {
+        Random random = new Random(42);
+        ReceivingWindow window = new ReceivingWindow(64);
+        boolean[] stored = new boolean[100000];
+        long next = 0;
+        for (int i = 0; i < 50000; i++) {
+            if (random.nextInt(3) > 0) {
+                long sequenceNumber = next + random.nextInt(window.capacity());
+                window.store(message(sequenceNumber));
+                stored[(int) sequenceNumber] = true;
+            } else if (window.poll() != null) {
+                next++;
+            }
+
+            List<Long> expected = new ArrayList<>();
+            for (long sequenceNumber = next; sequenceNumber < next + window.capacity(); sequenceNumber++) {
+                if (stored[(int) sequenceNumber] && (sequenceNumber == next || !stored[(int) sequenceNumber - 1])) {
+                    long last = sequenceNumber;
+                    while (stored[(int) last + 1])
+                        last++;
+                    expected.add(sequenceNumber);
+                    expected.add(last);
+                }
+            }
+            long[] ranges = window.getStoredRanges(Integer.MAX_VALUE);
+            assertEquals(expected.size(), ranges.length);
+            for (int j = 0; j < ranges.length; j++)
+                assertEquals((long) expected.get(j), ranges[j]);
+
+            int releasable = 0;
+            while (stored[(int) (next + releasable)])
+                releasable++;
+            assertEquals(releasable, window.getReleasableCount());
+        }
+    }
+
+    @Test
+    public void resetStartsOver() {
+        ReceivingWindow window = new ReceivingWindow(8);
+        window.store(message(0));
+        window.poll();
+        window.store(message(2));
+        window.clear();
+        assertTrue(window.isEmpty());
+        assertEquals(0, window.getStoredRanges(4).length);
+        assertEquals(1, window.getNextSequenceNumber());
+
+        window.reset();
+        assertEquals(0, window.getNextSequenceNumber());
+        assertTrue(window.store(message(0)));
+        assertEquals(0, window.poll().getSequenceNumber());
+    }
+}